@@ -0,0 +1,146 @@
+package com.HZFINGER;
+
+import java.nio.ByteBuffer;
+
+//*********************************************************************************************************
+// Asynchronous transport : a transfer is split into chunks which are queued as several requests at once,
+// so the next chunks are already in flight while a completed one is being copied out.
+// Each endpoint owns a fixed pool of direct buffers, one per in-flight request, reused by all transfers.
+// Requests of one endpoint complete in queue order, so the in-flight slots form a ring.
+//*********************************************************************************************************
+final class AsyncUsbTransport implements UsbTransport {
+    //-----------------------------------------------------------------------------------------------------//
+    // Request queue of one endpoint (UsbRequestPort on device).
+    interface Port {
+        // Queue transfer of buffer's remaining bytes; on completion buffer position is advanced by
+        // the number of bytes transferred.
+        boolean Queue(int slot, ByteBuffer buffer);
+        // Wait for next completed request : returns its slot, or -1 on timeout/error. 0 - no limit.
+        int Wait(long timeout);
+        void Cancel(int slot);
+        void Close();
+    }
+
+    //----------------------The below defines default queue shape------------------------------------------//
+    static final int DEF_DEPTH = 4;
+    static final int DEF_CHUNK = BulkIo.MAX_TRANSFER_LEGACY;
+    static final int DRAIN_RETRIES = 3;
+
+    private final Port m_hIn;
+    private final Port m_hOut;
+    private final int m_nChunk;
+    private final ByteBuffer[] m_bfIn;
+    private final ByteBuffer[] m_bfOut;
+    private final int[] m_nOffset;
+    private final int[] m_nLength;
+    private volatile boolean m_bAvailable = true;
+
+    //-----------------------------------------------------------------------------------------------------//
+    AsyncUsbTransport(Port in, Port out, int chunk, int depth) {
+        m_hIn = in;
+        m_hOut = out;
+        m_nChunk = chunk;
+        m_bfIn = new ByteBuffer[depth];
+        m_bfOut = new ByteBuffer[depth];
+        for (int i = 0; i < depth; i ++) {
+            m_bfIn[i] = ByteBuffer.allocateDirect(chunk);
+            m_bfOut[i] = ByteBuffer.allocateDirect(chunk);
+        }
+        m_nOffset = new int[depth];
+        m_nLength = new int[depth];
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    // false once the host refused to queue a request : caller should fall back to SyncUsbTransport.
+    boolean IsAvailable() {
+        return m_bAvailable;
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    @Override
+    public synchronized boolean Send(byte[] buffer, int length, int timeout) {
+        return Transfer(m_hOut, m_bfOut, false, buffer, length, timeout);
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    @Override
+    public synchronized boolean Receive(byte[] buffer, int length, int timeout) {
+        return Transfer(m_hIn, m_bfIn, true, buffer, length, timeout);
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    @Override
+    public void Close() {
+        m_hIn.Close();
+        m_hOut.Close();
+    }
+    //*********************************************************************************************************
+    // Purpose   : Transfer appointed number of bytes with up to depth requests in flight
+    // Function  : Transfer
+    // Arguments :
+    //			(In) : Port port : endpoint queue
+    //			(In) : ByteBuffer[] pool : buffers of endpoint, one per slot
+    //			(In) : boolean in : true - receive, false - send
+    //		(In/Out) : byte[] buffer : data to send or buffer to receive into
+    //			(In) : int length : number of bytes to be transferred
+    //			(In) : int timeout : timeout of each request in ms
+    // Return    : boolean : true if all bytes are transferred
+    //*********************************************************************************************************
+    private boolean Transfer(Port port, ByteBuffer[] pool, boolean in, byte[] buffer, int length, int timeout) {
+        if (buffer == null || length < 0 || length > buffer.length) return false;
+        int depth = pool.length;
+        int next = 0, head = 0, pending = 0;
+        boolean ok = true;
+        while (ok) {
+            while (pending < depth && next < length) {
+                int slot = (head + pending) % depth;
+                int n = Math.min(m_nChunk, length - next);
+                ByteBuffer b = pool[slot];
+                b.clear();
+                if (in) b.limit(n);
+                else {
+                    b.put(buffer, next, n);
+                    b.flip();
+                }
+                m_nOffset[slot] = next;
+                m_nLength[slot] = n;
+                if (!port.Queue(slot, b)) {
+                    if (next == 0) m_bAvailable = false;
+                    ok = false;
+                    break;
+                }
+                next += n;
+                pending ++;
+            }
+            if (!ok || pending == 0) break;
+            int slot = port.Wait(timeout);
+            if (slot != head) {
+                ok = false;
+                if (slot >= 0) pending --;      // reaped out of order, drain the rest below
+                break;
+            }
+            ByteBuffer b = pool[slot];
+            int n = b.position();
+            if (n != m_nLength[slot]) {
+                ok = false;
+            }
+            else if (in) {
+                b.flip();
+                b.get(buffer, m_nOffset[slot], n);
+            }
+            head = (head + 1) % depth;
+            pending --;
+        }
+        if (pending > 0) Drain(port, depth, pending, timeout);
+        return ok;
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    // Cancel requests still in flight after a failure and reap all their completions, so they are not
+    // returned by Wait of the next transfer. Cancelling a slot which is not in flight has no effect.
+    // Requests which cannot be reaped make the transport unavailable, the caller falls back to sync.
+    private void Drain(Port port, int depth, int pending, int timeout) {
+        for (int i = 0; i < depth; i ++) port.Cancel(i);
+        int failed = 0;
+        while (pending > 0 && failed < DRAIN_RETRIES) {
+            if (port.Wait(timeout) < 0) failed ++;
+            else pending --;
+        }
+        if (pending > 0) m_bAvailable = false;
+    }
+}
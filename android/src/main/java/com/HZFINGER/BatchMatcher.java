@@ -0,0 +1,125 @@
+package com.HZFINGER;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//****************************************************************************************************
+// Scores many template pairs on a thread pool.
+//
+// Templates are packed back to back in FPINFO_SIZE slots (shorter ones zero padded), so a batch
+// crosses the method channel as one buffer. Each worker takes a contiguous range of pairs and copies
+// templates into its own two FPINFO_SIZE arrays, the first one once per row, so a batch allocates
+// nothing per pair.
+//****************************************************************************************************
+public class BatchMatcher {
+    //----------------------------------------------------------------------------------------------------
+    public interface Matcher {
+        // Return : matching score of two FPINFO_SIZE templates, e.g. LAPI.CompareTemplates
+        int Compare(byte[] t1, byte[] t2);
+    }
+    //----------------------------------------------------------------------------------------------------
+    public static final int SLOT = LAPI.FPINFO_SIZE;
+    public static final int MIN_PAIRS_PER_TASK = 16;
+    //----------------------------------------------------------------------------------------------------
+    private final int m_nThreads;
+    private final ExecutorService m_hPool;
+    //----------------------------------------------------------------------------------------------------
+    public BatchMatcher(int threads) {
+        m_nThreads = Math.max(1, threads);
+        AtomicInteger n = new AtomicInteger();
+        m_hPool = Executors.newFixedThreadPool(m_nThreads, r -> {
+            Thread t = new Thread(r, "HZFinger-Match-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+    //------------------------------------------------------------------------------------------------//
+    // Purpose   : This function scores a probe against many templates.
+    // Function  : CompareMany
+    // Arguments :
+    //      (In) : Matcher matcher : compare function
+    //      (In) : byte[] probe : probe template, up to SLOT bytes
+    //      (In) : byte[] packed : count templates in SLOT byte slots
+    //      (In) : int count : number of templates
+    // Return    : int[] : score of each template
+    //------------------------------------------------------------------------------------------------//
+    public int[] CompareMany(Matcher matcher, byte[] probe, byte[] packed, int count) {
+        return CompareMatrix(matcher, probe, 1, packed, count);
+    }
+    //------------------------------------------------------------------------------------------------//
+    // Purpose   : This function scores every template of one list against every template of another.
+    // Function  : CompareMatrix
+    // Arguments :
+    //      (In) : Matcher matcher : compare function
+    //      (In) : byte[] packedA, int countA : first list, countA templates in SLOT byte slots
+    //      (In) : byte[] packedB, int countB : second list
+    // Return    : int[] : countA x countB scores, row major : score(a, b) at a*countB + b
+    //------------------------------------------------------------------------------------------------//
+    public int[] CompareMatrix(Matcher matcher, byte[] packedA, int countA, byte[] packedB, int countB) {
+        CheckPacked(packedA, countA);
+        CheckPacked(packedB, countB);
+        final int[] scores = new int[countA * countB];
+        final int total = scores.length;
+        int tasks = Math.min(m_nThreads, Math.max(1, total / MIN_PAIRS_PER_TASK));
+        if (tasks <= 1) {
+            CompareRange(matcher, packedA, packedB, countB, 0, total, scores);
+            return scores;
+        }
+        List<Future<?>> futures = new ArrayList<>(tasks);
+        for (int k = 0; k < tasks; k ++) {
+            final int from = (int) ((long) total * k / tasks);
+            final int to = (int) ((long) total * (k + 1) / tasks);
+            futures.add(m_hPool.submit(() -> CompareRange(matcher, packedA, packedB, countB, from, to, scores)));
+        }
+        try {
+            for (Future<?> f : futures) f.get();
+        } catch (InterruptedException e) {
+            for (Future<?> f : futures) f.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Batch compare interrupted");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+        return scores;
+    }
+    //----------------------------------------------------------------------------------------------------
+    public void Close() {
+        m_hPool.shutdownNow();
+    }
+    //----------------------------------------------------------------------------------------------------
+    private static void CompareRange(Matcher matcher, byte[] packedA, byte[] packedB, int countB,
+                                     int from, int to, int[] scores) {
+        byte[] t1 = new byte[SLOT];
+        byte[] t2 = new byte[SLOT];
+        int rowA = -1;
+        for (int i = from; i < to; i ++) {
+            int a = i / countB;
+            if (a != rowA) {
+                Slot(packedA, a, t1);
+                rowA = a;
+            }
+            Slot(packedB, i % countB, t2);
+            scores[i] = matcher.Compare(t1, t2);
+        }
+    }
+    //----------------------------------------------------------------------------------------------------
+    // Copies template index of packed into dst; a probe shorter than a slot is zero padded.
+    private static void Slot(byte[] packed, int index, byte[] dst) {
+        int off = index * SLOT;
+        int n = Math.min(SLOT, packed.length - off);
+        System.arraycopy(packed, off, dst, 0, n);
+        if (n < SLOT) Arrays.fill(dst, n, SLOT, (byte) 0);
+    }
+    //----------------------------------------------------------------------------------------------------
+    private static void CheckPacked(byte[] packed, int count) {
+        if (count < 0 || packed == null || (count > 0 && packed.length <= (long) (count - 1) * SLOT)) {
+            throw new IllegalArgumentException("Packed templates hold fewer than " + count + " slots");
+        }
+    }
+}
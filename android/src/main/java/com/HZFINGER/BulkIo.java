@@ -0,0 +1,78 @@
+package com.HZFINGER;
+
+//*********************************************************************************************************
+// Bulk transfer path of one USB endpoint.
+// Data is transferred straight from/into the caller's buffer with the offset overload of bulkTransfer,
+// in transfers of up to m_nMaxTransfer bytes. If the host refuses large transfers, the path falls back
+// to max-packet-size transfers, still without intermediate copies.
+//*********************************************************************************************************
+final class BulkIo {
+    //-----------------------------------------------------------------------------------------------------//
+    // One bulkTransfer call : returns number of bytes transferred, or negative value on failure.
+    interface Pipe {
+        int Transfer(byte[] buffer, int offset, int length, int timeout);
+    }
+
+    //----------------------The below defines limits of a single bulk transfer-----------------------------//
+    static final int MAX_TRANSFER = 128*1024;
+    static final int MAX_TRANSFER_LEGACY = 16*1024;     // usbfs limit before Android 9
+
+    private final Pipe m_hPipe;
+    private final int m_nPacketSize;
+    private final int m_nMaxTransfer;
+    private boolean m_bLargeTransfer;
+
+    //-----------------------------------------------------------------------------------------------------//
+    BulkIo(Pipe pipe, int packetSize, int maxTransfer) {
+        m_hPipe = pipe;
+        m_nPacketSize = packetSize;
+        m_nMaxTransfer = Math.max(packetSize, maxTransfer);
+        m_bLargeTransfer = m_nMaxTransfer > packetSize;
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    boolean IsLargeTransfer() {
+        return m_bLargeTransfer;
+    }
+    //*********************************************************************************************************
+    // Purpose   : Transfer appointed number of bytes
+    // Function  : Transfer
+    // Arguments :
+    //		(In/Out) : byte[] buffer : data to send or buffer to receive into
+    //			(In) : int length : number of bytes to be transferred
+    //			(In) : int timeout : timeout of each bulk transfer in ms
+    // Return    : boolean : true if all bytes are transferred
+    //*********************************************************************************************************
+    boolean Transfer(byte[] buffer, int length, int timeout) {
+        if (buffer == null || length < 0 || length > buffer.length) return false;
+        if (m_bLargeTransfer) {
+            int n = Transfer(m_hPipe, buffer, length, m_nMaxTransfer, timeout);
+            if (n == length) return true;
+            if (n > 0) return false;
+            //Nothing transferred : retry with packet-sized transfers, keep them if they work
+            if (Transfer(m_hPipe, buffer, length, m_nPacketSize, timeout) != length) return false;
+            m_bLargeTransfer = false;
+            return true;
+        }
+        return Transfer(m_hPipe, buffer, length, m_nPacketSize, timeout) == length;
+    }
+    //*********************************************************************************************************
+    // Purpose   : Transfer buffer in chunks of appointed size
+    // Function  : Transfer
+    // Arguments :
+    //			(In) : Pipe pipe : bulk endpoint
+    //		(In/Out) : byte[] buffer : data to send or buffer to receive into
+    //			(In) : int length : number of bytes to be transferred
+    //			(In) : int chunk : maximum size of one bulk transfer
+    //			(In) : int timeout : timeout of each bulk transfer in ms
+    // Return    : int : number of bytes transferred before completion or failure
+    //*********************************************************************************************************
+    static int Transfer(Pipe pipe, byte[] buffer, int length, int chunk, int timeout) {
+        int offset = 0;
+        while (offset < length) {
+            int n = pipe.Transfer(buffer, offset, Math.min(chunk, length - offset), timeout);
+            if (n <= 0) break;
+            offset += n;
+        }
+        return offset;
+    }
+}
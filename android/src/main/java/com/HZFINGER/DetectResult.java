@@ -0,0 +1,43 @@
+package com.HZFINGER;
+
+//****************************************************************************************************
+// Result of LAPI.DetectFinger : finger and liveness scores of one frame, which is left untouched.
+// The caller decides what to do with a frame that is not a (live) finger.
+//****************************************************************************************************
+public class DetectResult {
+    //----------------------------------------------------------------------------------------------------
+    public static final int NO_FINGER = 0;
+    public static final int FINGER = 1;             // finger on sensor, live or liveness not checked
+    public static final int FAKE = 2;
+    public static final int PENDING = 3;            // liveness of this touch is still being checked
+    //----------------------------------------------------------------------------------------------------
+    public int verdict = NO_FINGER;
+    public int pressScore = 0;                      // percent value of finger placed on sensor(0~100)
+    public boolean liveChecked = false;             // liveness applied : frames under DEF_FINGER_SCORE are no finger
+    public float liveScore = Float.NaN;             // smallest threshold accepting the frame, NaN if not probed
+    public long pressNanos = 0;                     // time of IsPressFinger
+    public long liveNanos = 0;                      // time of liveness verdict and probe
+    //------------------------------------------------------------------------------------------------//
+    // Purpose   : This function tells whether the frame holds a finger usable for templates.
+    // Function  : IsFinger
+    // Arguments : void
+    // Return    : boolean
+    //------------------------------------------------------------------------------------------------//
+    public boolean IsFinger() {
+        return verdict == FINGER;
+    }
+    //------------------------------------------------------------------------------------------------//
+    // Purpose   : This function converts the result to the return value of IsPressFingerEx.
+    // Function  : ToScore
+    // Arguments : void
+    // Return    : int : finger score(0~100), LAPI.FAKEFINGER or LAPI.LIVEPENDING
+    //------------------------------------------------------------------------------------------------//
+    public int ToScore() {
+        switch (verdict) {
+            case FAKE:      return LAPI.FAKEFINGER;
+            case PENDING:   return LAPI.LIVEPENDING;
+            case NO_FINGER: return liveChecked ? 0 : pressScore;
+            default:        return pressScore;
+        }
+    }
+}
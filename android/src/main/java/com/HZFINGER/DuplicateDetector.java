@@ -0,0 +1,218 @@
+package com.HZFINGER;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+//****************************************************************************************************
+// Finds records of a gallery enrolled twice, i.e. pairs of templates matching each other.
+//
+// Records are ordered as already checked ones first, then new ones; each new record (row) is matched
+// against the records before it, so every pair is matched once and a full run covers the N(N-1)/2
+// pairs. Rows are handed out to the worker pool in blocks of ROWS_PER_TASK, claimed one block at a
+// time so the longer rows at the end do not leave workers idle. When a row has more than TopK records
+// before it, the TemplateIndex pre-filter ranks them and only the best TopK go to the native matcher.
+//
+// Records are identified by Key(id, template), so a record whose template was replaced is checked
+// again by an incremental run; keys of a Report are saved with SaveKeys and passed as checked next time.
+//****************************************************************************************************
+public class DuplicateDetector {
+    //----------------------------------------------------------------------------------------------------
+    public static class Pair {
+        public String idA;
+        public String idB;
+        public int score;
+    }
+    public static class Report {
+        public int errCode = HAPI.ERROR_NONE;
+        public final List<Pair> pairs = new ArrayList<>();     // suspected duplicates, best score first
+        public String[] keys = new String[0];                  // keys of all records, checked after this run
+        public int records;
+        public int rows;                                        // records matched in this run
+        public long compared;                                   // pairs given to the matcher
+        public long pruned;                                     // pairs skipped by pre-filter
+        public long time;                                       // ms
+    }
+    //----------------------------------------------------------------------------------------------------
+    public static final int ROWS_PER_TASK = 8;
+    public static final int DEF_TOPK = 100;
+    //----------------------------------------------------------------------------------------------------
+    private final int m_nThreads;
+    private final ExecutorService m_hPool;
+    private volatile int m_nTopK = DEF_TOPK;
+    //----------------------------------------------------------------------------------------------------
+    public DuplicateDetector(int threads) {
+        m_nThreads = Math.max(1, threads);
+        AtomicInteger n = new AtomicInteger();
+        m_hPool = Executors.newFixedThreadPool(m_nThreads, r -> {
+            Thread t = new Thread(r, "HZFinger-Dedup-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+    //----------------------------------------------------------------------------------------------------
+    // Records matched per row after pre-filter, 0 - every pair goes to the matcher.
+    public void SetTopK(int topK) {
+        m_nTopK = Math.max(0, topK);
+    }
+    //----------------------------------------------------------------------------------------------------
+    public int GetTopK() {
+        return m_nTopK;
+    }
+    //----------------------------------------------------------------------------------------------------
+    public static String Key(String id, byte[] itemplate) {
+        return id + "#" + Integer.toHexString(Arrays.hashCode(itemplate));
+    }
+    //------------------------------------------------------------------------------------------------//
+    // Purpose   : This function matches new records against each other and against checked records.
+    // Function  : Find
+    // Arguments :
+    //      (In) : BatchMatcher.Matcher matcher : compare function, called on pool threads
+    //      (In) : String[] ids : record ids
+    //      (In) : byte[][] itemplates : FPINFO_SIZE templates of records
+    //      (In) : TemplateIndex index : pre-filter features of records in the same slots, null - none
+    //      (In) : int n : number of records
+    //      (In) : Set<String> checked : keys of records checked by an earlier run, null - full run
+    //      (In) : int threshold : min. score of a suspected duplicate
+    // Return    : Report
+    //------------------------------------------------------------------------------------------------//
+    public Report Find(BatchMatcher.Matcher matcher, String[] ids, byte[][] itemplates, TemplateIndex index,
+                       int n, Set<String> checked, int threshold) {
+        long start = System.currentTimeMillis();
+        final Report report = new Report();
+        report.records = n;
+        report.keys = new String[n];
+        // Checked records first, new ones after them
+        final int[] order = new int[n];
+        int old = 0;
+        for (int i = 0; i < n; i ++) {
+            report.keys[i] = Key(ids[i], itemplates[i]);
+            if (checked != null && checked.contains(report.keys[i])) order[old ++] = i;
+        }
+        final int first = old;
+        for (int i = 0, k = old; i < n; i ++) {
+            if (checked == null || !checked.contains(report.keys[i])) order[k ++] = i;
+        }
+        report.rows = n - first;
+        final int topK = index != null ? m_nTopK : 0;
+
+        final AtomicInteger next = new AtomicInteger(first);
+        final AtomicLong compared = new AtomicLong();
+        final AtomicLong pruned = new AtomicLong();
+        int tasks = Math.min(m_nThreads, (report.rows + ROWS_PER_TASK - 1) / ROWS_PER_TASK);
+        List<Future<List<Pair>>> futures = new ArrayList<>(tasks);
+        for (int t = 0; t < tasks; t ++) {
+            futures.add(m_hPool.submit(() -> {
+                List<Pair> found = new ArrayList<>();
+                int[] cand = topK > 0 ? new int[topK] : null;
+                int from;
+                while ((from = next.getAndAdd(ROWS_PER_TASK)) < n) {
+                    int to = Math.min(n, from + ROWS_PER_TASK);
+                    for (int r = from; r < to; r ++) {
+                        int a = order[r];
+                        int k = -1;
+                        if (topK > 0 && r > topK) k = index.Query(itemplates[a], topK, order, r, cand);
+                        if (k >= 0) {
+                            for (int c = 0; c < k; c ++) Match(matcher, ids, itemplates, a, cand[c], threshold, found);
+                            compared.addAndGet(k);
+                            pruned.addAndGet(r - k);
+                        } else {
+                            for (int c = 0; c < r; c ++) Match(matcher, ids, itemplates, a, order[c], threshold, found);
+                            compared.addAndGet(r);
+                        }
+                    }
+                }
+                return found;
+            }));
+        }
+        try {
+            for (Future<List<Pair>> f : futures) report.pairs.addAll(f.get());
+        } catch (InterruptedException e) {
+            for (Future<?> f : futures) f.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Duplicate detection interrupted");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+        Collections.sort(report.pairs, (p, q) -> q.score - p.score);
+        report.compared = compared.get();
+        report.pruned = pruned.get();
+        report.time = System.currentTimeMillis() - start;
+        return report;
+    }
+    //----------------------------------------------------------------------------------------------------
+    public void Close() {
+        m_hPool.shutdownNow();
+    }
+    //----------------------------------------------------------------------------------------------------
+    private static void Match(BatchMatcher.Matcher matcher, String[] ids, byte[][] itemplates, int a, int b,
+                              int threshold, List<Pair> found) {
+        int score = matcher.Compare(itemplates[a], itemplates[b]);
+        if (score < threshold) return;
+        Pair p = new Pair();
+        // Earlier record first, as it was most likely enrolled first
+        p.idA = ids[Math.min(a, b)];
+        p.idB = ids[Math.max(a, b)];
+        p.score = score;
+        found.add(p);
+    }
+    //------------------------------------------------------------------------------------------------//
+    // Purpose   : This function writes suspected duplicates as CSV lines "idA,idB,score".
+    // Function  : WriteReport
+    // Arguments :
+    //      (In) : Report report
+    //      (In) : File file : replaced
+    // Return    : void
+    //------------------------------------------------------------------------------------------------//
+    public static void WriteReport(Report report, File file) throws IOException {
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            w.write("idA,idB,score\n");
+            for (Pair p : report.pairs) w.write(Csv(p.idA) + "," + Csv(p.idB) + "," + p.score + "\n");
+        }
+    }
+    //----------------------------------------------------------------------------------------------------
+    // Keys of checked records, one per line, for the next incremental run.
+    public static void SaveKeys(String[] keys, File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+            for (String key : keys) w.write(key + "\n");
+        }
+        if (!tmp.renameTo(file)) throw new IOException("Cannot replace " + file);
+    }
+    //----------------------------------------------------------------------------------------------------
+    // Return : keys saved by SaveKeys, empty if file does not exist
+    public static Set<String> LoadKeys(File file) throws IOException {
+        Set<String> keys = new HashSet<>();
+        if (!file.exists()) return keys;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.isEmpty()) keys.add(line);
+            }
+        }
+        return keys;
+    }
+    //----------------------------------------------------------------------------------------------------
+    private static String Csv(String s) {
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0) return s;
+        return "\"" + s.replace("\"", "\"\"") + "\"";
+    }
+}
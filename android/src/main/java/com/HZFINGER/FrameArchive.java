@@ -0,0 +1,401 @@
+package com.HZFINGER;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+//****************************************************************************************************
+// Archive of captured frames for audit.
+//
+// Frames are handed over with Add() and compressed to WSQ on the archive thread, so capture never
+// waits for the codec or the disk. Compressed frames are appended to segment files
+// "frames-<time>.wsq" next to an index "frames-<time>.idx" with one line per frame
+// (time, quality, offset, length, user id). A segment is closed when it reaches the segment size;
+// whole segments are then deleted, oldest first, to keep the archive within size and age limits.
+// Read() streams frames back one at a time, decompressed into a single reused buffer.
+//****************************************************************************************************
+public class FrameArchive {
+    //----------------------------------------------------------------------------------------------------
+    public interface Codec {
+        // Return : size of WSQ image written to wsq, 0 on failure
+        int Compress(byte[] raw, byte[] wsq);
+        // Return : size of raw image written to raw, 0 on failure
+        int Decompress(byte[] wsq, int wsqSize, byte[] raw);
+    }
+    //----------------------------------------------------------------------------------------------------
+    public interface Visitor {
+        // Return : false - stop reading
+        boolean OnFrame(Record rec, byte[] raw);
+    }
+    //----------------------------------------------------------------------------------------------------
+    public static class Record {
+        public long time;
+        public int quality;
+        public String userId;           // "" if frame was captured for no user
+        public String segment;          // segment file name
+        public long offset;
+        public int length;              // size of WSQ image
+    }
+    //----------------------------------------------------------------------------------------------------
+    public static final long DEF_SEGMENT_BYTES = 4L*1024*1024;
+    public static final long DEF_MAX_BYTES = 64L*1024*1024;
+    public static final long DEF_MAX_AGE_MS = 30L*24*3600*1000;
+    public static final int QUEUE_DEPTH = 16;                    // frames waiting for compression, more are dropped
+    public static final int WSQ_BUFFER_SIZE = 512*512;
+    static final String PREFIX = "frames-";
+    static final String SEG_EXT = ".wsq";
+    static final String IDX_EXT = ".idx";
+    //----------------------------------------------------------------------------------------------------
+    private final File m_hDir;
+    private final Codec m_hCodec;
+    private long m_nSegmentBytes = DEF_SEGMENT_BYTES;
+    private long m_nMaxBytes = DEF_MAX_BYTES;
+    private long m_nMaxAgeMs = DEF_MAX_AGE_MS;
+    //----------------------------------------------------------------------------------------------------
+    // Queue guarded by itself, worker owns segment state
+    private final ArrayDeque<Object[]> m_hQueue = new ArrayDeque<>();
+    private Thread m_hWorker = null;
+    private boolean m_bClosed = false;
+    private int m_nPending = 0;
+    private int m_nDropped = 0;
+    private int m_nFailed = 0;
+    private final byte[] m_bfWsq = new byte[WSQ_BUFFER_SIZE];
+    private String m_sSegment = null;
+    private FileOutputStream m_hSegOut = null;
+    private Writer m_hIdxOut = null;
+    private long m_nSegSize = 0;
+    private long m_tLastSegment = 0;
+    //----------------------------------------------------------------------------------------------------
+    public FrameArchive(File dir, Codec codec) {
+        m_hDir = dir;
+        m_hCodec = codec;
+        m_hDir.mkdirs();
+    }
+    //----------------------------------------------------------------------------------------------------
+    public synchronized void SetRetention(long maxBytes, long maxAgeMs) {
+        m_nMaxBytes = maxBytes;
+        m_nMaxAgeMs = maxAgeMs;
+    }
+    //----------------------------------------------------------------------------------------------------
+    public synchronized void SetSegmentSize(long bytes) {
+        m_nSegmentBytes = bytes;
+    }
+    //------------------------------------------------------------------------------------------------//
+    // Purpose   : This function queues a captured frame for compression and archiving.
+    // Function  : Add
+    // Arguments :
+    //      (In) : byte[] raw : raw image, copied
+    //      (In) : String userId : user the frame was captured for, null if none
+    //      (In) : int quality : quality of the frame
+    // Return    : boolean : false if the archive is closed or the queue is full (frame dropped)
+    //------------------------------------------------------------------------------------------------//
+    public boolean Add(byte[] raw, String userId, int quality) {
+        Object[] item = {System.currentTimeMillis(), raw.clone(), userId, quality};
+        synchronized (m_hQueue) {
+            if (m_bClosed) return false;
+            if (m_hQueue.size() >= QUEUE_DEPTH) {
+                m_nDropped ++;
+                return false;
+            }
+            m_hQueue.add(item);
+            m_nPending ++;
+            if (m_hWorker == null) {
+                m_hWorker = new Thread(this::Run, "HZFinger-Archive");
+                m_hWorker.setDaemon(true);
+                m_hWorker.start();
+            }
+            m_hQueue.notifyAll();
+        }
+        return true;
+    }
+    //------------------------------------------------------------------------------------------------//
+    // Purpose   : This function waits until every queued frame is written.
+    // Function  : Flush
+    // Arguments : long timeout : max time to wait in ms
+    // Return    : boolean : false on timeout
+    //------------------------------------------------------------------------------------------------//
+    public boolean Flush(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (m_hQueue) {
+            while (m_nPending > 0) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) return false;
+                try {
+                    m_hQueue.wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+    //------------------------------------------------------------------------------------------------//
+    // Purpose   : This function writes queued frames and stops the archive thread.
+    // Function  : Close
+    // Arguments : long timeout : max time to wait for queued frames in ms, 0 - don't wait
+    // Return    : void
+    //------------------------------------------------------------------------------------------------//
+    public void Close(long timeout) {
+        Flush(timeout);
+        Thread t;
+        synchronized (m_hQueue) {
+            m_bClosed = true;
+            t = m_hWorker;
+            m_hQueue.notifyAll();
+        }
+        if (t != null && timeout > 0) {
+            try {
+                t.join(timeout);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    //----------------------------------------------------------------------------------------------------
+    public int GetDroppedCount() {
+        synchronized (m_hQueue) { return m_nDropped; }
+    }
+    //----------------------------------------------------------------------------------------------------
+    public int GetFailedCount() {
+        synchronized (m_hQueue) { return m_nFailed; }
+    }
+    //------------------------------------------------------------------------------------------------//
+    // Purpose   : This function lists archived frames from the segment indexes.
+    // Function  : Query
+    // Arguments :
+    //      (In) : long from, long to : time range in ms, inclusive
+    //      (In) : String userId : only frames of this user, null - all
+    // Return    : List<Record> : oldest first
+    //------------------------------------------------------------------------------------------------//
+    public List<Record> Query(long from, long to, String userId) {
+        List<Record> out = new ArrayList<>();
+        for (String seg : Segments()) {
+            File idx = new File(m_hDir, seg + IDX_EXT);
+            try (BufferedReader r = new BufferedReader(new FileReader(idx))) {
+                String line;
+                while ((line = r.readLine()) != null) {
+                    Record rec = ParseRecord(seg, line);
+                    if (rec == null || rec.time < from || rec.time > to) continue;
+                    if (userId != null && !userId.equals(rec.userId)) continue;
+                    out.add(rec);
+                }
+            } catch (IOException e) {
+                // segment deleted by retention meanwhile
+            }
+        }
+        return out;
+    }
+    //------------------------------------------------------------------------------------------------//
+    // Purpose   : This function streams archived frames, decompressed, to a visitor.
+    // Function  : Read
+    // Arguments :
+    //      (In) : long from, long to : time range in ms, inclusive
+    //      (In) : String userId : only frames of this user, null - all
+    //      (In) : Visitor visitor : gets each frame; the raw buffer is reused for the next frame
+    // Return    : int : number of frames visited
+    //------------------------------------------------------------------------------------------------//
+    public int Read(long from, long to, String userId, Visitor visitor) {
+        byte[] wsq = new byte[WSQ_BUFFER_SIZE];
+        byte[] raw = new byte[LAPI.IMAGE_SIZE];
+        int count = 0;
+        String open = null;
+        RandomAccessFile f = null;
+        try {
+            for (Record rec : Query(from, to, userId)) {
+                if (!rec.segment.equals(open)) {
+                    if (f != null) f.close();
+                    f = new RandomAccessFile(new File(m_hDir, rec.segment + SEG_EXT), "r");
+                    open = rec.segment;
+                }
+                if (!ReadFrame(f, rec, wsq, raw)) continue;
+                count ++;
+                if (!visitor.OnFrame(rec, raw)) break;
+            }
+        } catch (IOException e) {
+            // segment deleted by retention meanwhile
+        } finally {
+            if (f != null) {
+                try { f.close(); } catch (IOException e) { }
+            }
+        }
+        return count;
+    }
+    //------------------------------------------------------------------------------------------------//
+    // Purpose   : This function reads one archived frame.
+    // Function  : Read
+    // Arguments :
+    //      (In) : Record rec : frame returned from Query()
+    //  (In/Out) : byte[] raw : uncompressed image, IMAGE_SIZE bytes
+    // Return    : boolean : false if the frame is gone or cannot be decompressed
+    //------------------------------------------------------------------------------------------------//
+    public boolean Read(Record rec, byte[] raw) {
+        if (!IsValid(rec)) return false;
+        try (RandomAccessFile f = new RandomAccessFile(new File(m_hDir, rec.segment + SEG_EXT), "r")) {
+            return ReadFrame(f, rec, new byte[Math.max(rec.length, 1)], raw);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+    //------------------------------------------------------------------------------------------------//
+    // Purpose   : This function checks a record given by a caller before it is used to open and read a file.
+    // Function  : IsValid
+    // Arguments :
+    //      (In) : Record rec
+    // Return    : boolean : true if segment is a segment name of this archive and offset, length are in range
+    //------------------------------------------------------------------------------------------------//
+    public static boolean IsValid(Record rec) {
+        return rec != null && rec.segment != null && rec.segment.matches(PREFIX + "\\d{13}")
+                && rec.offset >= 0 && rec.length > 0 && rec.length <= WSQ_BUFFER_SIZE;
+    }
+    //----------------------------------------------------------------------------------------------------
+    private boolean ReadFrame(RandomAccessFile f, Record rec, byte[] wsq, byte[] raw) throws IOException {
+        if (rec.length <= 0 || rec.length > wsq.length || rec.offset < 0 || rec.offset + rec.length > f.length()) return false;
+        f.seek(rec.offset);
+        f.readFully(wsq, 0, rec.length);
+        return m_hCodec.Decompress(wsq, rec.length, raw) > 0;
+    }
+    //****************************************************************************************************
+    // Archive thread
+    //****************************************************************************************************
+    private void Run() {
+        while (true) {
+            Object[] item;
+            synchronized (m_hQueue) {
+                while (m_hQueue.isEmpty() && !m_bClosed) {
+                    try {
+                        m_hQueue.wait();
+                    } catch (InterruptedException e) {
+                        m_bClosed = true;
+                    }
+                }
+                item = m_hQueue.poll();
+                if (item == null) break;
+            }
+            boolean ok = false;
+            try {
+                ok = Write((Long) item[0], (byte[]) item[1], (String) item[2], (Integer) item[3]);
+            } catch (IOException e) {
+                CloseSegment();
+            }
+            synchronized (m_hQueue) {
+                if (!ok) m_nFailed ++;
+                m_nPending --;
+                m_hQueue.notifyAll();
+            }
+        }
+        CloseSegment();
+    }
+    //----------------------------------------------------------------------------------------------------
+    private boolean Write(long time, byte[] raw, String userId, int quality) throws IOException {
+        int size = m_hCodec.Compress(raw, m_bfWsq);
+        if (size <= 0) return false;
+
+        long segmentBytes;
+        synchronized (this) { segmentBytes = m_nSegmentBytes; }
+        if (m_hSegOut != null && m_nSegSize + size > segmentBytes) CloseSegment();
+        if (m_hSegOut == null) OpenSegment(time);
+
+        long offset = m_nSegSize;
+        m_hSegOut.write(m_bfWsq, 0, size);
+        m_hSegOut.flush();
+        m_nSegSize += size;
+        // Index line goes after the data, so an indexed frame is always complete
+        String id = userId == null ? "" : userId.replace('\t', ' ').replace('\n', ' ');
+        m_hIdxOut.write(time + "\t" + quality + "\t" + offset + "\t" + size + "\t" + id + "\n");
+        m_hIdxOut.flush();
+        return true;
+    }
+    //----------------------------------------------------------------------------------------------------
+    private void OpenSegment(long time) throws IOException {
+        // Names sort by time; keep them unique when frames come within the same ms
+        long t = Math.max(time, m_tLastSegment + 1);
+        m_tLastSegment = t;
+        m_sSegment = PREFIX + String.format("%013d", t);
+        m_hSegOut = new FileOutputStream(new File(m_hDir, m_sSegment + SEG_EXT), true);
+        m_hIdxOut = new OutputStreamWriter(new FileOutputStream(new File(m_hDir, m_sSegment + IDX_EXT), true),
+                StandardCharsets.UTF_8);
+        m_nSegSize = new File(m_hDir, m_sSegment + SEG_EXT).length();
+        Prune();
+    }
+    //----------------------------------------------------------------------------------------------------
+    private void CloseSegment() {
+        try {
+            if (m_hSegOut != null) {
+                m_hSegOut.getFD().sync();
+                m_hSegOut.close();
+            }
+            if (m_hIdxOut != null) m_hIdxOut.close();
+        } catch (IOException e) {
+            // nothing more to do, indexed frames are already complete
+        }
+        m_hSegOut = null;
+        m_hIdxOut = null;
+        m_sSegment = null;
+        m_nSegSize = 0;
+    }
+    //----------------------------------------------------------------------------------------------------
+    // Deletes oldest segments over the size or age limit, never the one being written.
+    private void Prune() {
+        long maxBytes, maxAgeMs;
+        synchronized (this) {
+            maxBytes = m_nMaxBytes;
+            maxAgeMs = m_nMaxAgeMs;
+        }
+        List<String> segs = Segments();
+        long total = 0;
+        for (String seg : segs) total += SegmentBytes(seg);
+        long oldest = System.currentTimeMillis() - maxAgeMs;
+        for (String seg : segs) {
+            if (seg.equals(m_sSegment)) break;
+            File data = new File(m_hDir, seg + SEG_EXT);
+            if (total <= maxBytes && data.lastModified() >= oldest) break;
+            total -= SegmentBytes(seg);
+            data.delete();
+            new File(m_hDir, seg + IDX_EXT).delete();
+        }
+    }
+    //----------------------------------------------------------------------------------------------------
+    private long SegmentBytes(String seg) {
+        return new File(m_hDir, seg + SEG_EXT).length() + new File(m_hDir, seg + IDX_EXT).length();
+    }
+    //----------------------------------------------------------------------------------------------------
+    // Segment names without extension, oldest first
+    private List<String> Segments() {
+        List<String> segs = new ArrayList<>();
+        String[] names = m_hDir.list();
+        if (names == null) return segs;
+        Arrays.sort(names);
+        for (String n : names) {
+            if (n.startsWith(PREFIX) && n.endsWith(IDX_EXT)) segs.add(n.substring(0, n.length() - IDX_EXT.length()));
+        }
+        return segs;
+    }
+    //----------------------------------------------------------------------------------------------------
+    private static Record ParseRecord(String seg, String line) {
+        String[] p = line.split("\t", 5);
+        if (p.length != 5) return null;
+        try {
+            Record rec = new Record();
+            rec.time = Long.parseLong(p[0]);
+            rec.quality = Integer.parseInt(p[1]);
+            rec.offset = Long.parseLong(p[2]);
+            rec.length = Integer.parseInt(p[3]);
+            rec.userId = p[4];
+            rec.segment = seg;
+            return rec;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
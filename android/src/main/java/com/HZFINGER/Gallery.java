@@ -0,0 +1,111 @@
+package com.HZFINGER;
+
+import java.util.Arrays;
+import java.util.Set;
+
+//*********************************************************************************************************
+// In-memory snapshot of DATABASE records used for matching.
+// A gallery is never changed after it is published by HAPI : mutations are made on a Copy() which then
+// replaces the published gallery, so searches always see a complete and consistent set of records.
+// Each template is also kept in its own array (m_bfRec) which is never written after Add, so it can be
+// passed to the native 1:1 matcher or wrapped in a read-only view without copying.
+//*********************************************************************************************************
+final class Gallery {
+    final int m_nCapacity;
+    int m_nCount = 0;
+    final String[] m_bfID;
+    final String[][] m_bfPart;
+    final byte[] m_bfPtr;
+    final byte[][] m_bfRec;
+    final TemplateIndex m_hIndex;
+
+    //-----------------------------------------------------------------------------------------------------//
+    Gallery(int capacity) {
+        m_nCapacity = capacity;
+        m_bfID = new String[capacity];
+        m_bfPart = new String[capacity][];
+        m_bfPtr = new byte[capacity*LAPI.FPINFO_SIZE];
+        m_bfRec = new byte[capacity][];
+        m_hIndex = new TemplateIndex(capacity);
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    private Gallery(Gallery g) {
+        m_nCapacity = g.m_nCapacity;
+        m_nCount = g.m_nCount;
+        m_bfID = Arrays.copyOf(g.m_bfID, g.m_nCapacity);
+        m_bfPart = Arrays.copyOf(g.m_bfPart, g.m_nCapacity);
+        m_bfPtr = Arrays.copyOf(g.m_bfPtr, g.m_bfPtr.length);
+        m_bfRec = Arrays.copyOf(g.m_bfRec, g.m_nCapacity);
+        m_hIndex = g.m_hIndex.Copy();
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    Gallery Copy() {
+        return new Gallery(this);
+    }
+    //*********************************************************************************************************
+    // Purpose   : Append record to gallery
+    // Function  : Add
+    // Arguments :
+    //			(In) : String id : record id
+    //			(In) : String[] part : partition tags, null - none
+    //			(In) : byte[] itemplate : template of record, FPINFO_SIZE bytes are copied
+    // Return    : boolean : false if gallery is full
+    //*********************************************************************************************************
+    boolean Add(String id, String[] part, byte[] itemplate) {
+        if (m_nCount >= m_nCapacity) return false;
+        int n = Math.min(itemplate.length, LAPI.FPINFO_SIZE);
+        int off = m_nCount*LAPI.FPINFO_SIZE;
+        System.arraycopy(itemplate, 0, m_bfPtr, off, n);
+        Arrays.fill(m_bfPtr, off + n, off + LAPI.FPINFO_SIZE, (byte)0);
+        m_bfID[m_nCount] = id;
+        m_bfPart[m_nCount] = part;
+        m_bfRec[m_nCount] = Arrays.copyOfRange(m_bfPtr, off, off + LAPI.FPINFO_SIZE);
+        m_hIndex.Put(m_nCount, m_bfPtr, off);
+        m_nCount ++;
+        return true;
+    }
+    //*********************************************************************************************************
+    // Purpose   : Remove record by moving the last record into its place
+    // Function  : Remove
+    // Arguments :
+    //			(In) : int i : index of record
+    // Return    : none
+    //*********************************************************************************************************
+    void Remove(int i) {
+        if (i < 0 || i >= m_nCount) return;
+        int last = m_nCount - 1;
+        m_bfID[i] = m_bfID[last];
+        m_bfPart[i] = m_bfPart[last];
+        m_bfRec[i] = m_bfRec[last];
+        System.arraycopy(m_bfPtr, last*LAPI.FPINFO_SIZE, m_bfPtr, i*LAPI.FPINFO_SIZE, LAPI.FPINFO_SIZE);
+        m_hIndex.Remove(i);
+        m_bfID[last] = null;
+        m_bfPart[last] = null;
+        m_bfRec[last] = null;
+        m_nCount --;
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    int Find(String id) {
+        if (id == null || id.isEmpty()) return -1;
+        for (int i = 0; i < m_nCount; i ++) {
+            if (m_bfID[i].equals(id)) return i;
+        }
+        return -1;
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    boolean InPartitions(int i, Set<String> partitions) {
+        if (i < 0 || i >= m_nCount || m_bfPart[i] == null) return false;
+        for (String tag : m_bfPart[i]) {
+            if (partitions.contains(tag)) return true;
+        }
+        return false;
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    int SelectPartitions(Set<String> partitions, int[] slots) {
+        int n = 0;
+        for (int i = 0; i < m_nCount; i ++) {
+            if (InPartitions(i, partitions)) slots[n ++] = i;
+        }
+        return n;
+    }
+}
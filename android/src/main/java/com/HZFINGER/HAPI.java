@@ -1,12 +1,16 @@
 package com.HZFINGER;
 
-import android.app.Activity;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.os.Handler;
+import android.util.Log;
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Set;
 
 public class HAPI {
     class DATABASE {
@@ -16,12 +20,16 @@ public class HAPI {
         public static final String COLUMN_ID = "_id";
         public static final String COLUMN_NAME = "name";
         public static final String COLUMN_FPDATA = "data";
+        public static final String COLUMN_PARTITION = "part";
         private static final String DATABASE_NAME = "fprecord.db";
         private static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " ("
                 + COLUMN_ID + " INTEGER PRIMARY KEY,"
                 + COLUMN_NAME + " TEXT,"
-                + COLUMN_FPDATA + " BLOB"
+                + COLUMN_FPDATA + " BLOB,"
+                + COLUMN_PARTITION + " TEXT"
                 + ");";
+        private static final String ADD_PARTITION = "ALTER TABLE " + TABLE_NAME
+                + " ADD COLUMN " + COLUMN_PARTITION + " TEXT;";
         SQLiteDatabase db;
         
         DATABASE(Context context) {
@@ -31,6 +39,22 @@ public class HAPI {
             if ( bFile==false ) {
                 db.execSQL(CREATE_TABLE);
             }
+            else if (!hasColumn(COLUMN_PARTITION)) {
+                db.execSQL(ADD_PARTITION);
+            }
+        }
+
+        private boolean hasColumn(String column) {
+            Cursor c = db.rawQuery("PRAGMA table_info(" + TABLE_NAME + ")", null);
+            try {
+                int nameIndex = c.getColumnIndex("name");
+                while (c.moveToNext()) {
+                    if (column.equals(c.getString(nameIndex))) return true;
+                }
+                return false;
+            } finally {
+                c.close();
+            }
         }
         
         public int deleteRow(String where, String[] whereArgs) {
@@ -48,6 +72,9 @@ public class HAPI {
             Cursor c = db.query(TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
             return c;
         }
+        public void close() {
+            if (db.isOpen()) db.close();
+        }
     }
     //*********************************************************************************************************
     //*********************************************************************************************************
@@ -91,6 +118,8 @@ public class HAPI {
     public static final int CONFIG_FINGER_THESHOLD = 0;
     public static final int CONFIG_ENROLL_THESHOLD = 1;
     public static final int CONFIG_MATCH_THESHOLD = 2;
+    public static final int CONFIG_PREFILTER_TOPK = 3;
+    public static final int CONFIG_HOTSET_SIZE = 4;
 
     //-----------------The below defines object variables for CALLBACK of Activity-------------------------//.
     private Handler m_fHandler = null;
@@ -101,43 +130,101 @@ public class HAPI {
     static final int COLUMN_ID_INDEX = 0;
     static final int COLUMN_NAME_INDEX = 1;
     static final int COLUMN_FPDATA_INDEX = 2;
+    static final int COLUMN_PARTITION_INDEX = 3;
     static final String[] PROJECTION = new String[] {
             DATABASE.COLUMN_ID, 	// 0
             DATABASE.COLUMN_NAME, 	// 1
             DATABASE.COLUMN_FPDATA, // 2
+            DATABASE.COLUMN_PARTITION, // 3
     };
     public int m_nDbCnt = 0;
-    String[] m_bfDBID = new String[RECORD_MAX_NUM];
-    byte[] m_bfDBPtr = new byte[RECORD_MAX_NUM*LAPI.FPINFO_SIZE];
+
+    //-----------------The below defines object variables for in-memory gallery of DATABASE------------------//.
+    //  m_hGallery is replaced as a whole (copy-on-write), never modified in place after publishing.
+    static final int REFRESH_PROGRESS_INTERVAL = 200;
+    static final int REFRESH_WAIT_TIMEOUT = 10000;             // ms, operations wait for first refresh at most
+    private volatile Gallery m_hGallery = new Gallery(RECORD_MAX_NUM);
+    private final Object m_hGalleryLock = new Object();
+    private int m_nGalleryGen = 0;
+    private Thread m_hRefreshThread = null;
+    private boolean m_bRefreshAgain = false;
+    private volatile boolean m_bClosed = false;
+
+    //-----------------The below defines pool of per-operation contexts---------------------------------------//.
+    // Each operation takes its scratch buffers from the pool, so operations may run on several threads.
+    static final int CONTEXT_POOL_SIZE = 4;
+    private final ArrayDeque<OpContext> m_hContextPool = new ArrayDeque<>();
+    // Captures run one at a time on the device; template creation and matching of other operations go on meanwhile.
+    private final Object m_hCaptureLock = new Object();
+
+    //-----------------The below defines object variables for hot-set cache of 1:N Matching------------------//.
+    static final int DEF_HOTSET_SIZE = 64;
+    private final HotSetCache m_hHotSet = new HotSetCache(DEF_HOTSET_SIZE);
+
+    //-----------------The below defines object variable for archive of captured frames---------------------//.
+    private volatile FrameArchive m_hArchive = null;
 
     //------------------------The below defines variables for error code ----------------------------------//
-    int m_errCode;
-    int m_nCaptureTime, m_nFeatureTime, m_nMatchTime;
+    // Error code and times of the last operation finished on any thread; Result of each operation has its own.
+    volatile int m_errCode;
+    volatile int m_nCaptureTime, m_nFeatureTime, m_nMatchTime;
     
     //--------------------The below defines object variables for LAPI Library------------------------------//.
-    private LAPI m_hLIB;
-    public long m_hDev= 0;
+    private LAPI m_hOwnLIB;             // context of OpenDevice
+    private volatile LAPI m_hLIB;       // context m_hDev belongs to, see AttachDevice
+    public volatile long m_hDev= 0;
     private byte[] m_image = new byte[LAPI.WIDTH*LAPI.HEIGHT];
-    private byte[] qr_minutiae = new byte[LAPI.FPINFO_SIZE];
-    private byte[] minutiae = new byte[LAPI.FPINFO_SIZE];
-    private byte[] itemplate = new byte[LAPI.FPINFO_SIZE];
-    private byte[] itemplateToMatch = new byte[LAPI.FPINFO_SIZE];
-    private byte[] itemplateToMatched = new byte[LAPI.FPINFO_SIZE];
-    private byte[] itemplateToSearch = new byte[LAPI.FPINFO_SIZE];
     int DefFingerTheshold = LAPI.DEF_FINGER_SCORE;
     int DefEnrollTheshold = LAPI.DEF_QUALITY_SCORE;
     int DefMatchTheshold = LAPI.DEF_MATCH_SCORE;
-    boolean m_bCancel = false;
+    int DefPrefilterTopK = 0;
+    // Incremented by DoCancel : operations started before it are canceled, later ones are not.
+    private volatile int m_nCancelGen = 0;
+
+    //*********************************************************************************************************
+    // Purpose   : Result of one operation. Each call returns its own, so calls on other threads
+    //                  do not overwrite error code and times of it.
+    //*********************************************************************************************************
+    public static class Result {
+        public int errCode = ERROR_NONE;
+        public String id = "";          // record enrolled, verified or identified, "" if none
+        public int score = 0;           // match score against id
+        public int quality = 0;         // quality of template created from captured image
+        public int captureTime = 0;     // ms
+        public int featureTime = 0;     // ms
+        public int matchTime = 0;       // ms
+        public boolean IsMatched() {
+            return errCode == ERROR_NONE && !id.isEmpty();
+        }
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    // Scratch buffers of one operation, taken from pool for the duration of the call.
+    static class OpContext {
+        final byte[] image = new byte[LAPI.WIDTH*LAPI.HEIGHT];
+        final byte[] minutiae = new byte[LAPI.FPINFO_SIZE];
+        final byte[] qrMinutiae = new byte[LAPI.FPINFO_SIZE];
+        final int[] subIdx = new int[RECORD_MAX_NUM];
+        final int[] candIdx = new int[RECORD_MAX_NUM];
+        byte[] subPtr = null;
+        long hDev = 0;                  // device handle of native matching, m_hDev unless caller gives one
+        LAPI lib = null;                // context hDev belongs to
+    }
 	
     //*********************************************************************************************************
     //-----------------------------------------------------------------------------------------------------//
-    public HAPI(Activity c, Handler cHandler) {
+    public HAPI(Context c, Handler cHandler) {
+        this(c, cHandler, new LAPI.Config());
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    public HAPI(Context c, Handler cHandler, LAPI.Config config) {
         if (c==null) return;
         m_fHandler = cHandler;
-        m_hLIB = new LAPI(c);
+        m_hOwnLIB = new LAPI(c, config);
+        m_hLIB = m_hOwnLIB;
         m_hDB = new DATABASE(c);
     }
     //-----------------------------------------------------------------------------------------------------//
+    // Error code of the last operation finished, use Result of *Ex functions when called on several threads.
     public int GetErrorCode(){
         return m_errCode;
     }
@@ -147,6 +234,8 @@ public class HAPI {
             case CONFIG_FINGER_THESHOLD: return DefFingerTheshold;
             case CONFIG_ENROLL_THESHOLD: return DefEnrollTheshold;
             case CONFIG_MATCH_THESHOLD: return DefMatchTheshold;
+            case CONFIG_PREFILTER_TOPK: return DefPrefilterTopK;
+            case CONFIG_HOTSET_SIZE: return m_hHotSet.GetCapacity();
         }
         return 0;
     }
@@ -156,13 +245,17 @@ public class HAPI {
             case CONFIG_FINGER_THESHOLD:  	DefFingerTheshold = newThres;     break;
             case CONFIG_ENROLL_THESHOLD:   DefEnrollTheshold = newThres; break;
             case CONFIG_MATCH_THESHOLD:    DefMatchTheshold = newThres; break;
+            case CONFIG_PREFILTER_TOPK:    DefPrefilterTopK = Math.max(0, Math.min(newThres, RECORD_MAX_NUM)); break;
+            case CONFIG_HOTSET_SIZE:       m_hHotSet.SetCapacity(Math.min(newThres, RECORD_MAX_NUM)); break;
         }
     }
     //-----------------------------------------------------------------------------------------------------//
+    // Cancels captures of all operations in progress.
     public void DoCancel(){
-        m_bCancel = true;
+        m_nCancelGen ++;
     }
     //-----------------------------------------------------------------------------------------------------//
+    // Times of the last operation finished, use Result of *Ex functions when called on several threads.
     public int GetProcessTime(int icase){
         switch (icase) {
             case 0: return m_nCaptureTime;
@@ -172,9 +265,50 @@ public class HAPI {
         return 0;
     }
     //-----------------------------------------------------------------------------------------------------//
+    public HotSetCache GetHotSetCache(){
+        return m_hHotSet;
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    // Frames captured by Enroll/Verify/Identify are archived with id and quality, null - no archive.
+    public void SetArchive(FrameArchive archive){
+        m_hArchive = archive;
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    // Frame is archived with its image quality (GetImageQuality), which ranks frames of a user.
+    void ArchiveImage (OpContext ctx, byte[] image, String id) {
+        FrameArchive a = m_hArchive;
+        if (a != null) a.Add(image, id, ctx.lib.GetImageQuality(ctx.hDev, image));
+    }
+    //-----------------------------------------------------------------------------------------------------//
     void SendMessage (int message,int arg1, int arg2, Object obj) {
         m_fHandler.obtainMessage(message, arg1, arg2, obj).sendToTarget();
     }
+    //-----------------------------------------------------------------------------------------------------//
+    OpContext AcquireContext() {
+        OpContext ctx;
+        synchronized (m_hContextPool) {
+            ctx = m_hContextPool.poll();
+        }
+        if (ctx == null) ctx = new OpContext();
+        ctx.lib = m_hLIB;
+        ctx.hDev = m_hDev;
+        return ctx;
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    void ReleaseContext(OpContext ctx) {
+        synchronized (m_hContextPool) {
+            if (m_hContextPool.size() < CONTEXT_POOL_SIZE) m_hContextPool.push(ctx);
+        }
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    // Keeps error code and times of finished operation for GetErrorCode and GetProcessTime.
+    Result Finish(Result r) {
+        m_errCode = r.errCode;
+        m_nCaptureTime = r.captureTime;
+        m_nFeatureTime = r.featureTime;
+        m_nMatchTime = r.matchTime;
+        return r;
+    }
     //*********************************************************************************************************
     // Purpose   : Initialize HAPI & LAPI
     // Function  : OpenDevice
@@ -185,6 +319,8 @@ public class HAPI {
     public boolean OpenDevice(boolean commFlag) {
         m_errCode = ERROR_NONE;
 		
+        m_hDev = 0;
+        m_hLIB = m_hOwnLIB;
         if (commFlag) m_hDev = m_hLIB.OpenDeviceEx(LAPI.SCSI_MODE);
 		else m_hDev = m_hLIB.OpenDeviceEx(LAPI.SPI_MODE);
         if (m_hDev==0) {
@@ -201,9 +337,44 @@ public class HAPI {
 	// Return    : none   
     //*********************************************************************************************************
     public void CloseDevice() {
-        if (m_hDev != 0) {
+        if (m_hDev != 0 && m_hLIB == m_hOwnLIB) {
             m_hLIB.CloseDeviceEx(m_hDev);
+            m_hDev = 0;
+        }
+    }
+    //*********************************************************************************************************
+    // Purpose   : Release HAPI : stop refreshing of Database, close device and Database.
+    //                  Background refresh is stopped at the next record and waited for at most
+    //                  REFRESH_WAIT_TIMEOUT ms. HAPI must not be used after Close.
+    // Function  : Close
+    // Arguments : none
+	// Return    : none
+    //*********************************************************************************************************
+    public void Close() {
+        synchronized (m_hGalleryLock) {
+            m_bClosed = true;
+            m_bRefreshAgain = false;
         }
+        WaitForRefresh(REFRESH_WAIT_TIMEOUT);
+        SetArchive(null);
+        CloseDevice();
+        m_hDB.close();
+    }
+    //*********************************************************************************************************
+    // Purpose   : Use device opened by another LAPI context, e.g. a device session of the caller.
+    //                  Capture and matching run through that context, so native callbacks reach its USB
+    //                  connection. The caller keeps owning the device and attaches again when it is reopened.
+    // Function  : AttachDevice
+    // Arguments :
+    //			(In) : LAPI lib : context which opened the device, null - detach
+    //			(In) : long hDev : device handle returned by lib
+    // Return    : none
+    //*********************************************************************************************************
+    public synchronized void AttachDevice(LAPI lib, long hDev) {
+        // Handle is cleared first : operations starting meanwhile fail with ERROR_NONE_DEVICE
+        m_hDev = 0;
+        m_hLIB = (lib != null) ? lib : m_hOwnLIB;
+        m_hDev = (lib != null) ? hDev : 0;
     }
     //*********************************************************************************************************
 	// Purpose   : Get image from module 
@@ -211,18 +382,54 @@ public class HAPI {
 	// Arguments : 
 	//			(In) : boolean isCheckLive : true - check liveness, false - uncheck
 	//			(In) : int secLevel : level for checking liveness[1~5]
-	// Return    : byte[] : return image buffer   
+	// Return    : byte[] : return image buffer, overwritten by next call
     //*********************************************************************************************************
     public static final int WIDTH  = LAPI.WIDTH;
     public static final int HEIGHT  = LAPI.HEIGHT;
     public byte[] GetImage (boolean isCheckLive, int secLevel)
     {
-        m_nCaptureTime = 0;
-        int startTime = (int)System.currentTimeMillis();
-        m_hLIB.GetImage(m_hDev, m_image);
-        m_hLIB.IsPressFingerEx(m_hDev, m_image, isCheckLive, LAPI.LIVECHECK_THESHOLD[secLevel - 1]);
-        m_nCaptureTime = (int)System.currentTimeMillis() - startTime;
-        return m_image;
+        synchronized (m_hCaptureLock) {
+            m_nCaptureTime = 0;
+            int startTime = (int)System.currentTimeMillis();
+            m_hLIB.GetImage(m_hDev, m_image);
+            m_hLIB.IsPressFingerEx(m_hDev, m_image, isCheckLive, LAPI.LIVECHECK_THESHOLD[secLevel - 1]);
+            m_nCaptureTime = (int)System.currentTimeMillis() - startTime;
+            return m_image;
+        }
+    }
+    //*********************************************************************************************************
+    // Purpose   : Capture image of pressed finger for an operation
+    // Function  : CaptureFinger
+	// Arguments :
+	//			(In) : byte[] image : buffer of operation for captured image
+	//			(In) : boolean isCheckLive : true - check liveness, false - uncheck
+	//			(In) : int secLevel : level for checking liveness[1~5]
+	//			(In) : int cancelGen : cancel generation when operation started
+	//			(Out) : Result r : capture time
+	// Return    : int : error code
+    //*********************************************************************************************************
+    int CaptureFinger (byte[] image, boolean isCheckLive, int secLevel, int cancelGen, Result r) {
+        synchronized (m_hCaptureLock) {
+            int ret = 0;
+            while (ret<DefFingerTheshold) {
+                if (m_nCancelGen != cancelGen) return ERROR_DO_CANCELED;
+                int startTime = (int)System.currentTimeMillis();
+                ret = m_hLIB.GetImage(m_hDev, image);
+                if (ret == LAPI.NOTCALIBRATED) return ERROR_NOT_CALIBRATED;
+                else if (ret == LAPI.FALSE) return ERROR_NONE_CAPIMAGE;
+                r.captureTime = (int)System.currentTimeMillis() - startTime;
+                ret = m_hLIB.IsPressFingerEx(m_hDev, image, isCheckLive, LAPI.LIVECHECK_THESHOLD[secLevel - 1]);
+                if (ret == LAPI.FAKEFINGER) return ERROR_FAKE_FINGER;
+            }
+        }
+        return ERROR_NONE;
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    // Creates template of image into itemplate, returns its quality.
+    int CreateTemplate (byte[] image, byte[] itemplate, boolean formatFlag) {
+        Arrays.fill(itemplate, (byte)0);
+        if (formatFlag) return m_hLIB.CreateISOTemplate(m_hDev,image,itemplate);
+        return m_hLIB.CreateANSITemplate(m_hDev,image,itemplate);
     }
     //*********************************************************************************************************
     // Purpose   : Request calibration to module, used after bad image is captured,
@@ -252,79 +459,83 @@ public class HAPI {
     // Return    : boolean
     //*********************************************************************************************************
     public boolean Enroll (String regId, boolean formatFlag, boolean isCheckLive, int secLevel){
-        int k, res, itry, qr, cnt;
+        return Enroll(regId, formatFlag, isCheckLive, secLevel, null);
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    public boolean Enroll (String regId, boolean formatFlag, boolean isCheckLive, int secLevel, String partition){
+        return EnrollEx(regId, formatFlag, isCheckLive, secLevel, partition).errCode == ERROR_NONE;
+    }
+    //*********************************************************************************************************
+    // Purpose   : Enroll fingerprint in DATABASE with partition tags
+    // Function  : EnrollEx
+	// Arguments :
+    //			(In) : String regId : record tag to be registered in DATABASE
+    //			(In) : boolean formatFlag : false-ANSI format, true-ISO format
+    //			(In) : boolean isCheckLive : true - check liveness, false - uncheck
+    //			(In) : int secLevel : level for checking liveness[1~5]
+    //			(In) : String partition : comma separated partition tags(site, group, shift, ...), null - none
+    // Return    : Result : id is regId if enrolled, quality of enrolled template
+    //*********************************************************************************************************
+    public Result EnrollEx (String regId, boolean formatFlag, boolean isCheckLive, int secLevel, String partition){
+        Result r = new Result();
+        int cancelGen = m_nCancelGen;
+        if (m_hDev==0) { r.errCode = ERROR_NONE_DEVICE; return Finish(r);}
+        if (regId==null || regId.isEmpty()) { r.errCode = ERROR_ARGUMENTS; return Finish(r);}
 
-        m_errCode = ERROR_NONE;
-        m_bCancel = false;
-        if (m_hDev==0) { m_errCode = ERROR_NONE_DEVICE; return false;}
-        if (regId==null || regId.isEmpty()) { m_errCode = ERROR_ARGUMENTS; return false;}
-    
-		if (FindRecord (regId) != null) { 
-            if (!DeleteRecord (regId)) { m_errCode = ERROR_NEG_DELETE; return false;}
+		if (m_hGallery.Find (regId) >= 0) {
+            if (RemoveRecord (regId) != ERROR_NONE) { r.errCode = ERROR_NEG_DELETE; return Finish(r);}
         }
     
-        cnt = 0;
-        itry = 0;
-        qr = 0;
-        for ( k = 0; k < LAPI.FPINFO_SIZE; k ++ ) qr_minutiae[k] = 0;
+        OpContext ctx = AcquireContext();
+        try {
+            int k, res, itry, qr, cnt;
+            cnt = 0;
+            itry = 0;
+            qr = 0;
+            Arrays.fill(ctx.qrMinutiae, (byte)0);
 
-        SendMessage(MSG_PUT_FINGER,0,0,"");
-		while ( itry < 10 ) 
-        {
-            //Capture image
-            int ret = 0;
-            while (ret<DefFingerTheshold) {
-                if (m_bCancel == true) {
-                    m_errCode = ERROR_DO_CANCELED;
-                    return false;
+            SendMessage(MSG_PUT_FINGER,0,0,"");
+            while ( itry < 10 )
+            {
+                //Capture image
+                r.errCode = CaptureFinger(ctx.image, isCheckLive, secLevel, cancelGen, r);
+                if (r.errCode != ERROR_NONE) return Finish(r);
+                SendMessage(MSG_FINGER_CAPTURED,LAPI.WIDTH,LAPI.HEIGHT,ctx.image.clone());
+
+                //Create Template
+                int startTime = (int)System.currentTimeMillis();
+                res = CreateTemplate(ctx.image, ctx.minutiae, formatFlag);
+                r.featureTime = (int)System.currentTimeMillis() - startTime;
+                ArchiveImage(ctx, ctx.image, regId);
+
+                if (qr < res) {
+                    qr = res;
+                    for ( k = 0; k < LAPI.FPINFO_SIZE; k ++ ) ctx.qrMinutiae[k] = ctx.minutiae[k];
                 }
-                ret = m_hLIB.GetImage(m_hDev, m_image);
-                if (ret == LAPI.NOTCALIBRATED) {
-                    m_errCode = ERROR_NOT_CALIBRATED;
-                    return false;
+                else if (qr>0 && qr==res) {
+                    cnt ++;
+                    if (cnt==3) break;
                 }
-                else if (ret == LAPI.FALSE) {
-                    m_errCode = ERROR_NONE_CAPIMAGE;
-                    return false;
-                }
-                ret = m_hLIB.IsPressFingerEx(m_hDev, m_image, isCheckLive, LAPI.LIVECHECK_THESHOLD[secLevel - 1]);
-                if (ret == LAPI.FAKEFINGER) {
-                    m_errCode = ERROR_FAKE_FINGER;
-                    return false;
+                else if (qr>0) {
+                    break;
                 }
+                SendMessage(MSG_PUT_FINGER,itry,res,"");
+                itry ++;
             }
-            SendMessage(MSG_FINGER_CAPTURED,LAPI.WIDTH,LAPI.HEIGHT,m_image);
   
-            //Create Template
-            for ( k = 0; k < LAPI.FPINFO_SIZE; k ++ ) minutiae[k] = 0;
-
-            if (formatFlag)
-                res = m_hLIB.CreateISOTemplate(m_hDev,m_image,minutiae);
-            else
-                res = m_hLIB.CreateANSITemplate(m_hDev,m_image,minutiae);
-
-            if (qr < res) {
-                qr = res;
-                for ( k = 0; k < LAPI.FPINFO_SIZE; k ++ ) qr_minutiae[k] = minutiae[k];
-            }
-            else if (qr>0 && qr==res) {
-                cnt ++;
-                if (cnt==3) break;
+            r.quality = qr;
+            if (qr < DefEnrollTheshold ) {
+                r.errCode = ERROR_LOW_QUALITY;
+                return Finish(r);
             }
-            else if (qr>0) {
-                break;
-            }
-            SendMessage(MSG_PUT_FINGER,itry,res,"");
-            itry ++;
-        }
-	
-        if (qr < DefEnrollTheshold ) {
-			m_errCode = ERROR_LOW_QUALITY; 
-            return false;
+
+            //Register Template as appointed Id
+            r.errCode = InsertRecord (regId,ctx.qrMinutiae,partition);
+            if (r.errCode == ERROR_NONE) r.id = regId;
+            return Finish(r);
+        } finally {
+            ReleaseContext(ctx);
         }
-		
-		//Register Template as appointed Id 
-        return AddNewRecord (regId,qr_minutiae);
     }
     //*********************************************************************************************************
 	// Purpose   : Verify fingerprint through 1:1 Matching against to DATABSE 
@@ -337,78 +548,62 @@ public class HAPI {
 	// Return    : boolean
     //*********************************************************************************************************
     public boolean Verify (String veriId, boolean formatFlag, boolean isCheckLive, int secLevel){
-        int startTime;
-        m_nCaptureTime = 0;
-        m_nFeatureTime = 0;
-        m_nMatchTime = 0;
+        return VerifyEx(veriId, formatFlag, isCheckLive, secLevel).IsMatched();
+    }
+    //*********************************************************************************************************
+	// Purpose   : Verify fingerprint through 1:1 Matching against to DATABSE
+    // Function  : VerifyEx
+	// Arguments :
+    //			(In) : String veriId : record tag to be verified
+    //			(In) : boolean formatFlag : false-ANSI format, true-ISO format
+    //			(In) : boolean isCheckLive : true - check liveness, false - uncheck
+    //			(In) : int secLevel : level for checking liveness[1~5]
+	// Return    : Result : id is veriId if matched, score against veriId
+    //*********************************************************************************************************
+    public Result VerifyEx (String veriId, boolean formatFlag, boolean isCheckLive, int secLevel){
+        Result r = new Result();
+        int cancelGen = m_nCancelGen;
 
-        m_errCode = ERROR_NONE;
-        m_bCancel = false;
-    	
-        if (m_hDev==0) { m_errCode = ERROR_NONE_DEVICE; return false;}
-        if (m_nDbCnt==0) { m_errCode = ERROR_EMPTY_DADABASE; return false;}
-        itemplateToMatched = FindRecord (veriId);
-    	if (itemplateToMatched == null) { 
-            m_errCode = ERROR_NEG_FIND;
-            return false;
+        if (m_hDev==0) { r.errCode = ERROR_NONE_DEVICE; return Finish(r);}
+        if (WaitGallery().m_nCount==0) { r.errCode = ERROR_EMPTY_DADABASE; return Finish(r);}
+        //Template of record is used as is, without copying
+        Gallery g = m_hGallery;
+        int recIndex = g.Find (veriId);
+    	if (recIndex < 0) {
+            r.errCode = ERROR_NEG_FIND;
+            return Finish(r);
         }
  	    
         SendMessage(MSG_PUT_FINGER,0,0,"");
         SendMessage(MSG_FINGER_CAPTURED,LAPI.WIDTH,LAPI.HEIGHT,null);
-        int ret = 0;
         
-        //Capture Image
-        while (ret<DefFingerTheshold) {
-            if (m_bCancel == true) {
-                m_errCode = ERROR_DO_CANCELED;
-                return false;
-            }
-            startTime = (int)System.currentTimeMillis();
-            ret = m_hLIB.GetImage(m_hDev,m_image);
-            if (ret == LAPI.NOTCALIBRATED) {
-                m_errCode = ERROR_NOT_CALIBRATED;
-                return false;
-            }
-            else if (ret == LAPI.FALSE) {
-                m_errCode = ERROR_NONE_CAPIMAGE;
-                return false;
-            }
-            m_nCaptureTime = (int)System.currentTimeMillis();
-            m_nCaptureTime = m_nCaptureTime - startTime;
-            ret = m_hLIB.IsPressFingerEx(m_hDev, m_image, isCheckLive, LAPI.LIVECHECK_THESHOLD[secLevel - 1]);
-            if (ret == LAPI.FAKEFINGER) {
-                m_errCode = ERROR_FAKE_FINGER;
-                return false;
-            }
-        }
-        SendMessage(MSG_FINGER_CAPTURED,LAPI.WIDTH,LAPI.HEIGHT,m_image);
-        
-        //Create Template
-        int res;
-        for ( int k = 0; k < LAPI.FPINFO_SIZE; k ++ ) itemplateToMatch[k] = 0;
-        startTime = (int)System.currentTimeMillis();
+        OpContext ctx = AcquireContext();
+        try {
+            //Capture Image
+            r.errCode = CaptureFinger(ctx.image, isCheckLive, secLevel, cancelGen, r);
+            if (r.errCode != ERROR_NONE) return Finish(r);
+            SendMessage(MSG_FINGER_CAPTURED,LAPI.WIDTH,LAPI.HEIGHT,ctx.image.clone());
 
-        if (formatFlag)
-            res = m_hLIB.CreateISOTemplate(m_hDev,m_image,itemplateToMatch);
-        else
-            res = m_hLIB.CreateANSITemplate(m_hDev,m_image,itemplateToMatch);
+            //Create Template
+            int startTime = (int)System.currentTimeMillis();
+            int res = CreateTemplate(ctx.image, ctx.minutiae, formatFlag);
+            r.featureTime = (int)System.currentTimeMillis() - startTime;
+            r.quality = res;
+            ArchiveImage(ctx, ctx.image, veriId);
+            if (res==0) {
+                r.errCode = ERROR_LOW_QUALITY;
+                return Finish(r);
+            }
 
-        m_nFeatureTime = (int)System.currentTimeMillis();
-        m_nFeatureTime = m_nFeatureTime - startTime;
-        if (res==0) {
-            m_errCode = ERROR_LOW_QUALITY;
-            return false;
-        }
-				
-        //1:1 Matching
-        startTime = (int)System.currentTimeMillis();
-        res = m_hLIB.CompareTemplates(m_hDev,itemplateToMatch,itemplateToMatched);
-        m_nMatchTime = (int)System.currentTimeMillis();
-        m_nMatchTime = m_nMatchTime - startTime;
-        if (res>=DefMatchTheshold) {
-            return true;
+            //1:1 Matching
+            startTime = (int)System.currentTimeMillis();
+            r.score = m_hLIB.CompareTemplates(m_hDev,ctx.minutiae,g.m_bfRec[recIndex]);
+            r.matchTime = (int)System.currentTimeMillis() - startTime;
+            if (r.score>=DefMatchTheshold) r.id = veriId;
+            return Finish(r);
+        } finally {
+            ReleaseContext(ctx);
         }
-        return false;
     }
     //*********************************************************************************************************
 	// Purpose   : Identify fingerprint through 1:N Matching against to DATABSE  
@@ -420,110 +615,379 @@ public class HAPI {
     // Return    : String   :  record id searched in DATABASE.
     //*********************************************************************************************************
     public String Identify (boolean formatFlag, boolean isCheckLive, int secLevel){
-        int startTime;
-        m_nCaptureTime = 0;
-        m_nFeatureTime = 0;
-        m_nMatchTime = 0;
-
-        m_bCancel = false;
-        m_errCode = ERROR_NONE;
-        if (m_hDev==0) { m_errCode = ERROR_NONE_DEVICE; return "";}
-        if (m_nDbCnt==0) { m_errCode = ERROR_EMPTY_DADABASE; return "";}
+        return Identify(formatFlag, isCheckLive, secLevel, null);
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    public String Identify (boolean formatFlag, boolean isCheckLive, int secLevel, Set<String> partitions){
+        return IdentifyEx(formatFlag, isCheckLive, secLevel, partitions).id;
+    }
+    //*********************************************************************************************************
+	// Purpose   : Identify fingerprint through 1:N Matching against to appointed partitions of DATABSE
+    // Function  : IdentifyEx
+	// Arguments :
+    //			(In) : boolean formatFlag : false-ANSI format, true-ISO format
+    //			(In) : boolean isCheckLive : true - check liveness, false - uncheck
+    //			(In) : int secLevel : level for checking liveness[1~5]
+    //			(In) : Set<String> partitions : records tagged with any of these are searched, null - all records
+    // Return    : Result : id and score of record searched in DATABASE, id is "" if none
+    //*********************************************************************************************************
+    public Result IdentifyEx (boolean formatFlag, boolean isCheckLive, int secLevel, Set<String> partitions){
+        Result r = new Result();
+        int cancelGen = m_nCancelGen;
+        if (m_hDev==0) { r.errCode = ERROR_NONE_DEVICE; return Finish(r);}
+        if (WaitGallery().m_nCount==0) { r.errCode = ERROR_EMPTY_DADABASE; return Finish(r);}
         SendMessage(MSG_PUT_FINGER,0,0,"");
 
         SendMessage(MSG_FINGER_CAPTURED,LAPI.WIDTH,LAPI.HEIGHT,null);
-        //Capture Image
-        int ret = 0;
-        while (ret<DefFingerTheshold) {
-            if (m_bCancel == true) {
-                m_errCode = ERROR_DO_CANCELED;
-                return "";
+        OpContext ctx = AcquireContext();
+        try {
+            //Capture Image
+            r.errCode = CaptureFinger(ctx.image, isCheckLive, secLevel, cancelGen, r);
+            if (r.errCode != ERROR_NONE) return Finish(r);
+            SendMessage(MSG_FINGER_CAPTURED,LAPI.WIDTH,LAPI.HEIGHT,ctx.image.clone());
+
+            //Create Template
+            int startTime = (int)System.currentTimeMillis();
+            int res = CreateTemplate(ctx.image, ctx.minutiae, formatFlag);
+            r.featureTime = (int)System.currentTimeMillis() - startTime;
+            r.quality = res;
+            if (res==0) {
+                r.errCode = ERROR_LOW_QUALITY;
+                return Finish(r);
             }
+            SendMessage(MSG_ON_SEARCHING,res,0,"");
+
             startTime = (int)System.currentTimeMillis();
-            ret = m_hLIB.GetImage(m_hDev,m_image);
-            if (ret == LAPI.NOTCALIBRATED) {
-                m_errCode = ERROR_NOT_CALIBRATED;
-                return "";
+
+            //1:N Matching
+            Gallery g = m_hGallery;
+            int index = SearchGallery(ctx, g, ctx.minutiae, formatFlag, partitions);
+            if (index >= 0) {
+                r.id = g.m_bfID[index];
+                r.score = m_hLIB.CompareTemplates(m_hDev, ctx.minutiae, g.m_bfRec[index]);
             }
-            else if (ret == LAPI.FALSE) {
-                m_errCode = ERROR_NONE_CAPIMAGE;
-                return "";
+            ArchiveImage(ctx, ctx.image, r.id);
+
+            r.matchTime = (int)System.currentTimeMillis() - startTime;
+            return Finish(r);
+        } finally {
+            ReleaseContext(ctx);
+        }
+    }
+    //*********************************************************************************************************
+    // Purpose   : Identify given template through 1:N Matching against to DATABASE, without capture.
+    //                  Template may come from another terminal or from an earlier capture, so one capture
+    //                  can be searched several times (e.g. in different partitions), and capture can run on
+    //                  one thread while templates are searched on another.
+    // Function  : IdentifyTemplate
+	// Arguments :
+	//			(In) : byte[] itemplate : template to search, up to LAPI.FPINFO_SIZE bytes
+	//			(In) : boolean formatFlag : false-ANSI format, true-ISO format
+	//			(In) : Set<String> partitions : partitions to be searched, null - all records
+	// Return    : Result : id and score of record searched, id is "" if none
+    //*********************************************************************************************************
+    public Result IdentifyTemplate (byte[] itemplate, boolean formatFlag, Set<String> partitions){
+        return IdentifyTemplate(m_hLIB, m_hDev, itemplate, formatFlag, partitions);
+    }
+    //*********************************************************************************************************
+    // Purpose   : Identify given template on appointed device handle, e.g. one the caller holds open
+    //                  for the duration of the call while other threads may reconnect or close devices.
+    // Function  : IdentifyTemplate
+	// Arguments :
+	//			(In) : LAPI lib : context which opened hDev
+	//			(In) : long hDev : device handle of native matching
+	//			(In) : byte[] itemplate : template to search, up to LAPI.FPINFO_SIZE bytes
+	//			(In) : boolean formatFlag : false-ANSI format, true-ISO format
+	//			(In) : Set<String> partitions : partitions to be searched, null - all records
+	// Return    : Result : id and score of record searched, id is "" if none
+    //*********************************************************************************************************
+    public Result IdentifyTemplate (LAPI lib, long hDev, byte[] itemplate, boolean formatFlag, Set<String> partitions){
+        Result r = new Result();
+        if (lib==null || hDev==0) { r.errCode = ERROR_NONE_DEVICE; return Finish(r);}
+        if (itemplate==null || itemplate.length==0) { r.errCode = ERROR_ARGUMENTS; return Finish(r);}
+        Gallery g = WaitGallery();
+        if (g.m_nCount==0) { r.errCode = ERROR_EMPTY_DADABASE; return Finish(r);}
+
+        OpContext ctx = AcquireContext();
+        ctx.lib = lib;
+        ctx.hDev = hDev;
+        try {
+            byte[] probe = ctx.minutiae;
+            int n = Math.min(itemplate.length, LAPI.FPINFO_SIZE);
+            System.arraycopy(itemplate, 0, probe, 0, n);
+            Arrays.fill(probe, n, LAPI.FPINFO_SIZE, (byte)0);
+            int startTime = (int)System.currentTimeMillis();
+            int index = SearchGallery(ctx, g, probe, formatFlag, partitions);
+            if (index >= 0) {
+                r.id = g.m_bfID[index];
+                r.score = lib.CompareTemplates(hDev, probe, g.m_bfRec[index]);
             }
-            m_nCaptureTime = (int)System.currentTimeMillis();
-            m_nCaptureTime = m_nCaptureTime - startTime;
-            ret = m_hLIB.IsPressFingerEx(m_hDev, m_image, isCheckLive, LAPI.LIVECHECK_THESHOLD[secLevel - 1]);
-            if (ret == LAPI.FAKEFINGER) {
-                m_errCode = ERROR_FAKE_FINGER;
-                return "";
+            r.matchTime = (int)System.currentTimeMillis() - startTime;
+            return Finish(r);
+        } finally {
+            ReleaseContext(ctx);
+        }
+    }
+    //*********************************************************************************************************
+    // Purpose   : 1:N Matching against gallery, recently identified records first.
+    //                  Scratch arrays of pre-filter belong to the operation, so searches run in parallel.
+    // Function  : SearchGallery
+    // Arguments :
+    //			(In) : OpContext ctx : buffers of operation
+    //			(In) : Gallery g : gallery snapshot to be searched
+    //			(In) : byte[] itemplate : template to search
+    //			(In) : boolean formatFlag : false-ANSI format, true-ISO format
+    //			(In) : Set<String> partitions : partitions to be searched, null - all records
+    // Return    : int : index of record searched in gallery, else -1
+    //*********************************************************************************************************
+    int SearchGallery(OpContext ctx, Gallery g, byte[] itemplate, boolean formatFlag, Set<String> partitions) {
+        HotSetCache hot = m_hHotSet;
+        int index = -1;
+        long cacheNanos = 0, fullNanos = 0;
+        boolean bHit = false;
+        synchronized (hot) {
+            if (hot.GetCount() > 0) {
+                long t = System.nanoTime();
+                int slot = SearchArray(ctx, itemplate, formatFlag, hot.GetCount(), hot.m_bfPtr);
+                cacheNanos = System.nanoTime() - t;
+                if (slot >= 0) {
+                    index = g.Find(hot.Touch(slot));
+                    bHit = index >= 0 && (partitions == null || g.InPartitions(index, partitions));
+                }
             }
         }
-        SendMessage(MSG_FINGER_CAPTURED,LAPI.WIDTH,LAPI.HEIGHT,m_image);
-
-        //Create Template
-        for ( int k = 0; k < LAPI.FPINFO_SIZE; k ++ ) itemplateToSearch[k] = 0;
-        startTime = (int)System.currentTimeMillis();
-
-        int res = 0;
-        if (formatFlag)
-            res = m_hLIB.CreateISOTemplate(m_hDev,m_image,itemplateToSearch);
-        else
-            res = m_hLIB.CreateANSITemplate(m_hDev,m_image,itemplateToSearch);
-
-        m_nFeatureTime = (int)System.currentTimeMillis();
-        m_nFeatureTime = m_nFeatureTime - startTime;
-        if (res==0) {
-			m_errCode = ERROR_LOW_QUALITY; 
-            return "";
+        //Hit is confirmed against template of the gallery searched, which may differ from the cached one
+        if (bHit) bHit = ctx.lib.CompareTemplates(ctx.hDev, itemplate, g.m_bfRec[index]) >= DefMatchTheshold;
+        if (!bHit) {
+            long t = System.nanoTime();
+            index = SearchTemplates(ctx, g, itemplate, formatFlag, partitions);
+            fullNanos = System.nanoTime() - t;
+            if (index >= 0) CacheRecord(g, index);
         }
-        SendMessage(MSG_ON_SEARCHING,res,0,"");
-
-        startTime = (int)System.currentTimeMillis();
-
-        //1:N Matching
-        int index = 0;
+        hot.RecordLookup(bHit, cacheNanos, fullNanos);
+        return index;
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    // Puts record of gallery g into hot set unless a newer gallery has been published since g (gallery
+    // generation changed), so that a record deleted or updated meanwhile is not cached again.
+    void CacheRecord(Gallery g, int index) {
+        synchronized (m_hGalleryLock) {
+            if (g != m_hGallery) return;
+            m_hHotSet.Put(g.m_bfID[index], g.m_bfPtr, index*LAPI.FPINFO_SIZE);
+        }
+    }
+    //*********************************************************************************************************
+    // Purpose   : 1:N Matching against templates of gallery.
+    //                  If CONFIG_PREFILTER_TOPK is set, only the best candidates of pre-filter index are matched.
+    // Function  : SearchTemplates
+    // Arguments :
+    //			(In) : OpContext ctx : buffers of operation
+    //			(In) : Gallery g : gallery snapshot to be searched
+    //			(In) : byte[] itemplate : template to search
+    //			(In) : boolean formatFlag : false-ANSI format, true-ISO format
+    //			(In) : Set<String> partitions : partitions to be searched, null - all records
+    // Return    : int : index of record searched in gallery, else -1
+    //*********************************************************************************************************
+    int SearchTemplates(OpContext ctx, Gallery g, byte[] itemplate, boolean formatFlag, Set<String> partitions) {
+        int[] slots = null;
+        int n = g.m_nCount;
+        if (partitions != null) {
+            slots = ctx.subIdx;
+            n = g.SelectPartitions(partitions, slots);
+            if (n == 0) return -1;
+        }
+        int topK = DefPrefilterTopK;
+        if (topK > 0 && n > topK) {
+            int k = g.m_hIndex.Query(itemplate, topK, slots, n, ctx.candIdx);
+            if (k >= 0) return SearchSubset(ctx, g, itemplate, formatFlag, ctx.candIdx, k);
+        }
+        if (slots != null) return SearchSubset(ctx, g, itemplate, formatFlag, slots, n);
+        return SearchArray(ctx, itemplate, formatFlag, g.m_nCount, g.m_bfPtr);
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    static String[] ParsePartition(String partition) {
+        if (partition == null) return null;
+        String[] tags = partition.split(",");
+        int n = 0;
+        for (String tag : tags) {
+            tag = tag.trim();
+            if (!tag.isEmpty()) tags[n ++] = tag;
+        }
+        if (n == 0) return null;
+        return Arrays.copyOf(tags, n);
+    }
+    //*********************************************************************************************************
+    // Purpose   : 1:N Matching against packed template array
+    // Function  : SearchArray
+    // Arguments :
+    //			(In) : OpContext ctx : operation, its device handle and context are used
+    //			(In) : byte[] itemplate : template to search
+    //			(In) : boolean formatFlag : false-ANSI format, true-ISO format
+    //			(In) : int n : number of templates to be searched
+    //			(In) : byte[] templates : template array to be searched
+    // Return    : int : index of template searched inside template array, else -1
+    //*********************************************************************************************************
+    int SearchArray(OpContext ctx, byte[] itemplate, boolean formatFlag, int n, byte[] templates) {
+        int index;
         if (formatFlag)
-            index = m_hLIB.SearchingISOTemplates(m_hDev,itemplateToSearch, m_nDbCnt,m_bfDBPtr,DefMatchTheshold);
+            index = ctx.lib.SearchingISOTemplates(ctx.hDev,itemplate, n,templates,DefMatchTheshold);
         else
-            index = m_hLIB.SearchingANSITemplates(m_hDev,itemplateToSearch, m_nDbCnt,m_bfDBPtr,DefMatchTheshold);
-
-        m_nMatchTime = (int)System.currentTimeMillis();
-        m_nMatchTime = m_nMatchTime - startTime;
-        if (index<0) {
-            return "";
-        }
-
-        String ret_id = m_bfDBID[index];
+            index = ctx.lib.SearchingANSITemplates(ctx.hDev,itemplate, n,templates,DefMatchTheshold);
+        if (index < 0 || index >= n) return -1;
+        return index;
+    }
+    //*********************************************************************************************************
+    // Purpose   : 1:N Matching against appointed records of gallery.
+    //                  Records are packed into reduced array of operation which is passed to native matcher.
+    // Function  : SearchSubset
+    // Arguments :
+    //			(In) : OpContext ctx : buffers of operation
+    //			(In) : Gallery g : gallery snapshot to be searched
+    //			(In) : byte[] itemplate : template to search
+    //			(In) : boolean formatFlag : false-ANSI format, true-ISO format
+    //			(In) : int[] subset : indices of records to be searched
+    //			(In) : int n : number of records to be searched
+    // Return    : int : index of record searched in gallery, else -1
+    //*********************************************************************************************************
+    int SearchSubset(OpContext ctx, Gallery g, byte[] itemplate, boolean formatFlag, int[] subset, int n) {
+        if (n <= 0) return -1;
+        if (ctx.subPtr == null || ctx.subPtr.length < n*LAPI.FPINFO_SIZE)
+            ctx.subPtr = new byte[n*LAPI.FPINFO_SIZE];
+        for (int i = 0; i < n; i ++)
+            System.arraycopy(g.m_bfPtr, subset[i]*LAPI.FPINFO_SIZE, ctx.subPtr, i*LAPI.FPINFO_SIZE, LAPI.FPINFO_SIZE);
 
-        return ret_id;
-		
+        int index = SearchArray(ctx, itemplate, formatFlag, n, ctx.subPtr);
+        if (index < 0) return -1;
+        return subset[index];
     }
     //*********************************************************************************************************
-    // Purpose   : Refresh Database
+    // Purpose   : Refresh Database, returns when records are loaded
+    //                  so that GetRecordCount and FindRecord called next see them.
     // Function  : DBRefresh
     // Arguments : none
 	// Return    : none   
     //*********************************************************************************************************
     public void DBRefresh() {
-        m_nDbCnt = 0;
+        DBRefreshAsync();
+        WaitForRefresh(0);
+    }
+    //*********************************************************************************************************
+    // Purpose   : Refresh Database in the background
+    //                  Records are loaded into a new gallery on background thread, which replaces current
+    //                  gallery when completed. Identify and Verify keep using current gallery meanwhile.
+    //                  MSG_DBRECORD_NEXT is sent at most once per REFRESH_PROGRESS_INTERVAL ms.
+    // Function  : DBRefreshAsync
+    // Arguments : none
+	// Return    : none   
+    //*********************************************************************************************************
+    public void DBRefreshAsync() {
+        synchronized (m_hGalleryLock) {
+            if (m_bClosed) return;
+            if (m_hRefreshThread != null) {
+                m_bRefreshAgain = true;
+                return;
+            }
+            m_hRefreshThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        RefreshGallery();
+                    } catch (RuntimeException e) {
+                        Log.e("HAPI", "DBRefresh failed", e);
+                    }
+                }
+            }, "HAPI-DBRefresh");
+            m_hRefreshThread.start();
+        }
+    }
+    //*********************************************************************************************************
+    // Purpose   : Wait until background refresh of Database is completed
+    // Function  : WaitForRefresh
+    // Arguments :
+    //			(In) : long timeout : maximum time to wait in ms, 0 - no limit
+	// Return    : boolean : true if no refresh is running
+    //*********************************************************************************************************
+    public boolean WaitForRefresh(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (m_hGalleryLock) {
+            while (m_hRefreshThread != null) {
+                long wait = (timeout == 0) ? 0 : deadline - System.currentTimeMillis();
+                if (timeout != 0 && wait <= 0) return false;
+                try {
+                    m_hGalleryLock.wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    // Current gallery, or the one being loaded if current gallery is empty (first refresh).
+    Gallery WaitGallery() {
+        if (m_hGallery.m_nCount == 0) WaitForRefresh(REFRESH_WAIT_TIMEOUT);
+        return m_hGallery;
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    void RefreshGallery() {
+        try {
+            while (true) {
+                int gen;
+                synchronized (m_hGalleryLock) {
+                    gen = m_nGalleryGen;
+                    m_bRefreshAgain = false;
+                }
+                Gallery g = LoadGallery();
+                synchronized (m_hGalleryLock) {
+                    if (m_bClosed) break;
+                    //Records were changed while loading : load again so that no change is lost
+                    if (gen != m_nGalleryGen || m_bRefreshAgain) continue;
+                    PublishGallery(g);
+                    m_hHotSet.Clear();
+                    break;
+                }
+            }
+        } finally {
+            synchronized (m_hGalleryLock) {
+                m_hRefreshThread = null;
+                m_hGalleryLock.notifyAll();
+            }
+            // Also on failure : listeners waiting for the end are released, with the records in use
+            SendMessage(MSG_DBRECORD_END,m_hGallery.m_nCount,0,"");
+        }
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    Gallery LoadGallery() {
+        Gallery g = new Gallery(RECORD_MAX_NUM);
         Cursor c = m_hDB.queryRow(PROJECTION, null, null, null);
-        if ( c != null) m_nDbCnt = c.getCount();
-        SendMessage(MSG_DBRECORD_START,m_nDbCnt,0,"");
-        if (m_nDbCnt>0){
-            int i = 0, j;
-            c.moveToFirst();
-            do {
+        int total = 0;
+        if ( c != null) total = Math.min(c.getCount(), RECORD_MAX_NUM);
+        SendMessage(MSG_DBRECORD_START,total,0,"");
+        if (c == null) return g;
+        try {
+            long lastReport = System.currentTimeMillis();
+            while (g.m_nCount < total && !m_bClosed && c.moveToNext()) {
                 String dbname = c.getString(COLUMN_NAME_INDEX);
                 byte[] itemplate = c.getBlob(COLUMN_FPDATA_INDEX);
-                m_bfDBID[i] = dbname;
-                for (j = 0; j < LAPI.FPINFO_SIZE; j ++) m_bfDBPtr[i*LAPI.FPINFO_SIZE+j] = itemplate[j];
-                SendMessage(MSG_DBRECORD_NEXT,m_nDbCnt,i,dbname);
-                i ++;
-                if (i==m_nDbCnt) break;
-                c.moveToNext();
+                if (dbname == null || itemplate == null) continue;
+                g.Add(dbname, ParsePartition(c.getString(COLUMN_PARTITION_INDEX)), itemplate);
+                long now = System.currentTimeMillis();
+                if (now - lastReport >= REFRESH_PROGRESS_INTERVAL) {
+                    SendMessage(MSG_DBRECORD_NEXT,total,g.m_nCount-1,dbname);
+                    lastReport = now;
+                }
             }
-            while (true);
+        } finally {
+            c.close();
         }
-        SendMessage(MSG_DBRECORD_END,m_nDbCnt,0,"");
+        return g;
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    // Must be called with m_hGalleryLock held.
+    void PublishGallery(Gallery g) {
+        m_hGallery = g;
+        m_nDbCnt = g.m_nCount;
     }
     //*********************************************************************************************************
     // Purpose   : Return record count of DATABASE
@@ -532,7 +996,7 @@ public class HAPI {
 	// Return    : int   
     //*********************************************************************************************************
     public int GetRecordCount (){
-        return m_nDbCnt;
+        return m_hGallery.m_nCount;
     }
     //*********************************************************************************************************
     // Purpose   : Clear all record in DATABASE
@@ -543,7 +1007,11 @@ public class HAPI {
     public boolean ClearALLRecords () {
         int ret = m_hDB.deleteRow(null, null);
         if (ret==0) { m_errCode = ERROR_NEG_ACCESS; return false;}
-        m_nDbCnt = 0;
+        synchronized (m_hGalleryLock) {
+            m_nGalleryGen ++;
+            PublishGallery(new Gallery(RECORD_MAX_NUM));
+            m_hHotSet.Clear();
+        }
         return true;
     }
     //*********************************************************************************************************
@@ -554,23 +1022,29 @@ public class HAPI {
 	// Return    : boolean   
     //*********************************************************************************************************
     public boolean DeleteRecord (String delId) {
-        if (delId==null || delId.isEmpty()) { m_errCode = ERROR_ARGUMENTS; return false;}
-        String where = DATABASE.COLUMN_NAME + " = '" + delId + "'";
-        int ret = m_hDB.deleteRow(where, null);
-        if (ret==0)  { m_errCode = ERROR_NEG_ACCESS; return false;}
+        int err = RemoveRecord(delId);
+        if (err != ERROR_NONE) { m_errCode = err; return false;}
+        return true;
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    // Deletes record, returns error code instead of keeping it, so it is safe on any thread.
+    int RemoveRecord (String delId) {
+        if (delId==null || delId.isEmpty()) return ERROR_ARGUMENTS;
+        int ret = m_hDB.deleteRow(DATABASE.COLUMN_NAME + " = ?", new String[] {delId});
+        if (ret==0) return ERROR_NEG_ACCESS;
     	
-        int i, j;
-        for ( i = 0; i < m_nDbCnt; i ++) {
-            if (m_bfDBID[i].equals(delId)==false) continue;
-            m_bfDBID[i] = m_bfDBID[m_nDbCnt-1];
-    		for (j = 0; j < LAPI.FPINFO_SIZE; j ++) 
-    			m_bfDBPtr[i*LAPI.FPINFO_SIZE+j] = 
-                        m_bfDBPtr[(m_nDbCnt-1)*LAPI.FPINFO_SIZE+j];
-            m_nDbCnt --;
-            return true;
+        // Row is deleted : gallery may miss the record (e.g. beyond RECORD_MAX_NUM), it is removed if present
+        synchronized (m_hGalleryLock) {
+            m_nGalleryGen ++;
+            m_hHotSet.Remove(delId);
+            int i = m_hGallery.Find(delId);
+            if (i >= 0) {
+                Gallery g = m_hGallery.Copy();
+                g.Remove(i);
+                PublishGallery(g);
+            }
         }
-    	
-        return false;
+        return ERROR_NONE;
     }
     //*********************************************************************************************************
     // Purpose   : Add new record in DATABASE
@@ -581,25 +1055,103 @@ public class HAPI {
 	// Return    : boolean   
     //*********************************************************************************************************
     public boolean AddNewRecord (String newId, byte[] itemplate){
-        if (newId==null || newId.isEmpty()) return false;
-        if (itemplate==null) return false;
+        return AddNewRecord(newId, itemplate, null);
+    }
+    //*********************************************************************************************************
+    // Purpose   : Add new record in DATABASE with partition tags
+    // Function  : AddNewRecord
+	// Arguments : 
+	//			(In) : String newId : 
+	//			(In) : byte[] itemplate : 
+	//			(In) : String partition : comma separated partition tags, null - none
+	// Return    : boolean   
+    //*********************************************************************************************************
+    public boolean AddNewRecord (String newId, byte[] itemplate, String partition){
+        int err = InsertRecord(newId, itemplate, partition);
+        if (err != ERROR_NONE) { m_errCode = err; return false;}
+        return true;
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    // Adds record, returns error code instead of keeping it, so it is safe on any thread.
+    int InsertRecord (String newId, byte[] itemplate, String partition){
+        if (newId==null || newId.isEmpty()) return ERROR_ARGUMENTS;
+        if (itemplate==null) return ERROR_ARGUMENTS;
     	
         Cursor c = m_hDB.queryRow(PROJECTION, null, null, null);
         int recn = c.getCount();
-        if (recn==RECORD_MAX_NUM) { m_errCode = ERROR_OVERFLOW_RECORD; return false;}
+        c.close();
+        if (recn>=RECORD_MAX_NUM || m_hGallery.m_nCount>=RECORD_MAX_NUM) return ERROR_OVERFLOW_RECORD;
         ContentValues v = new ContentValues();
         v.put(DATABASE.COLUMN_NAME, newId);
         v.put(DATABASE.COLUMN_FPDATA, itemplate);
+        v.put(DATABASE.COLUMN_PARTITION, partition);
         int ret = m_hDB.insertRow(v);
-        if (ret==0) { m_errCode = ERROR_NEG_ACCESS; return false;}
+        if (ret<=0) return ERROR_NEG_ACCESS;
     	
-        int j;
-        m_bfDBID[m_nDbCnt] = newId;
-		for (j = 0; j < LAPI.FPINFO_SIZE; j ++) 
-            m_bfDBPtr[m_nDbCnt*LAPI.FPINFO_SIZE+j] = itemplate[j] ;
-        m_nDbCnt ++;
+        synchronized (m_hGalleryLock) {
+            m_nGalleryGen ++;
+            m_hHotSet.Remove(newId);
+            Gallery g = m_hGallery.Copy();
+            if (!g.Add(newId, ParsePartition(partition), itemplate)) {
+                // Gallery filled up meanwhile : row is rolled back, DATABASE and gallery stay alike
+                m_hDB.deleteRow(DATABASE.COLUMN_ID + " = ?", new String[] {String.valueOf(ret)});
+                return ERROR_OVERFLOW_RECORD;
+            }
+            PublishGallery(g);
+        }
+        return ERROR_NONE;
+    }
+    //*********************************************************************************************************
+    // Purpose   : Add or replace many records in one DATABASE transaction, e.g. templates re-created in bulk.
+    //                  Replaced records keep their partition tags. Gallery is copied and published once.
+    // Function  : PutRecords
+	// Arguments : 
+	//			(In) : String[] ids : 
+	//			(In) : byte[][] itemplates : 
+	//			(In) : int n : number of records
+	// Return    : int : error code, DATABASE is left unchanged on ERROR_NEG_ACCESS
+    //*********************************************************************************************************
+    public int PutRecords (String[] ids, byte[][] itemplates, int n){
+        if (ids==null || itemplates==null || n > ids.length || n > itemplates.length) return ERROR_ARGUMENTS;
+        Gallery cur = m_hGallery;
+        String[] parts = new String[n];
+        int added = 0;
+        for (int i = 0; i < n; i ++) {
+            if (ids[i]==null || ids[i].isEmpty() || itemplates[i]==null) return ERROR_ARGUMENTS;
+            int k = cur.Find(ids[i]);
+            if (k < 0) added ++;
+            else if (cur.m_bfPart[k] != null) parts[i] = String.join(",", cur.m_bfPart[k]);
+        }
+        if (cur.m_nCount + added > RECORD_MAX_NUM) return ERROR_OVERFLOW_RECORD;
     	
-        return true;
+        SQLiteDatabase db = m_hDB.db;
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < n; i ++) {
+                db.delete(DATABASE.TABLE_NAME, DATABASE.COLUMN_NAME + " = ?", new String[] {ids[i]});
+                ContentValues v = new ContentValues();
+                v.put(DATABASE.COLUMN_NAME, ids[i]);
+                v.put(DATABASE.COLUMN_FPDATA, itemplates[i]);
+                v.put(DATABASE.COLUMN_PARTITION, parts[i]);
+                if (db.insert(DATABASE.TABLE_NAME, null, v) < 0) return ERROR_NEG_ACCESS;
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        synchronized (m_hGalleryLock) {
+            m_nGalleryGen ++;
+            Gallery g = m_hGallery.Copy();
+            for (int i = 0; i < n; i ++) {
+                m_hHotSet.Remove(ids[i]);
+                int k = g.Find(ids[i]);
+                if (k >= 0) g.Remove(k);
+                if (!g.Add(ids[i], ParsePartition(parts[i]), itemplates[i])) return ERROR_OVERFLOW_RECORD;
+            }
+            PublishGallery(g);
+        }
+        return ERROR_NONE;
     }
     //*********************************************************************************************************
     // Purpose   : Update special record in DATABASE
@@ -613,26 +1165,84 @@ public class HAPI {
     public boolean UpdateRecord (String updateId, byte[] itemplate){
         if (updateId==null || updateId.isEmpty()) return false;
         if (itemplate==null) { m_errCode = ERROR_ARGUMENTS; return false;}
+        String partition = GetRecordPartition(updateId);
         boolean ret = DeleteRecord(updateId);
-        if (ret) AddNewRecord(updateId,itemplate);
+        if (ret) AddNewRecord(updateId,itemplate,partition);
         return ret;
     }
     //*********************************************************************************************************
+    // Purpose   : Return partition tags of special record
+    // Function  : GetRecordPartition
+	// Arguments : 
+	//			(In) : String findId : 
+	// Return    : String : comma separated partition tags, null if none or not found
+    //*********************************************************************************************************
+    public String GetRecordPartition (String findId){
+        Gallery g = m_hGallery;
+        int i = g.Find(findId);
+        if (i < 0 || g.m_bfPart[i] == null) return null;
+        return String.join(",", g.m_bfPart[i]);
+    }
+    //*********************************************************************************************************
     // Purpose   : Find special record in DATABASE
     // Function  : FindRecord
 	// Arguments : 
 	//			(In) : String findId : 
-	// Return    : byte[]   
+	// Return    : byte[] : copy of template owned by caller, null if not found
     //*********************************************************************************************************
     public byte[] FindRecord (String findId){
-        int i, j;
-        if (findId==null || findId.isEmpty()) return null;
-        for ( i = 0; i < m_nDbCnt; i ++) {
-            if (m_bfDBID[i].equals(findId)==false) continue;
-    		for (j = 0; j < LAPI.FPINFO_SIZE; j ++) 
-                itemplate[j] = m_bfDBPtr[i*LAPI.FPINFO_SIZE+j];
-            return itemplate;
-        }
-        return null;
+        Gallery g = m_hGallery;
+        int i = g.Find(findId);
+        if (i < 0) return null;
+        return g.m_bfRec[i].clone();
+    }
+    //*********************************************************************************************************
+    // Purpose   : Find special record in DATABASE without copying its template
+    // Function  : FindRecordView
+	// Arguments : 
+	//			(In) : String findId : 
+	// Return    : ByteBuffer : read-only view of template, null if not found.
+    //                  The view stays valid and unchanged after the record is deleted or updated.
+    //*********************************************************************************************************
+    public ByteBuffer FindRecordView (String findId){
+        Gallery g = m_hGallery;
+        int i = g.Find(findId);
+        if (i < 0) return null;
+        return ByteBuffer.wrap(g.m_bfRec[i]).asReadOnlyBuffer();
+    }
+    //*********************************************************************************************************
+    // Purpose   : 1:1 Matching of template against special record in DATABASE without copying templates
+    // Function  : CompareRecord
+	// Arguments : 
+	//			(In) : byte[] itemplate : template to match
+	//			(In) : String recordId : record to be matched
+	// Return    : int : similar match score(0~100), -1 if record is not found
+    //*********************************************************************************************************
+    public int CompareRecord (byte[] itemplate, String recordId){
+        Gallery g = m_hGallery;
+        int i = g.Find(recordId);
+        if (i < 0 || itemplate == null) return -1;
+        return m_hLIB.CompareTemplates(m_hDev, itemplate, g.m_bfRec[i]);
+    }
+    //*********************************************************************************************************
+    // Purpose   : Find records enrolled twice, matched over CONFIG_MATCH_THESHOLD against each other
+    //                  Current gallery snapshot is cross-matched on pool of detector, records added or
+    //                  changed meanwhile are left for the next run.
+    // Function  : FindDuplicates
+	// Arguments : 
+	//			(In) : DuplicateDetector detector : 
+	//			(In) : BatchMatcher.Matcher matcher : compare function called on pool threads, it must keep
+	//			            its device handle open until FindDuplicates returns
+	//			(In) : Set<String> checked : keys of records checked by an earlier run, null - all records
+	// Return    : DuplicateDetector.Report : suspected duplicates, errCode ERROR_ARGUMENTS without matcher
+    //*********************************************************************************************************
+    public DuplicateDetector.Report FindDuplicates (DuplicateDetector detector, BatchMatcher.Matcher matcher, Set<String> checked){
+        if (detector==null || matcher==null) {
+            DuplicateDetector.Report r = new DuplicateDetector.Report();
+            r.errCode = ERROR_ARGUMENTS;
+            return r;
+        }
+        Gallery g = m_hGallery;
+        return detector.Find(matcher, g.m_bfID, g.m_bfRec, g.m_hIndex, g.m_nCount, checked, DefMatchTheshold);
     }
 }
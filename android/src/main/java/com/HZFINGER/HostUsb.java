@@ -1,7 +1,10 @@
 package com.HZFINGER;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 
 import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
@@ -31,7 +34,9 @@ public class HostUsb
 
     private int m_nEPOutSize = 2048;
     private int m_nEPInSize = 2048;
-    private byte[] m_abyTransferBuf = new byte[2048];
+    private UsbTransport m_hTransport = null;
+    private SyncUsbTransport m_hSyncTransport = null;
+    private boolean m_bAsyncTransfer = android.os.Build.VERSION.SDK_INT >= 26;
 
     UsbEndpoint endpoint_IN = null;
     UsbEndpoint endpoint_OUT = null;
@@ -40,6 +45,12 @@ public class HostUsb
 
     private PendingIntent mPermissionIntent; // Moved declaration here
 
+    // --- Device state changed by mUsbReceiver, waiters are woken on m_hDeviceLock ---
+    private static final long DEVICE_RECHECK_MS = 250;
+    private final Object m_hDeviceLock = new Object();
+    private boolean m_bPermissionRequested = false;
+    private boolean m_bPermissionDenied = false;
+
     // --- Added back missing methods and adjusted logic ---
 
     public HostUsb(Context context) {
@@ -49,6 +60,7 @@ public class HostUsb
                                                        android.os.Build.VERSION.SDK_INT >= 31 ? PendingIntent.FLAG_MUTABLE : 0);
         IntentFilter filter = new IntentFilter(ACTION_USB_PERMISSION);
         filter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED); // Listen for detach
+        filter.addAction(UsbManager.ACTION_USB_DEVICE_ATTACHED); // Wake WaitForDevice on power-on
         mContext.registerReceiver(mUsbReceiver, filter);
         Log.e(TAG, "news:mDevManager");
     }
@@ -95,31 +107,112 @@ public class HostUsb
             return true;
         } else {
             Log.e(TAG, "Authorize permission request!");
+            synchronized (m_hDeviceLock) {
+                m_bPermissionRequested = true;
+                m_bPermissionDenied = false;
+            }
             mDevManager.requestPermission(device, mPermissionIntent);
-            // Return false here, WaitForInterfaces will loop until permission is granted or timeout
+            // Return false here, WaitForInterfaces waits until permission is granted or timeout
             return false;
         }
     }
 
     // --- Added WaitForInterfaces ---
     public boolean WaitForInterfaces() {
-        int timeoutMillis = 5000; // Wait up to 5 seconds
-        long startTime = System.currentTimeMillis();
-        while (device==null || !mDevManager.hasPermission(device)) {
-             if (System.currentTimeMillis() - startTime > timeoutMillis) {
-                 Log.e(TAG, "WaitForInterfaces timed out waiting for permission.");
-                 return false; // Timed out
-             }
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-                 Thread.currentThread().interrupt(); // Re-interrupt thread
-                 return false;
+        UsbDevice d = device;
+        if (d == null) {
+            Log.e(TAG, "WaitForInterfaces: no device.");
+            return false;
+        }
+        boolean ok = WaitForDevice(d.getVendorId(), d.getProductId(), 5000);
+        if (ok) Log.e(TAG, "WaitForInterfaces OK");
+        return ok;
+    }
+
+    // --- Names of attached devices matching VID/PID, used as device ids when several are attached ---
+    public static List<String> ListDevices(Context context, int vid, int pid) {
+        UsbManager manager = (UsbManager) context.getSystemService(Context.USB_SERVICE);
+        List<String> names = new ArrayList<>();
+        for (UsbDevice d : manager.getDeviceList().values()) {
+            if (d.getVendorId() == vid && d.getProductId() == pid) names.add(d.getDeviceName());
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    // --- Find attached device by VID/PID (and name if not null), null if not attached ---
+    private UsbDevice FindDevice(int vid, int pid, String name) {
+        for (UsbDevice d : mDevManager.getDeviceList().values()) {
+            if (d.getVendorId() != vid || d.getProductId() != pid) continue;
+            if (name == null || name.equals(d.getDeviceName())) return d;
+        }
+        return null;
+    }
+
+    // --- Wait until device is attached, without asking for permission (power-on readiness) ---
+    public boolean WaitForAttach(int vid, int pid, long timeoutMillis) {
+        return WaitDevice(vid, pid, null, timeoutMillis, false);
+    }
+
+    public boolean WaitForAttach(int vid, int pid, String name, long timeoutMillis) {
+        return WaitDevice(vid, pid, name, timeoutMillis, false);
+    }
+
+    // --- Wait until device is attached and permission is granted, requesting it once if needed ---
+    // Woken by mUsbReceiver on attach and permission result, so it returns as soon as the device is usable.
+    // Must not be called on the main thread, which delivers the broadcasts.
+    public boolean WaitForDevice(int vid, int pid, long timeoutMillis) {
+        return WaitDevice(vid, pid, null, timeoutMillis, true);
+    }
+
+    // --- Same as above for the device with this name (UsbDevice.getDeviceName()), null - any ---
+    public boolean WaitForDevice(int vid, int pid, String name, long timeoutMillis) {
+        return WaitDevice(vid, pid, name, timeoutMillis, true);
+    }
+
+    private boolean WaitDevice(int vid, int pid, String name, long timeoutMillis, boolean needPermission) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (m_hDeviceLock) {
+            while (true) {
+                UsbDevice d = FindDevice(vid, pid, name);
+                if (d != null) {
+                    if (!d.equals(device)) {
+                        device = d;
+                        m_bPermissionRequested = false;
+                        m_bPermissionDenied = false;
+                    }
+                    if (!needPermission || mDevManager.hasPermission(d)) return true;
+                    if (m_bPermissionDenied) {
+                        Log.e(TAG, "WaitForDevice: permission denied.");
+                        return false;
+                    }
+                    if (!m_bPermissionRequested) {
+                        Log.e(TAG, "Authorize permission request!");
+                        m_bPermissionRequested = true;
+                        mDevManager.requestPermission(d, mPermissionIntent);
+                    }
+                }
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    Log.e(TAG, "WaitForDevice timed out " + (d == null ? "waiting for device." : "waiting for permission."));
+                    return false;
+                }
+                try {
+                    // Attach/permission broadcasts wake us, the recheck covers a missed broadcast.
+                    m_hDeviceLock.wait(Math.min(wait, DEVICE_RECHECK_MS));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
             }
         }
-        Log.e(TAG, "WaitForInterfaces OK");
-        return true;
+    }
+
+    private void NotifyDeviceChanged(boolean denied) {
+        synchronized (m_hDeviceLock) {
+            if (denied) m_bPermissionDenied = true;
+            m_hDeviceLock.notifyAll();
+        }
     }
 
     // --- Added OpenDeviceInterfaces ---
@@ -187,6 +280,21 @@ public class HostUsb
              CloseDeviceInterface(); // Use the correct close method
              return -5;
         }
+        if (m_nEPInSize <= 0 || m_nEPOutSize <= 0) {
+             Log.e(TAG, "Invalid bulk endpoint size: IN " + m_nEPInSize + ", OUT " + m_nEPOutSize);
+             CloseDeviceInterface();
+             return -5;
+        }
+
+        // --- Bulk transports, usbfs limits a single transfer to 16KB before Android 9 ---
+        int maxTransfer = android.os.Build.VERSION.SDK_INT >= 28 ? BulkIo.MAX_TRANSFER : BulkIo.MAX_TRANSFER_LEGACY;
+        m_hSyncTransport = new SyncUsbTransport(connection, endpoint_IN, endpoint_OUT, maxTransfer);
+        m_hTransport = m_hSyncTransport;
+        if (m_bAsyncTransfer && android.os.Build.VERSION.SDK_INT >= 26) {
+            m_hTransport = new AsyncUsbTransport(new UsbRequestPort(connection, endpoint_IN, AsyncUsbTransport.DEF_DEPTH),
+                                                 new UsbRequestPort(connection, endpoint_OUT, AsyncUsbTransport.DEF_DEPTH),
+                                                 AsyncUsbTransport.DEF_CHUNK, AsyncUsbTransport.DEF_DEPTH);
+        }
 
         // --- Return the actual File Descriptor ---
         int fd = connection.getFileDescriptor();
@@ -196,6 +304,9 @@ public class HostUsb
 
     // --- Added CloseDeviceInterface ---
     public void CloseDeviceInterface() {
+        if (m_hTransport != null) m_hTransport.Close();
+        m_hTransport = null;
+        m_hSyncTransport = null;
         if (connection != null) {
             Log.d(TAG, "Closing USB Connection...");
             if (intf != null) {
@@ -235,10 +346,10 @@ public class HostUsb
                     if (permDevice != null && permDevice.equals(device)) { // Check if it's for our current device
                         if (intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false)) {
                             Log.e(TAG, "Authorize permission GRANTED for device: " + device.getDeviceName());
-                            // LAPI's CallBack (via WaitForInterfaces) will detect this and proceed
+                            NotifyDeviceChanged(false); // Wake WaitForDevice
                         } else {
                             Log.e(TAG, "Authorize permission DENIED for device: " + device.getDeviceName());
-                            // Maybe inform LAPI or the plugin that permission was denied
+                            NotifyDeviceChanged(true);
                             CloseDeviceInterface(); // Close if permission denied
                         }
                     } else {
@@ -253,110 +364,64 @@ public class HostUsb
                      Log.e(TAG, "Our device detached: " + device.getDeviceName());
                      CloseDeviceInterface();
                  }
+            } else if (UsbManager.ACTION_USB_DEVICE_ATTACHED.equals(action)) {
+                 NotifyDeviceChanged(false); // Wake WaitForAttach / WaitForDevice
             }
         }
     };
 
-    // --- Bulk Transfer methods remain the same ---
+    // --- Bulk Transfer methods ---
+    // Queued UsbRequests (AsyncUsbTransport) on Android 8.0 and later, blocking bulkTransfer otherwise.
+    // If the host refuses to queue requests, the connection falls back to SyncUsbTransport.
 
-    public boolean USBBulkSend(byte[] pBuf, int nLen, int nTimeOut) {
-        int i, n, r, w_nRet;
+    public void SetAsyncTransfer(boolean enable) {
+        m_bAsyncTransfer = enable;
+    }
 
-        if (connection == null || endpoint_OUT == null) {
+    public boolean USBBulkSend(byte[] pBuf, int nLen, int nTimeOut) {
+        UsbTransport transport = m_hTransport;
+        if (connection == null || transport == null) {
              Log.e(TAG, "USBBulkSend failed: Connection or Endpoint OUT is null.");
              return false;
         }
-        if (m_nEPOutSize <= 0) {
-             Log.e(TAG, "USBBulkSend failed: Invalid Endpoint OUT size: " + m_nEPOutSize);
-             return false; // Safety check
-        }
-
-
-        n = nLen / m_nEPOutSize;
-        r = nLen % m_nEPOutSize;
-
-        for(i=0; i<n; i++)
-        {
-            System.arraycopy(pBuf, i*m_nEPOutSize, m_abyTransferBuf, 0, m_nEPOutSize);
-            w_nRet = connection.bulkTransfer(endpoint_OUT, m_abyTransferBuf, m_nEPOutSize, nTimeOut);
-            if (w_nRet != m_nEPOutSize) {
-                Log.e(TAG, "USBBulkSend bulkTransfer failed (chunk " + i + "): Expected " + m_nEPOutSize + ", got " + w_nRet);
-                return false;
-            }
+        if (pBuf == null || pBuf.length < nLen) {
+             Log.e(TAG, "USBBulkSend error: Source buffer pBuf too small.");
+             return false;
         }
-
-        if (r > 0)
-        {
-            System.arraycopy(pBuf, i*m_nEPOutSize, m_abyTransferBuf, 0, r);
-            w_nRet = connection.bulkTransfer(endpoint_OUT, m_abyTransferBuf, r, nTimeOut);
-            if (w_nRet != r) {
-                 Log.e(TAG, "USBBulkSend bulkTransfer failed (remainder): Expected " + r + ", got " + w_nRet);
-                return false;
-            }
+        if (transport.Send(pBuf, nLen, nTimeOut)) return true;
+        if (!FallbackToSync(transport)) {
+            Log.e(TAG, "USBBulkSend failed: Expected " + nLen + " bytes.");
+            return false;
         }
-        // Log.d(TAG, "USBBulkSend successful for " + nLen + " bytes.");
-        return true;
+        return m_hSyncTransport.Send(pBuf, nLen, nTimeOut);
     }
 
     public boolean USBBulkReceive(byte[] pBuf, int nLen, int nTimeOut)
     {
-        int i, n, r, w_nRet;
-
-        if (connection == null || endpoint_IN == null) {
+        UsbTransport transport = m_hTransport;
+        if (connection == null || transport == null) {
             Log.e(TAG, "USBBulkReceive failed: Connection or Endpoint IN is null.");
             return false;
         }
-         if (m_nEPInSize <= 0) {
-             Log.e(TAG, "USBBulkReceive failed: Invalid Endpoint IN size: " + m_nEPInSize);
-             return false; // Safety check
+        if (pBuf == null || pBuf.length < nLen) {
+            Log.e(TAG, "USBBulkReceive error: Destination buffer pBuf too small.");
+            return false;
         }
-
-
-        n = nLen / m_nEPInSize;
-        r = nLen % m_nEPInSize;
-
-        for(i=0; i<n; i++)
-        {
-            // Ensure buffer is large enough for this chunk
-            if (m_abyTransferBuf.length < m_nEPInSize) {
-                 Log.e(TAG, "USBBulkReceive error: Transfer buffer too small for endpoint size.");
-                 return false;
-            }
-            w_nRet = connection.bulkTransfer(endpoint_IN, m_abyTransferBuf, m_nEPInSize, nTimeOut);
-            if (w_nRet != m_nEPInSize) {
-                Log.e(TAG, "USBBulkReceive bulkTransfer failed (chunk " + i + "): Expected " + m_nEPInSize + ", got " + w_nRet);
-                // Consider adding error details like connection.getLastError() if available
-                return false;
-            }
-             // Ensure pBuf is large enough before copying
-            if (pBuf.length < (i*m_nEPInSize + m_nEPInSize)) {
-                 Log.e(TAG, "USBBulkReceive error: Destination buffer pBuf too small.");
-                 return false;
-            }
-            System.arraycopy(m_abyTransferBuf, 0, pBuf, i*m_nEPInSize, m_nEPInSize);
+        if (transport.Receive(pBuf, nLen, nTimeOut)) return true;
+        if (!FallbackToSync(transport)) {
+            Log.e(TAG, "USBBulkReceive failed: Expected " + nLen + " bytes.");
+            return false;
         }
+        return m_hSyncTransport.Receive(pBuf, nLen, nTimeOut);
+    }
 
-        if (r > 0)
-        {
-             // Ensure buffer is large enough for remainder
-            if (m_abyTransferBuf.length < r) {
-                 Log.e(TAG, "USBBulkReceive error: Transfer buffer too small for remainder size.");
-                 return false;
-            }
-            w_nRet = connection.bulkTransfer(endpoint_IN, m_abyTransferBuf, r, nTimeOut);
-            if (w_nRet != r) {
-                 Log.e(TAG, "USBBulkReceive bulkTransfer failed (remainder): Expected " + r + ", got " + w_nRet);
-                 return false;
-            }
-             // Ensure pBuf is large enough before copying
-            if (pBuf.length < (i*m_nEPInSize + r)) {
-                 Log.e(TAG, "USBBulkReceive error: Destination buffer pBuf too small for remainder.");
-                 return false;
-            }
-            System.arraycopy(m_abyTransferBuf, 0, pBuf, i*m_nEPInSize, r);
-        }
-         // Log.d(TAG, "USBBulkReceive successful for " + nLen + " bytes.");
+    // Switch to blocking transfers if the failed transport never got a request queued.
+    private boolean FallbackToSync(UsbTransport transport) {
+        if (!(transport instanceof AsyncUsbTransport) || ((AsyncUsbTransport)transport).IsAvailable()) return false;
+        if (m_hSyncTransport == null) return false;
+        Log.w(TAG, "UsbRequest queue refused, using bulkTransfer.");
+        transport.Close();
+        m_hTransport = m_hSyncTransport;
         return true;
     }
 }
-
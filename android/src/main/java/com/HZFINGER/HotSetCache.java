@@ -0,0 +1,164 @@
+package com.HZFINGER;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+//*********************************************************************************************************
+// Hot-set cache for 1:N searching.
+// Keeps the templates of recently identified records in a small packed array which is searched before
+// the whole DATABASE. Records are evicted in least-recently-identified order.
+// Mutators are package-private : HAPI keeps the cache consistent with DATABASE.
+// HAPI holds the cache lock while native search reads m_bfPtr, so that records are not moved meanwhile.
+//*********************************************************************************************************
+public class HotSetCache {
+    private int m_nCapacity;
+    private int m_nCount = 0;
+    String[] m_bfID;                    // replaced by SetCapacity, read them under the cache lock
+    byte[] m_bfPtr;
+    private final HashMap<String, Integer> m_hSlot;          // record id -> slot
+    private final LinkedHashMap<String, Boolean> m_hLRU;     // record ids, least recently identified first
+
+    //-----------------------The below defines counters of cache efficiency-------------------------------//
+    private long m_nLookups = 0;
+    private long m_nHits = 0;
+    private long m_nSavedNanos = 0;
+    private long m_nAvgFullNanos = 0;
+
+    //-----------------------------------------------------------------------------------------------------//
+    public HotSetCache(int capacity) {
+        m_nCapacity = Math.max(0, capacity);
+        m_bfID = new String[m_nCapacity];
+        m_bfPtr = new byte[m_nCapacity*LAPI.FPINFO_SIZE];
+        m_hSlot = new HashMap<>();
+        m_hLRU = new LinkedHashMap<>(16, 0.75f, true);
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    public synchronized int GetCapacity() {
+        return m_nCapacity;
+    }
+    //*********************************************************************************************************
+    // Purpose   : Change capacity of cache in place, cached records are dropped
+    // Function  : SetCapacity
+    // Arguments :
+    //			(In) : int capacity : number of records, 0 - cache is off
+    // Return    : none
+    //*********************************************************************************************************
+    synchronized void SetCapacity(int capacity) {
+        Clear();
+        m_nCapacity = Math.max(0, capacity);
+        m_bfID = new String[m_nCapacity];
+        m_bfPtr = new byte[m_nCapacity*LAPI.FPINFO_SIZE];
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    public synchronized int GetCount() {
+        return m_nCount;
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    public synchronized long GetLookupCount() {
+        return m_nLookups;
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    public synchronized long GetHitCount() {
+        return m_nHits;
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    public synchronized float GetHitRate() {
+        return m_nLookups == 0 ? 0 : (float)m_nHits / m_nLookups;
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    // Estimated time saved by cache hits minus time spent on cache misses, in milliseconds.
+    public synchronized long GetSavedTime() {
+        return m_nSavedNanos / 1000000;
+    }
+    //*********************************************************************************************************
+    // Purpose   : Mark slot as recently identified
+    // Function  : Touch
+    // Arguments :
+    //			(In) : int slot : index of template in cache array
+    // Return    : String : record id of slot
+    //*********************************************************************************************************
+    synchronized String Touch(int slot) {
+        if (slot < 0 || slot >= m_nCount) return null;
+        m_hLRU.get(m_bfID[slot]);
+        return m_bfID[slot];
+    }
+    //*********************************************************************************************************
+    // Purpose   : Add record to cache, evicting least recently identified record if cache is full
+    // Function  : Put
+    // Arguments :
+    //			(In) : String id : record id
+    //			(In) : byte[] templates : template buffer
+    //			(In) : int offset : offset of template inside buffer
+    // Return    : none
+    //*********************************************************************************************************
+    synchronized void Put(String id, byte[] templates, int offset) {
+        if (m_nCapacity == 0 || id == null) return;
+        Integer slot = m_hSlot.get(id);
+        if (slot != null) {
+            m_hLRU.get(id);
+        }
+        else {
+            if (m_nCount == m_nCapacity) {
+                Iterator<String> eldest = m_hLRU.keySet().iterator();
+                Remove(eldest.next());
+            }
+            slot = m_nCount ++;
+            m_hSlot.put(id, slot);
+            m_hLRU.put(id, Boolean.TRUE);
+            m_bfID[slot] = id;
+        }
+        System.arraycopy(templates, offset, m_bfPtr, slot*LAPI.FPINFO_SIZE, LAPI.FPINFO_SIZE);
+    }
+    //*********************************************************************************************************
+    // Purpose   : Remove record from cache, used when record is deleted or updated in DATABASE
+    // Function  : Remove
+    // Arguments :
+    //			(In) : String id : record id
+    // Return    : none
+    //*********************************************************************************************************
+    synchronized void Remove(String id) {
+        if (id == null) return;
+        Integer slot = m_hSlot.remove(id);
+        if (slot == null) return;
+        m_hLRU.remove(id);
+        int last = m_nCount - 1;
+        if (slot != last) {
+            m_bfID[slot] = m_bfID[last];
+            System.arraycopy(m_bfPtr, last*LAPI.FPINFO_SIZE, m_bfPtr, slot*LAPI.FPINFO_SIZE, LAPI.FPINFO_SIZE);
+            // Only the slot of the moved record changes, not its recency
+            m_hSlot.put(m_bfID[slot], slot);
+        }
+        m_bfID[last] = null;
+        m_nCount --;
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    synchronized void Clear() {
+        m_hSlot.clear();
+        m_hLRU.clear();
+        for (int i = 0; i < m_nCount; i ++) m_bfID[i] = null;
+        m_nCount = 0;
+    }
+    //*********************************************************************************************************
+    // Purpose   : Update counters after one identification
+    // Function  : RecordLookup
+    // Arguments :
+    //			(In) : boolean hit : true if record was found in cache
+    //			(In) : long cacheNanos : time spent on searching cache
+    //			(In) : long fullNanos : time spent on searching DATABASE, 0 if not searched
+    // Return    : none
+    //*********************************************************************************************************
+    synchronized void RecordLookup(boolean hit, long cacheNanos, long fullNanos) {
+        m_nLookups ++;
+        if (fullNanos > 0) {
+            m_nAvgFullNanos = (m_nAvgFullNanos == 0) ? fullNanos : (m_nAvgFullNanos*7 + fullNanos) / 8;
+        }
+        if (hit) {
+            m_nHits ++;
+            m_nSavedNanos += m_nAvgFullNanos - cacheNanos;
+        }
+        else {
+            m_nSavedNanos -= cacheNanos;
+        }
+    }
+}
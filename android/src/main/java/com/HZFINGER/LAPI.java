@@ -3,8 +3,11 @@ package com.HZFINGER;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
-import android.app.Activity;
+import android.content.Context;
 import android.content.Intent;
 import android.util.Log;
 
@@ -31,13 +34,16 @@ public class LAPI {
     //****************************************************************************************************
     public static final int VID = 0x28E9;
     public static final int PID = 0x028F;
-    private static HostUsb m_usbHost = null;
-    private static int m_hUSB = 0;
-    public static boolean bInitNetManager = false;
+    private HostUsb m_usbHost = null;
+    private int m_hUSB = 0;
+    private String m_sDeviceName = null;
+    public static boolean bInitNetManager = false;     // set once a DNN model is loaded, see IsModelLoaded()
     public static final int MSG_OPEN_DEVICE = 0x10;
     public static final int MSG_CLOSE_DEVICE = 0x11;
     public static final int MSG_BULK_TRANS_IN = 0x12;
     public static final int MSG_BULK_TRANS_OUT = 0x13;
+    public static final int POWER_ON_TIMEOUT = 3000;    // max time for module to attach after power on
+    public static final int OPEN_TIMEOUT = 5000;        // max time for device and permission on open
     //****************************************************************************************************
     public static final int WIDTH  = 256;
     public static final int HEIGHT  = 360;
@@ -53,6 +59,7 @@ public class LAPI {
     public static final int FALSE = 0;
 	public static final int FAKEFINGER = -1;
     public static final int NOTCALIBRATED = -2;
+    public static final int LIVEPENDING = -3;          // liveness of this touch is still being checked (liveAsync)
     //****************************************************************************************************
     public static final int SCSI_MODE = 1;
     public static final int SPI_MODE = 2;
@@ -60,34 +67,96 @@ public class LAPI {
     public static final int VERSION2 = 2;
     //public static final int commMode = SCSI_MODE;//SPI_MODE
     public static final int versionNo = VERSION2;
-    public static final String Model_FolderPath = "/mnt/sdcard/HZFinger_DNN_Model";
-    public static final String ModelName = "HZFinger";
+    public static final String Model_FolderPath = "/mnt/sdcard/HZFinger_DNN_Model";     // default of Config.modelFolder
+    public static final String ModelName = "HZFinger";                                  // default of Config.modelName
     public static final float LIVECHECK_THESHOLD[] = {0.5f, 0.3f, 0.1f, 0.05f, 0.02f};
     //****************************************************************************************************
-    private static Activity m_content = null;
+    private Context m_content = null;
+    private static Context s_content = null;      // for static file helpers
+    //----------------------------------------------------------------------------------------------------
+    // Settings of a device context, fixed when LAPI object is created.
+    public static class Config {
+        public String modelFolder = Model_FolderPath;   // folder of DNN model for checking live finger
+        public String modelName = ModelName;            // model file is modelFolder/modelName.model
+        public boolean liveCheck = true;                // false - never load model, IsPressFingerEx skips liveness
+        public int commMode = SCSI_MODE;                // used by OpenDeviceEx()
+        public boolean liveAsync = false;               // true - check liveness on worker thread, see LivenessService
+
+        public Config() {}
+        public Config(Config c) {
+            modelFolder = c.modelFolder;
+            modelName = c.modelName;
+            liveCheck = c.liveCheck;
+            commMode = c.commMode;
+            liveAsync = c.liveAsync;
+        }
+    }
+    private final Config m_hConfig;
+    private final LivenessService m_hLiveness;
+    //----------------------------------------------------------------------------------------------------
+    // Each LAPI object is a device context with its own HostUsb connection. Native callbacks carry no
+    // device, so they are routed to the context bound to the calling thread (BindThread, or automatically
+    // during OpenDeviceEx/CloseDeviceEx/IsPressFingerEx), else to the last opened context.
+    private static final ThreadLocal<LAPI> s_hBound = new ThreadLocal<>();
+    private static volatile LAPI s_hDefault = null;
+    private static final List<LAPI> s_hOpened = new CopyOnWriteArrayList<>();
 
     public void setHostUsb(HostUsb hostUsb){
         m_usbHost = hostUsb ;
     }
     //****************************************************************************************************
+    // Bind native callbacks of calling thread to this context, returns previous binding for UnbindThread.
+    public LAPI BindThread() {
+        LAPI prev = s_hBound.get();
+        s_hBound.set(this);
+        return prev;
+    }
+    //----------------------------------------------------------------------------------------------------
+    public static void UnbindThread(LAPI prev) {
+        if (prev == null) s_hBound.remove();
+        else s_hBound.set(prev);
+    }
+    //----------------------------------------------------------------------------------------------------
+    // Context which native callbacks of unbound threads go to : the last opened one still open.
+    public static LAPI GetDefaultContext() {
+        return s_hDefault;
+    }
+    //----------------------------------------------------------------------------------------------------
+    // Open only the USB device with this name (UsbDevice.getDeviceName()), null - first matching VID/PID.
+    public void SetDeviceName(String name) {
+        m_sDeviceName = name;
+    }
+    //----------------------------------------------------------------------------------------------------
+    public String GetDeviceName() {
+        return m_sDeviceName;
+    }
+    //****************************************************************************************************
     private static int CallBack (int message, int notify, int param, Object data)
+    {
+        LAPI ctx = s_hBound.get();
+        if (ctx == null) ctx = s_hDefault;
+        if (ctx == null) {
+            Log.e(TAG, "CallBack : no device context for message " + message);
+            return 0;
+        }
+        return ctx.OnCallBack(message, notify, param, data);
+    }
+    //----------------------------------------------------------------------------------------------------
+    private int OnCallBack (int message, int notify, int param, Object data)
     {
         switch (message) {
             case MSG_OPEN_DEVICE:
-                if (m_usbHost == null) {
-                    m_usbHost = new HostUsb(m_content);
+                if (m_usbHost == null) m_usbHost = new HostUsb(m_content);
 
-                    if (!m_usbHost.AuthorizeDevice(VID, PID)) {
-                        m_usbHost = null;
-                        return 0;
-                    }
+                //Returns as soon as device is attached and permission is granted
+                if (!m_usbHost.WaitForDevice(VID, PID, m_sDeviceName, OPEN_TIMEOUT)) {
+                    ReleaseHostUsb();
+                    return 0;
                 }
 
-                m_usbHost.WaitForInterfaces();
-
                 m_hUSB = m_usbHost.OpenDeviceInterfaces();
                 if (m_hUSB < 0) {
-                    m_usbHost = null;
+                    ReleaseHostUsb();
                     return 0;
                 }
 
@@ -96,21 +165,41 @@ public class LAPI {
                 if (m_usbHost != null) {
                     m_usbHost.CloseDeviceInterface();
                     m_hUSB = -1;
-                    m_usbHost = null;
+                    ReleaseHostUsb();
                 }
                 return 1;
             case MSG_BULK_TRANS_IN:
+                if (m_usbHost == null) return 0;
                 if (m_usbHost.USBBulkReceive((byte[])data,notify,param)) return notify;
                 return 0;
             case MSG_BULK_TRANS_OUT:
+                if (m_usbHost == null) return 0;
                 if (m_usbHost.USBBulkSend((byte[])data,notify,param)) return notify;
                 return 0;
         }
         return 0;
     }
     //****************************************************************************************************
-    public LAPI(Activity a) {
+    private void ReleaseHostUsb() {
+        if (m_usbHost == null) return;
+        m_usbHost.unregisterReceiver();
+        m_usbHost = null;
+    }
+    //****************************************************************************************************
+    public LAPI(Context a) {
+        this(a, new Config());
+    }
+    //----------------------------------------------------------------------------------------------------
+    public LAPI(Context a, Config config) {
         m_content = a;
+        s_content = a;
+        m_hConfig = new Config(config);
+        m_hLiveness = new LivenessService((image, threshold) -> checkLiveFinger(image, WIDTH, HEIGHT, threshold),
+                m_hConfig.liveAsync);
+    }
+    //----------------------------------------------------------------------------------------------------
+    public Config GetConfig() {
+        return new Config(m_hConfig);
     }
 	//****************************************************************************************************
 	public void POWER_ON() {
@@ -120,9 +209,11 @@ public class LAPI {
 		intent.setAction("android.intent.action.lightonReceiver");
 		m_content.sendBroadcast(intent);
 
-		try {
-			Thread.sleep(3000);
-		} catch (InterruptedException e) {}
+		//Wait until module is attached instead of a fixed delay, returns at once if already powered
+		if (m_usbHost == null) m_usbHost = new HostUsb(m_content);
+		if (!m_usbHost.WaitForAttach(VID, PID, m_sDeviceName, POWER_ON_TIMEOUT)) {
+			Log.e("LAPI", "POWER_ON : device not attached after " + POWER_ON_TIMEOUT + "ms");
+		}
     }
     //****************************************************************************************************
 	public void POWER_OFF() {
@@ -144,7 +235,26 @@ public class LAPI {
 	//			     If successful, return handle of device, else 0. 	
     //------------------------------------------------------------------------------------------------//
 	private native long OpenDevice(int commMode, int versionNo);
+	public long OpenDeviceEx()
+    {
+		return OpenDeviceEx(m_hConfig.commMode);
+    }
 	public long OpenDeviceEx(int commMode)
+    {
+		LAPI prev = BindThread();
+		try {
+			long ret = OpenDeviceBound(commMode);
+			if (ret != 0) {
+				s_hOpened.remove(this);
+				s_hOpened.add(this);
+				s_hDefault = this;
+			}
+			return ret;
+		} finally {
+			UnbindThread(prev);
+		}
+    }
+	private long OpenDeviceBound(int commMode)
     {
 		long ret = 0;
 		if(m_usbHost == null)
@@ -152,19 +262,8 @@ public class LAPI {
 			if (commMode == SCSI_MODE) POWER_ON();
 		}
 
-        //load DNN Model for Checking live finger
-        if (!bInitNetManager)
-        {
-            //File sdcard = m_content.getExternalFilesDir(null);
-            //String folderPath = sdcard.getAbsolutePath();
-            //loadDNNModel(folderPath, ModelName);
-            File file = new File(Model_FolderPath, ModelName+".model");
-            if (file.exists())
-            {
-                loadDNNModel(Model_FolderPath, ModelName);
-                bInitNetManager = true;
-            }
-        }
+        //load DNN Model for Checking live finger, unless PreloadModel is loading it meanwhile
+        if (m_hConfig.liveCheck && !IsModelLoaded() && s_hModelThread == null) LoadModel();
 
         ret = OpenDevice(commMode, versionNo);
       	if (ret == 0 && commMode == SCSI_MODE) POWER_OFF();
@@ -183,7 +282,17 @@ public class LAPI {
 	public int CloseDeviceEx(long device)
     {
         int ret;
-        ret = CloseDevice(device);
+        LAPI prev = BindThread();
+        try {
+            ret = CloseDevice(device);
+        } finally {
+            UnbindThread(prev);
+        }
+        s_hOpened.remove(this);
+        if (s_hDefault == this) {
+            int n = s_hOpened.size();
+            s_hDefault = (n > 0) ? s_hOpened.get(n - 1) : null;
+        }
         POWER_OFF();
         return ret;
     }
@@ -220,27 +329,72 @@ public class LAPI {
 	//				   return percent value indicating that finger is placed on sensor(0~100). 	
     //------------------------------------------------------------------------------------------------//
 	public native int IsPressFinger(long device, byte[] image);
+    //------------------------------------------------------------------------------------------------//
+    // Purpose   : IsPressFinger with liveness check, checked once per touch (see LivenessService).
+    // Function  : IsPressFingerEx
+    // Arguments :
+    //      (In) : long device : handle returned from function "OpenDevice()"
+    //  (In/Out) : byte[] image : image returned from function "GetImage()", cleared unless live finger
+    //      (In) : boolean isCheckLive : true - check liveness, false - uncheck
+    //      (In) : float threshold : threshold for checking live finger
+    // Return    : int : finger score(0~100), FAKEFINGER, or LIVEPENDING while liveAsync check runs
+    //------------------------------------------------------------------------------------------------//
     public int IsPressFingerEx(long device, byte[] image, boolean isCheckLive, float threshold)
     {
-        if (!isCheckLive || !bInitNetManager)
-        {
-            return IsPressFinger(device, image);
+        DetectResult r = DetectFinger(device, image, isCheckLive, threshold, false);
+        if (r.liveChecked && !r.IsFinger()) Arrays.fill(image, (byte) 0);
+        return r.ToScore();
+    }
+    //------------------------------------------------------------------------------------------------//
+    // Purpose   : This function checks finger and liveness of a frame without modifying it.
+    // Function  : DetectFinger
+    // Arguments :
+    //      (In) : long device : handle returned from function "OpenDevice()"
+    //      (In) : byte[] image : image returned from function "GetImage()"
+    //      (In) : boolean isCheckLive : true - check liveness, false - uncheck
+    //      (In) : float threshold : threshold for checking live finger
+    //      (In) : boolean probeLive : true - also find liveScore by bisection, several DNN runs per touch
+    // Return    : DetectResult
+    //------------------------------------------------------------------------------------------------//
+    public DetectResult DetectFinger(long device, byte[] image, boolean isCheckLive, float threshold, boolean probeLive)
+    {
+        isCheckLive = isCheckLive && m_hConfig.liveCheck;
+        if (isCheckLive && !IsModelLoaded()) WaitModel();
+        LAPI prev = BindThread();
+        try {
+            return DetectFingerBound(device, image, isCheckLive, threshold, probeLive);
+        } finally {
+            UnbindThread(prev);
         }
-        else
+    }
+    private DetectResult DetectFingerBound(long device, byte[] image, boolean isCheckLive, float threshold, boolean probeLive)
+    {
+        DetectResult r = new DetectResult();
+        long t = System.nanoTime();
+        r.pressScore = IsPressFinger(device, image);
+        r.pressNanos = System.nanoTime() - t;
+        if (r.pressScore < DEF_FINGER_SCORE) m_hLiveness.Lift();
+        r.liveChecked = isCheckLive && IsModelLoaded();
+        if (!r.liveChecked)
         {
-            int score = IsPressFinger(device, image);
-            if (score <  DEF_FINGER_SCORE) {
-                for (int i = 0; i < image.length; i++) image[i] = 0;
-                return 0;
-            }
-
-            int ret = checkLiveFinger(image, WIDTH, HEIGHT, threshold);
-            if (ret == 0) {
-                for (int i = 0; i < image.length; i++) image[i] = 0;
-                return FAKEFINGER;
-            }
-            else return score;
+            r.verdict = r.pressScore >= DEF_FINGER_SCORE ? DetectResult.FINGER : DetectResult.NO_FINGER;
+            return r;
         }
+        if (r.pressScore < DEF_FINGER_SCORE) return r;
+
+        // DNN runs once per touch, later frames of the same touch reuse its verdict
+        t = System.nanoTime();
+        int ret = m_hLiveness.Evaluate(image, threshold);
+        if (ret == LivenessService.PENDING) r.verdict = DetectResult.PENDING;
+        else if (ret == LivenessService.FAKE) r.verdict = DetectResult.FAKE;
+        else r.verdict = DetectResult.FINGER;
+        if (probeLive && ret != LivenessService.PENDING) r.liveScore = m_hLiveness.Score(image);
+        r.liveNanos = System.nanoTime() - t;
+        return r;
+    }
+    //----------------------------------------------------------------------------------------------------
+    public LivenessService GetLivenessService() {
+        return m_hLiveness;
     }
     //------------------------------------------------------------------------------------------------//
 	// Purpose   : This function creates the ANSI standard template from the uncompressed raw image. 
@@ -385,6 +539,74 @@ public class LAPI {
     //------------------------------------------------------------------------------------------------//
     public native int checkLiveFinger(byte[] rawImage, int width, int height, float threshold);
 
+    //****************************************************************************************************
+    // DNN model is shared by all contexts and loaded once per process, either by OpenDeviceEx or in
+    // background by PreloadModel. Re-opens and reconnects reuse it; a context configured with another
+    // model file replaces it.
+    private static final Object s_hModelLock = new Object();
+    private static volatile Thread s_hModelThread = null;
+    private static volatile String s_sLoadedModel = null;      // model file of shared model, null - none
+    //----------------------------------------------------------------------------------------------------
+    private String ModelFile() {
+        return new File(m_hConfig.modelFolder, m_hConfig.modelName + ".model").getPath();
+    }
+    //----------------------------------------------------------------------------------------------------
+    // true if the model of this context is loaded
+    public boolean IsModelLoaded() {
+        return ModelFile().equals(s_sLoadedModel);
+    }
+    //****************************************************************************************************
+    // Purpose   : Load DNN model for checking live finger in background, e.g. while USB is being set up
+    // Function  : PreloadModel
+    // Arguments :
+    //      (In) : Runnable prepare : run on loading thread before model is loaded (e.g. model file
+    //                                verification), null - none
+    // Return    : void
+    //****************************************************************************************************
+    public void PreloadModel(final Runnable prepare) {
+        if (!m_hConfig.liveCheck) return;
+        synchronized (s_hModelLock) {
+            if (IsModelLoaded() || s_hModelThread != null) return;
+            s_hModelThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (prepare != null) prepare.run();
+                        LoadModel();
+                    } finally {
+                        synchronized (s_hModelLock) {
+                            s_hModelThread = null;
+                        }
+                    }
+                }
+            }, "HZFinger-ModelLoad");
+            s_hModelThread.start();
+        }
+    }
+    //----------------------------------------------------------------------------------------------------
+    private boolean LoadModel() {
+        synchronized (s_hModelLock) {
+            if (IsModelLoaded()) return true;
+            String path = ModelFile();
+            if (!new File(path).exists()) return false;
+            if (s_sLoadedModel != null) Log.w(TAG, "Replacing DNN model " + s_sLoadedModel + " with " + path);
+            loadDNNModel(m_hConfig.modelFolder, m_hConfig.modelName);
+            s_sLoadedModel = path;
+            bInitNetManager = true;
+            return true;
+        }
+    }
+    //----------------------------------------------------------------------------------------------------
+    // Wait for PreloadModel in progress, so that liveness is not skipped while model is being loaded.
+    private static void WaitModel() {
+        Thread t = s_hModelThread;
+        if (t == null || t == Thread.currentThread()) return;
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
     //****************************************************************************************************
     public long LoadAsFile(String filename, byte[] buffer) {
         long ret = 0;
@@ -407,7 +629,7 @@ public class LAPI {
         boolean ret = true;
         //File extStorageDirectory = Environment.getExternalStorageDirectory();
         //File Dir = new File(extStorageDirectory, "Android");
-        File Dir = m_content.getExternalFilesDir(null);
+        File Dir = s_content.getExternalFilesDir(null);
         File file = new File(Dir, filename);
         try {
             FileOutputStream out = new FileOutputStream(file);
@@ -0,0 +1,173 @@
+package com.HZFINGER;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+//****************************************************************************************************
+// Liveness verdicts per touch.
+//
+// A touch lasts from the first finger frame until a frame without finger (Lift) or until no frame
+// came for TOUCH_GAP_MS. The DNN runs once per touch and threshold, the verdict is cached for the
+// remaining frames of the touch. In async mode the inference runs on a worker thread shared by all
+// devices and Evaluate() returns PENDING until the verdict is known, so acquisition goes on meanwhile.
+//
+// The model only answers live/fake for a threshold. Score() finds by bisection the smallest threshold
+// accepting the frame (stricter levels of LAPI.LIVECHECK_THESHOLD use smaller thresholds), which is
+// the model's output for the frame, to PROBE_STEPS bits. It is computed once per touch too.
+//****************************************************************************************************
+public class LivenessService {
+    //----------------------------------------------------------------------------------------------------
+    public interface Model {
+        // Return : 1 - live finger, 0 - fake finger
+        int Check(byte[] image, float threshold);
+    }
+    //----------------------------------------------------------------------------------------------------
+    public static final int LIVE = 1;
+    public static final int FAKE = 0;
+    public static final int PENDING = -1;
+    private static final int NONE = -2;
+    public static final long TOUCH_GAP_MS = 1000;     // frames further apart belong to different touches
+    public static final int PROBE_STEPS = 6;            // DNN runs of Score(), precision 1/64
+    //----------------------------------------------------------------------------------------------------
+    private static ExecutorService s_hWorker = null;
+    //----------------------------------------------------------------------------------------------------
+    private final Model m_hModel;
+    private final boolean m_bAsync;
+    private int m_nTouch = 0;                           // id of current touch, results of older ones are dropped
+    private boolean m_bTouching = false;
+    private long m_tLastFrame = 0;
+    private int m_nVerdict = NONE;
+    private float m_fThreshold = 0;
+    private float m_fScore = Float.NaN;
+    private boolean m_bRunning = false;
+    private int m_nInferences = 0;
+    //----------------------------------------------------------------------------------------------------
+    public LivenessService(Model model, boolean async) {
+        m_hModel = model;
+        m_bAsync = async;
+    }
+    //------------------------------------------------------------------------------------------------//
+    // Purpose   : This function ends the current touch, called for a frame without finger.
+    // Function  : Lift
+    // Arguments : void
+    // Return    : void
+    //------------------------------------------------------------------------------------------------//
+    public synchronized void Lift() {
+        if (!m_bTouching) return;
+        m_bTouching = false;
+        m_nTouch ++;
+        m_nVerdict = NONE;
+        m_fScore = Float.NaN;
+    }
+    //------------------------------------------------------------------------------------------------//
+    // Purpose   : This function gives liveness verdict of a finger frame.
+    // Function  : Evaluate
+    // Arguments :
+    //      (In) : byte[] image : frame with finger on sensor, not modified
+    //      (In) : float threshold : threshold for checking live finger
+    // Return    : int : LIVE, FAKE, or PENDING while the verdict is computed on the worker thread
+    //------------------------------------------------------------------------------------------------//
+    public int Evaluate(byte[] image, float threshold) {
+        final int touch;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (m_bTouching && now - m_tLastFrame > TOUCH_GAP_MS) Lift();
+            m_bTouching = true;
+            m_tLastFrame = now;
+            if (m_nVerdict != NONE && m_fThreshold == threshold) return m_nVerdict;
+            if (m_bRunning) return PENDING;
+            m_bRunning = true;
+            touch = m_nTouch;
+        }
+        if (!m_bAsync) return Infer(touch, image, threshold);
+
+        final byte[] frame = image.clone();
+        Worker().execute(() -> Infer(touch, frame, threshold));
+        return PENDING;
+    }
+    //------------------------------------------------------------------------------------------------//
+    // Purpose   : This function gives liveness score of a finger frame, probed once per touch.
+    // Function  : Score
+    // Arguments :
+    //      (In) : byte[] image : frame with finger on sensor, not modified
+    // Return    : float : smallest threshold accepting the frame(0~1)
+    //------------------------------------------------------------------------------------------------//
+    public float Score(byte[] image) {
+        final int touch;
+        synchronized (this) {
+            if (!Float.isNaN(m_fScore)) return m_fScore;
+            touch = m_nTouch;
+        }
+        float score;
+        if (m_bAsync) {
+            // Keep the shared model to one inference at a time
+            final byte[] frame = image.clone();
+            try {
+                score = Worker().submit(() -> Probe(frame)).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return Float.NaN;
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        } else {
+            score = Probe(image);
+        }
+        synchronized (this) {
+            if (touch == m_nTouch) m_fScore = score;
+        }
+        return score;
+    }
+    //------------------------------------------------------------------------------------------------//
+    // Purpose   : This function returns the number of DNN inferences run so far.
+    // Function  : GetInferenceCount
+    // Arguments : void
+    // Return    : int
+    //------------------------------------------------------------------------------------------------//
+    public synchronized int GetInferenceCount() {
+        return m_nInferences;
+    }
+    //----------------------------------------------------------------------------------------------------
+    private int Infer(int touch, byte[] image, float threshold) {
+        int verdict = FAKE;
+        try {
+            verdict = m_hModel.Check(image, threshold) == 0 ? FAKE : LIVE;
+        } finally {
+            synchronized (this) {
+                m_bRunning = false;
+                m_nInferences ++;
+                if (touch == m_nTouch) {
+                    m_nVerdict = verdict;
+                    m_fThreshold = threshold;
+                }
+            }
+        }
+        return verdict;
+    }
+    //----------------------------------------------------------------------------------------------------
+    private float Probe(byte[] image) {
+        float lo = 0, hi = 1;
+        for (int i = 0; i < PROBE_STEPS; i ++) {
+            float mid = (lo + hi) / 2;
+            if (m_hModel.Check(image, mid) != 0) hi = mid;
+            else lo = mid;
+        }
+        synchronized (this) {
+            m_nInferences += PROBE_STEPS;
+        }
+        return hi;
+    }
+    //----------------------------------------------------------------------------------------------------
+    // One worker for all devices : inferences on the shared model run one at a time.
+    private static synchronized ExecutorService Worker() {
+        if (s_hWorker == null) {
+            s_hWorker = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "HZFinger-Liveness");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return s_hWorker;
+    }
+}
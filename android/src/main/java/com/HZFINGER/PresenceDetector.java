@@ -0,0 +1,106 @@
+package com.HZFINGER;
+
+import java.util.Arrays;
+
+//****************************************************************************************************
+// Java pre-check for a finger on the sensor, run before the native finger and liveness checks.
+//
+// The statistic is the mean absolute difference of pixels STEP apart, sampled every STEP pixels : an
+// empty sensor only shows noise, ridges in contact add strong local contrast. It reads 1/16 of the
+// frame and costs a few microseconds, so frames without finger skip IsPressFinger.
+//
+// The threshold is calibrated from the first CALIB_FRAMES frames the native check finds empty, so a
+// finger left on the sensor at startup does not end up in the baseline. Until then every frame goes
+// to the native check. Threshold = median + max(MARGIN_SIGMAS robust sigmas, MIN_MARGIN) of the
+// empty frames; Recalibrate() starts over, e.g. after the device is re-opened.
+//****************************************************************************************************
+public class PresenceDetector {
+    //----------------------------------------------------------------------------------------------------
+    public static final int STEP = 4;
+    public static final int CALIB_FRAMES = 16;
+    public static final int EMPTY_SCORE = 10;           // max. native finger score of a frame used for calibration
+    public static final float MARGIN_SIGMAS = 6;
+    public static final float MIN_MARGIN = 1.0f;
+    //----------------------------------------------------------------------------------------------------
+    private final float[] m_fCalib = new float[CALIB_FRAMES];
+    private int m_nCalib = 0;
+    private float m_fThreshold = Float.NaN;             // NaN - not calibrated
+    private float m_fLast = 0;
+    private long m_nChecked = 0;
+    private long m_nSkipped = 0;
+    //------------------------------------------------------------------------------------------------//
+    // Purpose   : This function computes the presence statistic of a frame.
+    // Function  : Statistic
+    // Arguments :
+    //      (In) : byte[] image : raw frame of WIDTH x HEIGHT
+    // Return    : float : mean local contrast of sampled pixels
+    //------------------------------------------------------------------------------------------------//
+    public static float Statistic(byte[] image) {
+        int w = LAPI.WIDTH, h = LAPI.HEIGHT;
+        long sum = 0;
+        int n = 0;
+        for (int y = 0; y < h; y += STEP) {
+            int row = y * w;
+            for (int x = 0; x + STEP < w; x += STEP) {
+                sum += Math.abs((image[row + x] & 0xff) - (image[row + x + STEP] & 0xff));
+                n ++;
+            }
+        }
+        return (float) sum / n;
+    }
+    //------------------------------------------------------------------------------------------------//
+    // Purpose   : This function tells whether a frame may hold a finger and needs the native check.
+    // Function  : Check
+    // Arguments :
+    //      (In) : byte[] image : raw frame
+    // Return    : boolean : true if the statistic is over threshold or not calibrated yet
+    //------------------------------------------------------------------------------------------------//
+    public synchronized boolean Check(byte[] image) {
+        m_fLast = Statistic(image);
+        m_nChecked ++;
+        if (Float.isNaN(m_fThreshold) || m_fLast >= m_fThreshold) return true;
+        m_nSkipped ++;
+        return false;
+    }
+    //------------------------------------------------------------------------------------------------//
+    // Purpose   : This function passes the native finger score of the last checked frame for calibration.
+    // Function  : OnNativeScore
+    // Arguments :
+    //      (In) : int pressScore : result of IsPressFinger for the frame given to Check last
+    // Return    : void
+    //------------------------------------------------------------------------------------------------//
+    public synchronized void OnNativeScore(int pressScore) {
+        if (!Float.isNaN(m_fThreshold) || pressScore > EMPTY_SCORE) return;
+        m_fCalib[m_nCalib ++] = m_fLast;
+        if (m_nCalib < CALIB_FRAMES) return;
+        float[] v = Arrays.copyOf(m_fCalib, CALIB_FRAMES);
+        Arrays.sort(v);
+        float median = v[CALIB_FRAMES / 2];
+        for (int i = 0; i < CALIB_FRAMES; i ++) v[i] = Math.abs(m_fCalib[i] - median);
+        Arrays.sort(v);
+        float sigma = 1.4826f * v[CALIB_FRAMES / 2];
+        m_fThreshold = median + Math.max(MARGIN_SIGMAS * sigma, MIN_MARGIN);
+    }
+    //----------------------------------------------------------------------------------------------------
+    public synchronized void Recalibrate() {
+        m_nCalib = 0;
+        m_fThreshold = Float.NaN;
+    }
+    //----------------------------------------------------------------------------------------------------
+    public synchronized boolean IsCalibrated() {
+        return !Float.isNaN(m_fThreshold);
+    }
+    //----------------------------------------------------------------------------------------------------
+    public synchronized float GetThreshold() {
+        return m_fThreshold;
+    }
+    //----------------------------------------------------------------------------------------------------
+    public synchronized long GetCheckedCount() {
+        return m_nChecked;
+    }
+    //----------------------------------------------------------------------------------------------------
+    // Return : frames which skipped the native check
+    public synchronized long GetSkippedCount() {
+        return m_nSkipped;
+    }
+}
@@ -0,0 +1,290 @@
+package com.HZFINGER;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//****************************************************************************************************
+// Re-creates enrolled templates from stored images, e.g. after a change of template format or extractor.
+//
+// Images come from a directory of <id>.raw / <id>.wsq files (<id>_<n>.* for several images of one id)
+// or from a FrameArchive, where the frames of a user are taken best quality first. Each user is one
+// item : the worker pool extracts a template from each of its images (at most MAX_CANDIDATES) and keeps
+// the best. Results are committed to the Sink in batches of BATCH_SIZE, one DATABASE transaction each
+// (HAPI.PutRecords), and the keys of committed items are appended to a checkpoint file, so a job run
+// again after a crash or Cancel() skips them.
+//****************************************************************************************************
+public class RetemplateJob {
+    //----------------------------------------------------------------------------------------------------
+    public interface Extractor {
+        // Return : quality of template created from raw image into itemplate(FPINFO_SIZE), 0 on failure,
+        //          e.g. LAPI.CreateISOTemplate
+        int Create(byte[] image, byte[] itemplate);
+    }
+    public interface Sink {
+        // Return : HAPI error code of storing n templates, e.g. HAPI.PutRecords
+        int Put(String[] ids, byte[][] itemplates, int n);
+    }
+    public interface Listener {
+        void OnProgress(Progress p);
+    }
+    public interface Frame {
+        // Return : false if the image cannot be read
+        boolean Read(byte[] raw) throws IOException;
+    }
+    //----------------------------------------------------------------------------------------------------
+    public static class Item {
+        public final String id;
+        public final String key;                        // identifies the item in the checkpoint
+        public final List<Frame> frames = new ArrayList<>();
+        public Item(String id, String key) {
+            this.id = id;
+            this.key = key;
+        }
+    }
+    public static class Progress {
+        public int total;                               // items of this run, without skipped ones
+        public int skipped;                             // items committed by an earlier run
+        public int done;                                // items committed by this run
+        public int failed;                              // items without usable image
+        public float perSecond;                         // items extracted per second
+        public boolean finished;
+    }
+    //----------------------------------------------------------------------------------------------------
+    public static final int BATCH_SIZE = 50;
+    public static final int MAX_CANDIDATES = 3;
+    public static final String RAW_EXT = ".raw";
+    public static final String WSQ_EXT = ".wsq";
+    //----------------------------------------------------------------------------------------------------
+    private final Extractor m_hExtractor;
+    private final Sink m_hSink;
+    private final File m_hCheckpoint;
+    private final int m_nThreads;
+    private volatile boolean m_bCancel = false;
+    //----------------------------------------------------------------------------------------------------
+    public RetemplateJob(Extractor extractor, Sink sink, File checkpoint, int threads) {
+        m_hExtractor = extractor;
+        m_hSink = sink;
+        m_hCheckpoint = checkpoint;
+        m_nThreads = Math.max(1, threads);
+    }
+    //------------------------------------------------------------------------------------------------//
+    // Purpose   : This function lists the items of a directory of raw and WSQ images.
+    // Function  : FromDirectory
+    // Arguments :
+    //      (In) : File dir : directory of <id>.raw, <id>.wsq, <id>_<n>.raw, <id>_<n>.wsq files
+    //      (In) : FrameArchive.Codec codec : WSQ decoder, null - WSQ files are ignored
+    // Return    : List<Item> : one item per id, in file name order
+    //------------------------------------------------------------------------------------------------//
+    public static List<Item> FromDirectory(File dir, final FrameArchive.Codec codec) {
+        File[] files = dir.listFiles();
+        Map<String, Item> items = new LinkedHashMap<>();
+        if (files == null) return new ArrayList<>();
+        Arrays.sort(files);
+        for (final File f : files) {
+            String name = f.getName();
+            boolean wsq = name.endsWith(WSQ_EXT);
+            if (!name.endsWith(RAW_EXT) && !(wsq && codec != null)) continue;
+            String id = name.substring(0, name.length() - 4);
+            int u = id.lastIndexOf('_');
+            if (u > 0 && IsNumber(id.substring(u + 1))) id = id.substring(0, u);
+            Item item = items.get(id);
+            if (item == null) items.put(id, item = new Item(id, "dir:" + id));
+            if (item.frames.size() >= MAX_CANDIDATES) continue;
+            if (wsq) {
+                item.frames.add(raw -> {
+                    byte[] data = new byte[(int) f.length()];
+                    return ReadFully(f, data) && codec.Decompress(data, data.length, raw) > 0;
+                });
+            } else {
+                item.frames.add(raw -> {
+                    return f.length() == LAPI.IMAGE_SIZE && ReadFully(f, raw);
+                });
+            }
+        }
+        return new ArrayList<>(items.values());
+    }
+    //------------------------------------------------------------------------------------------------//
+    // Purpose   : This function lists the items of a frame archive, frames captured for no user are left out.
+    // Function  : FromArchive
+    // Arguments :
+    //      (In) : FrameArchive archive
+    // Return    : List<Item> : one item per user, best quality frames first
+    //------------------------------------------------------------------------------------------------//
+    public static List<Item> FromArchive(final FrameArchive archive) {
+        Map<String, List<FrameArchive.Record>> users = new LinkedHashMap<>();
+        for (FrameArchive.Record rec : archive.Query(0, Long.MAX_VALUE, null)) {
+            if (rec.userId == null || rec.userId.isEmpty()) continue;
+            List<FrameArchive.Record> l = users.get(rec.userId);
+            if (l == null) users.put(rec.userId, l = new ArrayList<>());
+            l.add(rec);
+        }
+        List<Item> items = new ArrayList<>(users.size());
+        for (Map.Entry<String, List<FrameArchive.Record>> e : users.entrySet()) {
+            List<FrameArchive.Record> l = e.getValue();
+            Collections.sort(l, (a, b) -> b.quality - a.quality);
+            Item item = new Item(e.getKey(), "archive:" + e.getKey());
+            for (int i = 0; i < l.size() && i < MAX_CANDIDATES; i ++) {
+                final FrameArchive.Record rec = l.get(i);
+                item.frames.add(raw -> archive.Read(rec, raw));
+            }
+            items.add(item);
+        }
+        return items;
+    }
+    //----------------------------------------------------------------------------------------------------
+    // Stops the job after items in progress; they are committed and the job can be resumed.
+    public void Cancel() {
+        m_bCancel = true;
+    }
+    //------------------------------------------------------------------------------------------------//
+    // Purpose   : This function re-creates templates of all items not committed yet.
+    // Function  : Run
+    // Arguments :
+    //      (In) : List<Item> items
+    //      (In) : Listener listener : progress after every batch, null - none
+    // Return    : Progress : final counts
+    //------------------------------------------------------------------------------------------------//
+    public Progress Run(List<Item> items, Listener listener) throws IOException, InterruptedException {
+        Set<String> done = LoadCheckpoint();
+        List<Item> todo = new ArrayList<>(items.size());
+        for (Item item : items) {
+            if (!done.contains(item.key)) todo.add(item);
+        }
+        final Progress p = new Progress();
+        p.total = todo.size();
+        p.skipped = items.size() - todo.size();
+
+        AtomicInteger n = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(m_nThreads, r -> {
+            Thread t = new Thread(r, "HZFinger-Retemplate-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        ExecutorCompletionService<Object[]> results = new ExecutorCompletionService<>(pool);
+        String[] ids = new String[BATCH_SIZE];
+        String[] keys = new String[BATCH_SIZE];
+        byte[][] templates = new byte[BATCH_SIZE][];
+        int batch = 0;
+        long start = System.nanoTime();
+        try (Writer checkpoint = new OutputStreamWriter(new FileOutputStream(m_hCheckpoint, true), StandardCharsets.UTF_8)) {
+            int next = 0, inFlight = 0;
+            while (next < todo.size() || inFlight > 0) {
+                // Bounded number of items in memory : a few per worker
+                while (!m_bCancel && next < todo.size() && inFlight < m_nThreads * 2) {
+                    final Item item = todo.get(next ++);
+                    results.submit(() -> Extract(item));
+                    inFlight ++;
+                }
+                if (inFlight == 0) break;
+                Object[] r;
+                try {
+                    r = results.take().get();
+                } catch (ExecutionException e) {
+                    throw new IOException(e.getCause());
+                }
+                inFlight --;
+                Item item = (Item) r[0];
+                if (r[1] == null) {
+                    p.failed ++;
+                } else {
+                    ids[batch] = item.id;
+                    keys[batch] = item.key;
+                    templates[batch ++] = (byte[]) r[1];
+                }
+                if (batch == BATCH_SIZE) {
+                    Commit(ids, keys, templates, batch, checkpoint, p);
+                    batch = 0;
+                    Report(p, start, listener);
+                }
+            }
+            if (batch > 0) Commit(ids, keys, templates, batch, checkpoint, p);
+        } finally {
+            pool.shutdownNow();
+        }
+        p.finished = !m_bCancel;
+        Report(p, start, listener);
+        return p;
+    }
+    //----------------------------------------------------------------------------------------------------
+    // Runs on a worker : best template of the item's images, null if none could be created.
+    private Object[] Extract(Item item) throws IOException {
+        byte[] raw = new byte[LAPI.IMAGE_SIZE];
+        byte[] t = new byte[LAPI.FPINFO_SIZE];
+        byte[] best = null;
+        int bestQuality = 0;
+        for (Frame f : item.frames) {
+            if (!f.Read(raw)) continue;
+            Arrays.fill(t, (byte) 0);
+            int q = m_hExtractor.Create(raw, t);
+            if (q > bestQuality) {
+                bestQuality = q;
+                best = t.clone();
+            }
+        }
+        return new Object[] {item, best};
+    }
+    //----------------------------------------------------------------------------------------------------
+    private void Commit(String[] ids, String[] keys, byte[][] templates, int n, Writer checkpoint, Progress p)
+            throws IOException {
+        int err = m_hSink.Put(ids, templates, n);
+        if (err != HAPI.ERROR_NONE) throw new IOException("Storing templates failed (Error code: " + err + ")");
+        for (int i = 0; i < n; i ++) checkpoint.write(keys[i] + "\n");
+        checkpoint.flush();
+        p.done += n;
+    }
+    //----------------------------------------------------------------------------------------------------
+    private static void Report(Progress p, long start, Listener listener) {
+        float sec = (System.nanoTime() - start) / 1e9f;
+        p.perSecond = sec > 0 ? (p.done + p.failed) / sec : 0;
+        if (listener != null) listener.OnProgress(p);
+    }
+    //----------------------------------------------------------------------------------------------------
+    private Set<String> LoadCheckpoint() throws IOException {
+        Set<String> keys = new HashSet<>();
+        if (!m_hCheckpoint.exists()) return keys;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(m_hCheckpoint), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.isEmpty()) keys.add(line);
+            }
+        }
+        return keys;
+    }
+    //----------------------------------------------------------------------------------------------------
+    private static boolean ReadFully(File f, byte[] data) throws IOException {
+        try (InputStream in = new FileInputStream(f)) {
+            int n = 0, r;
+            while (n < data.length && (r = in.read(data, n, data.length - n)) > 0) n += r;
+            return n == data.length;
+        }
+    }
+    //----------------------------------------------------------------------------------------------------
+    private static boolean IsNumber(String s) {
+        if (s.isEmpty()) return false;
+        for (int i = 0; i < s.length(); i ++) {
+            if (!Character.isDigit(s.charAt(i))) return false;
+        }
+        return true;
+    }
+}
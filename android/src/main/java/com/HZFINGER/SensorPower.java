@@ -0,0 +1,183 @@
+package com.HZFINGER;
+
+//****************************************************************************************************
+// Power policy of one sensor while it is monitored.
+//
+// ACTIVE  : frames are read back to back.
+// DOZE    : no finger for DozeAfter ms, acquisition pauses; one presence probe frame is read every
+//           ProbeInterval ms and a finger on it wakes the sensor.
+// SUSPEND : no finger for SuspendAfter ms, the sensor is powered off (LAPI.POWER_OFF) and only Wake()
+//           from the application brings it back; the monitoring loop then re-opens the device.
+//
+// Wake() ends a pause at once and starts a wake timer which the next frame stops, so the latency from
+// trigger to first frame (including POWER_ON after SUSPEND) is measured. Times are in ms and passed
+// by the caller, System.currentTimeMillis() on device.
+//****************************************************************************************************
+public class SensorPower {
+    //----------------------------------------------------------------------------------------------------
+    public static final int ACTIVE = 0;
+    public static final int DOZE = 1;
+    public static final int SUSPEND = 2;
+    public static final long DEF_DOZE_AFTER_MS = 30000;
+    public static final long DEF_PROBE_INTERVAL_MS = 500;
+    public static final long DEF_SUSPEND_AFTER_MS = 0;          // 0 - never powered off
+    //----------------------------------------------------------------------------------------------------
+    private long m_nDozeAfter = DEF_DOZE_AFTER_MS;
+    private long m_nProbeInterval = DEF_PROBE_INTERVAL_MS;
+    private long m_nSuspendAfter = DEF_SUSPEND_AFTER_MS;
+    private int m_nState = ACTIVE;
+    private long m_tLastActivity;
+    private long m_tStateSince;
+    private final long[] m_nStateTime = new long[3];
+    private int m_nWakeGen = 0;
+    private long m_tWake = -1;                                  // pending Wake(), -1 - none
+    private int m_nWakeCount = 0;
+    private long m_nLastLatency = -1;
+    private long m_nTotalLatency = 0;
+    private int m_nLatencyCount = 0;
+    //----------------------------------------------------------------------------------------------------
+    public SensorPower(long now) {
+        m_tLastActivity = now;
+        m_tStateSince = now;
+    }
+    //------------------------------------------------------------------------------------------------//
+    // Purpose   : This function sets the policy.
+    // Function  : SetPolicy
+    // Arguments :
+    //      (In) : long dozeAfter : idle time before DOZE, 0 - never
+    //      (In) : long probeInterval : time between presence probes in DOZE
+    //      (In) : long suspendAfter : idle time before SUSPEND, 0 - never
+    // Return    : void
+    //------------------------------------------------------------------------------------------------//
+    public synchronized void SetPolicy(long dozeAfter, long probeInterval, long suspendAfter) {
+        m_nDozeAfter = Math.max(0, dozeAfter);
+        m_nProbeInterval = Math.max(1, probeInterval);
+        m_nSuspendAfter = Math.max(0, suspendAfter);
+    }
+    //----------------------------------------------------------------------------------------------------
+    public synchronized long GetDozeAfter() {
+        return m_nDozeAfter;
+    }
+    //----------------------------------------------------------------------------------------------------
+    public synchronized long GetProbeInterval() {
+        return m_nProbeInterval;
+    }
+    //----------------------------------------------------------------------------------------------------
+    public synchronized long GetSuspendAfter() {
+        return m_nSuspendAfter;
+    }
+    //------------------------------------------------------------------------------------------------//
+    // Purpose   : This function moves to the state the idle time calls for, called once per loop.
+    // Function  : Step
+    // Arguments :
+    //      (In) : long now : current time
+    // Return    : int : ACTIVE, DOZE or SUSPEND
+    //------------------------------------------------------------------------------------------------//
+    public synchronized int Step(long now) {
+        long idle = now - m_tLastActivity;
+        int state = ACTIVE;
+        if (m_nDozeAfter > 0 && idle >= m_nDozeAfter) state = DOZE;
+        if (m_nSuspendAfter > 0 && idle >= m_nSuspendAfter) state = SUSPEND;
+        SetState(state, now);
+        return m_nState;
+    }
+    //------------------------------------------------------------------------------------------------//
+    // Purpose   : This function restarts the idle time, called for a finger on the sensor.
+    // Function  : OnActivity
+    // Arguments :
+    //      (In) : long now : current time
+    // Return    : void
+    //------------------------------------------------------------------------------------------------//
+    public synchronized void OnActivity(long now) {
+        m_tLastActivity = now;
+        SetState(ACTIVE, now);
+    }
+    //------------------------------------------------------------------------------------------------//
+    // Purpose   : This function wakes the sensor on an application trigger (e.g. a person in front of the kiosk).
+    // Function  : Wake
+    // Arguments :
+    //      (In) : long now : current time
+    // Return    : boolean : true if the sensor was in DOZE or SUSPEND
+    //------------------------------------------------------------------------------------------------//
+    public synchronized boolean Wake(long now) {
+        m_tLastActivity = now;
+        if (m_nState == ACTIVE) return false;
+        if (m_tWake < 0) m_tWake = now;
+        m_nWakeCount ++;
+        SetState(ACTIVE, now);
+        m_nWakeGen ++;
+        notifyAll();
+        return true;
+    }
+    //------------------------------------------------------------------------------------------------//
+    // Purpose   : This function stops the wake timer, called for every frame read.
+    // Function  : OnFrame
+    // Arguments :
+    //      (In) : long now : current time
+    // Return    : long : wake-to-first-frame latency if this is the first frame after Wake(), else -1
+    //------------------------------------------------------------------------------------------------//
+    public synchronized long OnFrame(long now) {
+        if (m_tWake < 0) return -1;
+        m_nLastLatency = now - m_tWake;
+        m_nTotalLatency += m_nLastLatency;
+        m_nLatencyCount ++;
+        m_tWake = -1;
+        return m_nLastLatency;
+    }
+    //------------------------------------------------------------------------------------------------//
+    // Purpose   : This function gives the pause before the next frame.
+    // Function  : PollInterval
+    // Arguments :
+    //      (In) : long pause : pause the loop wants in ACTIVE state
+    // Return    : long : pause, at least ProbeInterval in DOZE
+    //------------------------------------------------------------------------------------------------//
+    public synchronized long PollInterval(long pause) {
+        if (m_nState == DOZE) return Math.max(pause, m_nProbeInterval);
+        return pause;
+    }
+    //------------------------------------------------------------------------------------------------//
+    // Purpose   : This function pauses the loop, returning early on Wake().
+    // Function  : Sleep
+    // Arguments :
+    //      (In) : long ms : pause
+    // Return    : boolean : true if woken by Wake()
+    //------------------------------------------------------------------------------------------------//
+    public synchronized boolean Sleep(long ms) throws InterruptedException {
+        int gen = m_nWakeGen;
+        long deadline = System.currentTimeMillis() + ms;
+        long wait;
+        while (gen == m_nWakeGen && (wait = deadline - System.currentTimeMillis()) > 0) wait(wait);
+        return gen != m_nWakeGen;
+    }
+    //----------------------------------------------------------------------------------------------------
+    public synchronized int GetState() {
+        return m_nState;
+    }
+    //----------------------------------------------------------------------------------------------------
+    public synchronized int GetWakeCount() {
+        return m_nWakeCount;
+    }
+    //----------------------------------------------------------------------------------------------------
+    // Return : latency of the last wake in ms, -1 if none measured yet
+    public synchronized long GetLastWakeLatency() {
+        return m_nLastLatency;
+    }
+    //----------------------------------------------------------------------------------------------------
+    public synchronized long GetMeanWakeLatency() {
+        return m_nLatencyCount > 0 ? m_nTotalLatency / m_nLatencyCount : -1;
+    }
+    //----------------------------------------------------------------------------------------------------
+    // Return : total time spent in state up to now, ms
+    public synchronized long GetStateTime(int state, long now) {
+        long t = m_nStateTime[state];
+        if (state == m_nState) t += now - m_tStateSince;
+        return t;
+    }
+    //----------------------------------------------------------------------------------------------------
+    private void SetState(int state, long now) {
+        if (state == m_nState) return;
+        m_nStateTime[m_nState] += now - m_tStateSince;
+        m_tStateSince = now;
+        m_nState = state;
+    }
+}
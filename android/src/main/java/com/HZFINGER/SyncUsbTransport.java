@@ -0,0 +1,46 @@
+package com.HZFINGER;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.util.Log;
+
+//*********************************************************************************************************
+// Synchronous transport : blocking bulkTransfer calls straight into/out of the caller's buffer in large
+// chunks (see BulkIo). Max-packet-size chunks are only used if the host refuses the large ones.
+//*********************************************************************************************************
+final class SyncUsbTransport implements UsbTransport {
+    private static final String TAG = "OpenHostUsb";
+
+    private final BulkIo m_hBulkIn;
+    private final BulkIo m_hBulkOut;
+
+    //-----------------------------------------------------------------------------------------------------//
+    SyncUsbTransport(UsbDeviceConnection conn, UsbEndpoint epIn, UsbEndpoint epOut, int maxTransfer) {
+        m_hBulkIn = new BulkIo((buf, off, len, timeout) -> conn.bulkTransfer(epIn, buf, off, len, timeout), epIn.getMaxPacketSize(), maxTransfer);
+        m_hBulkOut = new BulkIo((buf, off, len, timeout) -> conn.bulkTransfer(epOut, buf, off, len, timeout), epOut.getMaxPacketSize(), maxTransfer);
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    @Override
+    public boolean Send(byte[] buffer, int length, int timeout) {
+        return Transfer(m_hBulkOut, buffer, length, timeout, "USBBulkSend");
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    @Override
+    public boolean Receive(byte[] buffer, int length, int timeout) {
+        return Transfer(m_hBulkIn, buffer, length, timeout, "USBBulkReceive");
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    @Override
+    public void Close() {
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    private static boolean Transfer(BulkIo bulk, byte[] buffer, int length, int timeout, String name) {
+        boolean large = bulk.IsLargeTransfer();
+        if (!bulk.Transfer(buffer, length, timeout)) {
+            Log.e(TAG, name + " bulkTransfer failed: Expected " + length + " bytes.");
+            return false;
+        }
+        if (large && !bulk.IsLargeTransfer()) Log.w(TAG, name + ": large transfers refused, using max packet size.");
+        return true;
+    }
+}
@@ -0,0 +1,313 @@
+package com.HZFINGER;
+
+//*********************************************************************************************************
+// Pre-filter index for 1:N searching.
+// Keeps cheap features parsed from ISO 19794-2 / ANSI 378 minutiae records for every gallery slot and
+// ranks the slots against a probe, so that only the best K candidates go to the native matcher.
+// Slots mirror the layout of HAPI's template array : Put/Remove must be called with the same indices.
+//*********************************************************************************************************
+public class TemplateIndex {
+    //-------------------------The below defines layout of ISO/ANSI minutiae records-----------------------//
+    static final int ISO_HEADER_SIZE = 24;
+    static final int ANSI_HEADER_SIZE = 26;
+    static final int ANSI_HEADER_SIZE_EX = 30;
+    static final int VIEW_HEADER_SIZE = 4;
+    static final int MINUTIA_SIZE = 6;
+    static final int EXT_CORE_DELTA = 0x0002;
+    static final int DEF_RESOLUTION = 197;      // pixels per cm (500 dpi)
+
+    //-------------------------The below defines quantization of minutia pair histogram-------------------//
+    static final int DIST_BINS = 16;
+    static final int ANGLE_BINS = 8;
+    static final int HIST_SIZE = DIST_BINS*ANGLE_BINS;
+    static final int DIST_STEP = 12;            // pixels per distance bin
+
+    //-------------------------The below defines weights of feature distance-----------------------------//
+    static final float W_COUNT = 0.5f;
+    static final float W_HIST = 1.0f;
+    static final float W_TYPE = 0.3f;
+    static final float W_DENSITY = 0.3f;
+    static final float W_SINGULAR = 0.2f;
+
+    //*********************************************************************************************************
+    // Features of one minutiae record
+    //*********************************************************************************************************
+    public static class Features {
+        public boolean valid;
+        public int minutiae;
+        public float bifRatio;
+        public float density;
+        public int cores = -1;
+        public int deltas = -1;
+        public final float[] hist = new float[HIST_SIZE];
+    }
+
+    private final int m_nCapacity;
+    private int m_nCount = 0;
+    private final boolean[] m_bValid;
+    private final int[] m_nMinutiae;
+    private final float[] m_fBifRatio;
+    private final float[] m_fDensity;
+    private final int[] m_nCores;
+    private final int[] m_nDeltas;
+    private final float[] m_fHist;
+
+    //-----------------------------------------------------------------------------------------------------//
+    public TemplateIndex(int capacity) {
+        m_nCapacity = capacity;
+        m_bValid = new boolean[capacity];
+        m_nMinutiae = new int[capacity];
+        m_fBifRatio = new float[capacity];
+        m_fDensity = new float[capacity];
+        m_nCores = new int[capacity];
+        m_nDeltas = new int[capacity];
+        m_fHist = new float[capacity*HIST_SIZE];
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    public TemplateIndex Copy() {
+        TemplateIndex c = new TemplateIndex(m_nCapacity);
+        int n = m_nCount;
+        System.arraycopy(m_bValid, 0, c.m_bValid, 0, n);
+        System.arraycopy(m_nMinutiae, 0, c.m_nMinutiae, 0, n);
+        System.arraycopy(m_fBifRatio, 0, c.m_fBifRatio, 0, n);
+        System.arraycopy(m_fDensity, 0, c.m_fDensity, 0, n);
+        System.arraycopy(m_nCores, 0, c.m_nCores, 0, n);
+        System.arraycopy(m_nDeltas, 0, c.m_nDeltas, 0, n);
+        System.arraycopy(m_fHist, 0, c.m_fHist, 0, n*HIST_SIZE);
+        c.m_nCount = n;
+        return c;
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    public int GetCount() {
+        return m_nCount;
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    public void Clear() {
+        m_nCount = 0;
+    }
+    //*********************************************************************************************************
+    // Purpose   : Parse template and store its features in the appointed slot
+    // Function  : Put
+    // Arguments :
+    //			(In) : int slot : index of template in gallery, must be <= GetCount()
+    //			(In) : byte[] templates : template buffer
+    //			(In) : int offset : offset of template inside buffer
+    // Return    : boolean : false if template could not be parsed (slot is still stored and never pruned)
+    //*********************************************************************************************************
+    public boolean Put(int slot, byte[] templates, int offset) {
+        if (slot < 0 || slot >= m_nCapacity || slot > m_nCount) return false;
+        Features f = new Features();
+        Parse(templates, offset, f);
+        m_bValid[slot] = f.valid;
+        m_nMinutiae[slot] = f.minutiae;
+        m_fBifRatio[slot] = f.bifRatio;
+        m_fDensity[slot] = f.density;
+        m_nCores[slot] = f.cores;
+        m_nDeltas[slot] = f.deltas;
+        System.arraycopy(f.hist, 0, m_fHist, slot*HIST_SIZE, HIST_SIZE);
+        if (slot == m_nCount) m_nCount ++;
+        return f.valid;
+    }
+    //*********************************************************************************************************
+    // Purpose   : Remove slot by moving the last slot into it (same as HAPI.DeleteRecord)
+    // Function  : Remove
+    // Arguments :
+    //			(In) : int slot : index of template in gallery
+    // Return    : none
+    //*********************************************************************************************************
+    public void Remove(int slot) {
+        if (slot < 0 || slot >= m_nCount) return;
+        int last = m_nCount - 1;
+        m_bValid[slot] = m_bValid[last];
+        m_nMinutiae[slot] = m_nMinutiae[last];
+        m_fBifRatio[slot] = m_fBifRatio[last];
+        m_fDensity[slot] = m_fDensity[last];
+        m_nCores[slot] = m_nCores[last];
+        m_nDeltas[slot] = m_nDeltas[last];
+        System.arraycopy(m_fHist, last*HIST_SIZE, m_fHist, slot*HIST_SIZE, HIST_SIZE);
+        m_nCount --;
+    }
+    //*********************************************************************************************************
+    // Purpose   : Rank gallery slots against probe and return the best candidates
+    // Function  : Query
+    // Arguments :
+    //			(In) : byte[] probe : template to search
+    //			(In) : int topK : maximum number of candidates
+    //		(In/Out) : int[] candidates : slot indices of candidates, best first
+    // Return    : int : number of candidates, or -1 if probe could not be parsed
+    //*********************************************************************************************************
+    public int Query(byte[] probe, int topK, int[] candidates) {
+        return Query(probe, topK, null, m_nCount, candidates);
+    }
+    //*********************************************************************************************************
+    // Purpose   : Rank appointed gallery slots against probe and return the best candidates
+    // Function  : Query
+    // Arguments :
+    //			(In) : byte[] probe : template to search
+    //			(In) : int topK : maximum number of candidates
+    //			(In) : int[] slots : slot indices to be ranked, null for all slots
+    //			(In) : int nSlots : number of slot indices
+    //		(In/Out) : int[] candidates : slot indices of candidates, best first (must not be slots)
+    // Return    : int : number of candidates, or -1 if probe could not be parsed
+    //*********************************************************************************************************
+    public int Query(byte[] probe, int topK, int[] slots, int nSlots, int[] candidates) {
+        Features p = new Features();
+        Parse(probe, 0, p);
+        if (!p.valid) return -1;
+
+        if (slots == null) nSlots = m_nCount;
+        int k = Math.min(Math.min(topK, nSlots), candidates.length);
+        if (k <= 0) return 0;
+        float[] best = new float[k];
+        int n = 0;
+        for (int s = 0; s < nSlots; s ++) {
+            int i = (slots == null) ? s : slots[s];
+            if (i < 0 || i >= m_nCount) continue;
+            float d = Distance(p, i);
+            if (n == k && d >= best[k-1]) continue;
+            int j = (n < k) ? n ++ : k - 1;
+            while (j > 0 && best[j-1] > d) {
+                best[j] = best[j-1];
+                candidates[j] = candidates[j-1];
+                j --;
+            }
+            best[j] = d;
+            candidates[j] = i;
+        }
+        return n;
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    float Distance(Features p, int slot) {
+        if (!m_bValid[slot]) return 0;
+
+        int n = m_nMinutiae[slot];
+        float d = W_COUNT * Math.abs(p.minutiae - n) / Math.max(1, Math.max(p.minutiae, n));
+
+        float h = 0;
+        int base = slot*HIST_SIZE;
+        for (int i = 0; i < HIST_SIZE; i ++) h += Math.abs(p.hist[i] - m_fHist[base+i]);
+        d += W_HIST * h * 0.5f;
+
+        d += W_TYPE * Math.abs(p.bifRatio - m_fBifRatio[slot]);
+
+        float dens = m_fDensity[slot];
+        float maxDens = Math.max(p.density, dens);
+        if (maxDens > 0) d += W_DENSITY * Math.abs(p.density - dens) / maxDens;
+
+        if (p.cores >= 0 && m_nCores[slot] >= 0 && p.cores != m_nCores[slot]) d += W_SINGULAR;
+        if (p.deltas >= 0 && m_nDeltas[slot] >= 0 && p.deltas != m_nDeltas[slot]) d += W_SINGULAR;
+        return d;
+    }
+    //*********************************************************************************************************
+    // Purpose   : Parse features of ISO or ANSI minutiae record, format is detected from header
+    // Function  : Parse
+    // Arguments :
+    //			(In) : byte[] t : template buffer
+    //			(In) : int off : offset of template inside buffer
+    //		(In/Out) : Features f : parsed features, f.valid is false if record is not recognized
+    // Return    : none
+    //*********************************************************************************************************
+    public static void Parse(byte[] t, int off, Features f) {
+        f.valid = false;
+        if (t == null || off < 0 || off + ANSI_HEADER_SIZE_EX + VIEW_HEADER_SIZE > t.length) return;
+        if (t[off] != 'F' || t[off+1] != 'M' || t[off+2] != 'R' || t[off+3] != 0) return;
+
+        int header, recLen, resX, resY;
+        boolean ansi = false;
+        int isoLen = U32(t, off + 8);
+        if (isoLen >= ISO_HEADER_SIZE + VIEW_HEADER_SIZE && isoLen <= LAPI.FPINFO_SIZE
+                && ISO_HEADER_SIZE + VIEW_HEADER_SIZE + MINUTIA_SIZE*(t[off+ISO_HEADER_SIZE+3] & 0xff) <= isoLen) {
+            header = ISO_HEADER_SIZE;
+            recLen = isoLen;
+            resX = U16(t, off + 18);
+            resY = U16(t, off + 20);
+        }
+        else {
+            recLen = U16(t, off + 8);
+            header = ANSI_HEADER_SIZE;
+            if (recLen == 0) {
+                recLen = U32(t, off + 10);
+                header = ANSI_HEADER_SIZE_EX;
+            }
+            if (recLen < header + VIEW_HEADER_SIZE || recLen > LAPI.FPINFO_SIZE) return;
+            resX = U16(t, off + header - 6);
+            resY = U16(t, off + header - 4);
+            ansi = true;
+        }
+        if (off + recLen > t.length) return;
+        if (resX == 0) resX = DEF_RESOLUTION;
+        if (resY == 0) resY = DEF_RESOLUTION;
+
+        int pos = off + header;
+        int n = t[pos+3] & 0xff;
+        pos += VIEW_HEADER_SIZE;
+        if (pos + n*MINUTIA_SIZE > off + recLen) return;
+
+        int[] x = new int[n], y = new int[n], a = new int[n];
+        int bif = 0, minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = 0, maxY = 0;
+        for (int i = 0; i < n; i ++, pos += MINUTIA_SIZE) {
+            int type = (t[pos] >> 6) & 0x03;
+            x[i] = U16(t, pos) & 0x3fff;
+            y[i] = U16(t, pos + 2) & 0x3fff;
+            a[i] = ansi ? (t[pos+4] & 0xff) * 2 : (t[pos+4] & 0xff) * 360 / 256;
+            if (type == 2) bif ++;
+            if (x[i] < minX) minX = x[i];
+            if (x[i] > maxX) maxX = x[i];
+            if (y[i] < minY) minY = y[i];
+            if (y[i] > maxY) maxY = y[i];
+        }
+
+        f.minutiae = n;
+        f.bifRatio = n > 0 ? (float)bif / n : 0;
+        float areaCm2 = ((maxX - minX + 1) / (float)resX) * ((maxY - minY + 1) / (float)resY);
+        f.density = (n > 1 && areaCm2 > 0) ? n / areaCm2 : 0;
+
+        //Minutia pair histogram : distance x relative direction, invariant to translation and rotation
+        for (int i = 0; i < HIST_SIZE; i ++) f.hist[i] = 0;
+        int maxDist = DIST_BINS*DIST_STEP, pairs = 0;
+        for (int i = 0; i < n; i ++) {
+            for (int j = i + 1; j < n; j ++) {
+                int dx = x[i] - x[j], dy = y[i] - y[j];
+                int dd = dx*dx + dy*dy;
+                if (dd >= maxDist*maxDist) continue;
+                int db = (int)Math.sqrt(dd) / DIST_STEP;
+                int da = Math.abs(a[i] - a[j]) % 360;
+                if (da > 180) da = 360 - da;
+                int ab = Math.min(ANGLE_BINS - 1, da * ANGLE_BINS / 180);
+                f.hist[db*ANGLE_BINS + ab] += 1;
+                pairs ++;
+            }
+        }
+        if (pairs > 0) for (int i = 0; i < HIST_SIZE; i ++) f.hist[i] /= pairs;
+
+        //Core and delta counts from extended data (ISO 19794-2 type 0x0002), when present
+        f.cores = -1;
+        f.deltas = -1;
+        if (pos + 2 <= off + recLen) {
+            int extEnd = Math.min(pos + 2 + U16(t, pos), off + recLen);
+            pos += 2;
+            while (pos + 4 <= extEnd) {
+                int type = U16(t, pos);
+                int len = U16(t, pos + 2);
+                if (len < 4) break;
+                if (type == EXT_CORE_DELTA && pos + 5 <= extEnd) {
+                    int info = t[pos+4] & 0xff;
+                    f.cores = info & 0x3f;
+                    int coreSize = ((info >> 6) == 1) ? 5 : 4;
+                    int dpos = pos + 5 + f.cores*coreSize;
+                    if (dpos < extEnd) f.deltas = t[dpos] & 0x3f;
+                }
+                pos += len;
+            }
+        }
+        f.valid = true;
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    static int U16(byte[] t, int pos) {
+        return ((t[pos] & 0xff) << 8) | (t[pos+1] & 0xff);
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    static int U32(byte[] t, int pos) {
+        return ((t[pos] & 0xff) << 24) | ((t[pos+1] & 0xff) << 16) | ((t[pos+2] & 0xff) << 8) | (t[pos+3] & 0xff);
+    }
+}
@@ -0,0 +1,164 @@
+package com.HZFINGER;
+
+//****************************************************************************************************
+// Best frame of one finger placement.
+//
+// Finger frames of a touch go into a ring of the last RingSize frames, each scored when it comes in.
+// SettleTime after the first finger frame, or when the finger is lifted earlier, the best scored frame
+// of the ring is handed out once for template extraction; the rest of the touch is ignored until Lift.
+// Contact usually improves during the first few hundred ms of a placement, so the chosen frame is
+// better than the first one while templates are still created once per touch.
+//
+// The default scorer is SHARPNESS, a Java metric of ridge contrast over the contact area which costs
+// well under a millisecond per frame; native GetImageQuality/GetNFIQuality can be plugged in instead.
+//****************************************************************************************************
+public class TouchAggregator {
+    //----------------------------------------------------------------------------------------------------
+    public interface Scorer {
+        // Return : quality of a finger frame, higher is better, only compared within a touch
+        int Score(byte[] image);
+    }
+    //----------------------------------------------------------------------------------------------------
+    public static final int DEF_RING_SIZE = 4;
+    public static final long DEF_SETTLE_MS = 300;
+    static final int BLOCK = 8;                         // side of blocks tested for contact
+    static final int CONTACT_CONTRAST = 24;             // min. mean gradient of a block in contact
+    //----------------------------------------------------------------------------------------------------
+    // Sum of ridge gradient over blocks in contact : grows with both contact area and sharpness.
+    public static final Scorer SHARPNESS = image -> {
+        int w = LAPI.WIDTH, h = LAPI.HEIGHT;
+        long total = 0;
+        for (int by = 0; by + BLOCK < h; by += BLOCK) {
+            for (int bx = 0; bx + BLOCK < w; bx += BLOCK) {
+                int g = 0;
+                for (int y = by; y < by + BLOCK; y += 2) {
+                    int row = y * w;
+                    for (int x = bx; x < bx + BLOCK; x += 2) {
+                        int v = image[row + x] & 0xff;
+                        g += Math.abs((image[row + x + 2] & 0xff) - v) + Math.abs((image[row + 2 * w + x] & 0xff) - v);
+                    }
+                }
+                g /= (BLOCK / 2) * (BLOCK / 2);
+                if (g >= CONTACT_CONTRAST) total += g;
+            }
+        }
+        return (int) Math.min(Integer.MAX_VALUE, total);
+    };
+    //----------------------------------------------------------------------------------------------------
+    private final Scorer m_hScorer;
+    private final byte[][] m_bfRing;
+    private final int[] m_nScore;
+    private final int[] m_nPress;
+    private int m_nCount = 0;                           // frames in ring
+    private int m_nNext = 0;                            // slot of next frame
+    private long m_nSettle = DEF_SETTLE_MS;
+    private long m_tFirst = 0;
+    private boolean m_bDone = false;                    // best frame of this touch already handed out
+    private boolean m_bLifted = false;                  // touch ended, its frames wait for Best()
+    private int m_nTouches = 0;
+    private long m_nFrames = 0;
+    private long m_nFirstScoreSum = 0;
+    private long m_nBestScoreSum = 0;
+    private int m_nFirstScore = 0;
+    //----------------------------------------------------------------------------------------------------
+    public TouchAggregator() {
+        this(SHARPNESS, DEF_RING_SIZE);
+    }
+    //----------------------------------------------------------------------------------------------------
+    public TouchAggregator(Scorer scorer, int ringSize) {
+        m_hScorer = scorer;
+        ringSize = Math.max(1, ringSize);
+        m_bfRing = new byte[ringSize][LAPI.IMAGE_SIZE];
+        m_nScore = new int[ringSize];
+        m_nPress = new int[ringSize];
+    }
+    //----------------------------------------------------------------------------------------------------
+    public synchronized void SetSettleTime(long ms) {
+        m_nSettle = Math.max(0, ms);
+    }
+    //------------------------------------------------------------------------------------------------//
+    // Purpose   : This function adds a finger frame of the current touch.
+    // Function  : Offer
+    // Arguments :
+    //      (In) : byte[] image : finger frame, copied
+    //      (In) : int pressScore : finger score of the frame, kept with it
+    //      (In) : long now : capture time in ms
+    // Return    : boolean : true if the best frame is ready, take it with Best()
+    //------------------------------------------------------------------------------------------------//
+    public synchronized boolean Offer(byte[] image, int pressScore, long now) {
+        if (m_bLifted) Reset();
+        if (m_bDone) return false;
+        if (m_nCount == 0) m_tFirst = now;
+        int slot = m_nNext;
+        System.arraycopy(image, 0, m_bfRing[slot], 0, LAPI.IMAGE_SIZE);
+        m_nScore[slot] = m_hScorer.Score(m_bfRing[slot]);
+        m_nPress[slot] = pressScore;
+        if (m_nCount == 0) m_nFirstScore = m_nScore[slot];
+        m_nNext = (slot + 1) % m_bfRing.length;
+        if (m_nCount < m_bfRing.length) m_nCount ++;
+        m_nFrames ++;
+        return now - m_tFirst >= m_nSettle;
+    }
+    //------------------------------------------------------------------------------------------------//
+    // Purpose   : This function ends the current touch, called for a frame without finger.
+    // Function  : Lift
+    // Arguments : void
+    // Return    : boolean : true if frames of the touch are left undecided, take the best with Best()
+    //------------------------------------------------------------------------------------------------//
+    public synchronized boolean Lift() {
+        boolean pending = !m_bDone && m_nCount > 0;
+        if (pending) m_bLifted = true;
+        else Reset();
+        return pending;
+    }
+    //------------------------------------------------------------------------------------------------//
+    // Purpose   : This function drops the frames of the current touch, e.g. for a fake finger.
+    // Function  : Reset
+    // Arguments : void
+    // Return    : void
+    //------------------------------------------------------------------------------------------------//
+    public synchronized void Reset() {
+        m_nCount = 0;
+        m_nNext = 0;
+        m_bDone = false;
+        m_bLifted = false;
+    }
+    //------------------------------------------------------------------------------------------------//
+    // Purpose   : This function hands out the best frame of the touch, once per touch.
+    // Function  : Best
+    // Arguments :
+    //     (Out) : byte[] image : best frame
+    // Return    : int : finger score of the best frame, -1 if there is no frame
+    //------------------------------------------------------------------------------------------------//
+    public synchronized int Best(byte[] image) {
+        if (m_bDone || m_nCount == 0) return -1;
+        int best = 0;
+        for (int i = 1; i < m_nCount; i ++) {
+            if (m_nScore[i] > m_nScore[best]) best = i;
+        }
+        System.arraycopy(m_bfRing[best], 0, image, 0, LAPI.IMAGE_SIZE);
+        m_nTouches ++;
+        m_nFirstScoreSum += m_nFirstScore;
+        m_nBestScoreSum += m_nScore[best];
+        int press = m_nPress[best];
+        m_nCount = 0;
+        m_nNext = 0;
+        m_bDone = !m_bLifted; // after Lift the next touch starts fresh
+        m_bLifted = false;
+        return press;
+    }
+    //----------------------------------------------------------------------------------------------------
+    public synchronized int GetTouchCount() {
+        return m_nTouches;
+    }
+    //----------------------------------------------------------------------------------------------------
+    public synchronized long GetFrameCount() {
+        return m_nFrames;
+    }
+    //----------------------------------------------------------------------------------------------------
+    // Return : mean score of chosen frames over mean score of first frames of touches, 1 if none
+    public synchronized float GetQualityGain() {
+        if (m_nFirstScoreSum == 0) return 1;
+        return (float) m_nBestScoreSum / m_nFirstScoreSum;
+    }
+}
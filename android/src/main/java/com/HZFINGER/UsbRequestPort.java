@@ -0,0 +1,64 @@
+package com.HZFINGER;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeoutException;
+
+import android.annotation.TargetApi;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbRequest;
+
+//*********************************************************************************************************
+// Request queue of one bulk endpoint built on UsbRequest, slot number is kept as client data.
+// Needs Android 8.0 : UsbRequest.queue(ByteBuffer) and UsbDeviceConnection.requestWait(long).
+//*********************************************************************************************************
+@TargetApi(26)
+final class UsbRequestPort implements AsyncUsbTransport.Port {
+    private final UsbDeviceConnection m_hConn;
+    private final UsbRequest[] m_hRequest;
+
+    //-----------------------------------------------------------------------------------------------------//
+    UsbRequestPort(UsbDeviceConnection conn, UsbEndpoint ep, int depth) {
+        m_hConn = conn;
+        m_hRequest = new UsbRequest[depth];
+        for (int i = 0; i < depth; i ++) {
+            UsbRequest r = new UsbRequest();
+            if (r.initialize(conn, ep)) {
+                r.setClientData(i);
+                m_hRequest[i] = r;
+            }
+        }
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    @Override
+    public boolean Queue(int slot, ByteBuffer buffer) {
+        UsbRequest r = m_hRequest[slot];
+        return r != null && r.queue(buffer);
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    @Override
+    public int Wait(long timeout) {
+        try {
+            // 0 waits without limit, as for bulkTransfer of SyncUsbTransport
+            UsbRequest r = (timeout == 0) ? m_hConn.requestWait() : m_hConn.requestWait(timeout);
+            if (r == null || !(r.getClientData() instanceof Integer)) return -1;
+            return (Integer)r.getClientData();
+        } catch (TimeoutException e) {
+            return -1;
+        }
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    @Override
+    public void Cancel(int slot) {
+        UsbRequest r = m_hRequest[slot];
+        if (r != null) r.cancel();
+    }
+    //-----------------------------------------------------------------------------------------------------//
+    @Override
+    public void Close() {
+        for (int i = 0; i < m_hRequest.length; i ++) {
+            if (m_hRequest[i] != null) m_hRequest[i].close();
+            m_hRequest[i] = null;
+        }
+    }
+}
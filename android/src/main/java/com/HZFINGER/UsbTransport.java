@@ -0,0 +1,17 @@
+package com.HZFINGER;
+
+//*********************************************************************************************************
+// Bulk data transport of an opened device, used by HostUsb for MSG_BULK_TRANS_IN / MSG_BULK_TRANS_OUT.
+// Implementations : SyncUsbTransport (bulkTransfer) and AsyncUsbTransport (queued UsbRequest).
+//*********************************************************************************************************
+interface UsbTransport {
+    //-----------------------------------------------------------------------------------------------------//
+    // Send first length bytes of buffer, true if all bytes are sent.
+    boolean Send(byte[] buffer, int length, int timeout);
+    //-----------------------------------------------------------------------------------------------------//
+    // Receive length bytes into start of buffer, true if all bytes are received.
+    boolean Receive(byte[] buffer, int length, int timeout);
+    //-----------------------------------------------------------------------------------------------------//
+    // Release transport resources, connection itself is closed by HostUsb.
+    void Close();
+}
@@ -0,0 +1,59 @@
+package com.drebyte.hzfinger_fingerprint_sdk;
+
+import com.HZFINGER.LAPI;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Open device sessions keyed by device id.
+ *
+ * The id is the USB device name the session was opened with, or DeviceSession.DEFAULT_DEVICE_ID for a
+ * session bound to whichever sensor is attached. Calls that name no device go to the first session.
+ */
+class DeviceRegistry {
+
+    private final Map<String, DeviceSession> sessions = new LinkedHashMap<>();
+
+    synchronized void put(DeviceSession session) {
+        sessions.put(session.getDeviceId(), session);
+    }
+
+    /** Session for deviceId, or the first session if deviceId is null. */
+    synchronized DeviceSession get(String deviceId) {
+        if (deviceId != null) return sessions.get(deviceId);
+        for (DeviceSession s : sessions.values()) return s;
+        return null;
+    }
+
+    synchronized DeviceSession remove(String deviceId) {
+        return sessions.remove(deviceId);
+    }
+
+    synchronized List<DeviceSession> all() {
+        return new ArrayList<>(sessions.values());
+    }
+
+    synchronized List<String> ids() {
+        return new ArrayList<>(sessions.keySet());
+    }
+
+    /** True if a session other than except owns the USB device with this name. */
+    synchronized boolean isDeviceInUse(String usbName, DeviceSession except) {
+        for (DeviceSession s : sessions.values()) {
+            if (s != except && usbName.equals(s.getLapi().GetDeviceName())) return true;
+        }
+        return false;
+    }
+
+    /** Session native callbacks go to when the calling thread is not bound, null if none. */
+    synchronized DeviceSession defaultSession() {
+        LAPI def = LAPI.GetDefaultContext();
+        for (DeviceSession s : sessions.values()) {
+            if (s.getLapi() == def) return s;
+        }
+        return null;
+    }
+}
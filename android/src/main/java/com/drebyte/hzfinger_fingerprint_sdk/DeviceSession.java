@@ -0,0 +1,509 @@
+package com.drebyte.hzfinger_fingerprint_sdk;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbManager;
+import android.os.Build;
+import android.util.Log;
+
+import com.HZFINGER.LAPI;
+import com.HZFINGER.PresenceDetector;
+import com.HZFINGER.SensorPower;
+import com.HZFINGER.TouchAggregator;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Supervised connection to the sensor.
+ *
+ * Native calls take the handle through acquire()/release(). When the sensor is detached the handle is
+ * withdrawn at once, so capture loops pause instead of spinning on failing GetImage calls, and a
+ * reconnect thread re-opens the device with backoff, sooner when it is re-attached. Progress is
+ * reported to the Listener as "device" events.
+ *
+ * Each session has its own LAPI context and capture thread, so several sensors can run side by side;
+ * threads started through the session have native callbacks bound to its LAPI.
+ *
+ * suspend() powers an idle sensor off without closing the session; the detach it causes is not
+ * treated as a lost device, and resume() powers it on and re-opens it.
+ */
+class DeviceSession {
+
+    interface Listener {
+        /**
+         * state is one of "opened", "detached", "reconnecting", "reconnected", "reconnect_failed",
+         * "suspended", "resumed", "closed".
+         */
+        void onDeviceEvent(String state, Map<String, Object> info);
+
+        /** Called on the reconnect thread after a new handle is published, before "reconnected". */
+        void onReopened(long handle);
+
+        /** True if another session owns the USB device with this name. */
+        boolean isDeviceInUse(String usbName);
+    }
+
+    /** Id of the session used when a call names no device. */
+    static final String DEFAULT_DEVICE_ID = "default";
+
+    private static final String TAG = "HZFingerSession";
+    private static final long[] BACKOFF_MS = {250, 500, 1000, 2000, 4000};
+    private static final long RECONNECT_TIMEOUT_MS = 60000;
+
+    private final String deviceId;
+    private final Context context;
+    private final LAPI lapi;
+    private final Listener listener;
+
+    // --- Capture thread owned by the session ---
+    private final AtomicBoolean monitoring = new AtomicBoolean(false);
+    private Thread monitoringThread = null;
+
+    // --- Live preview fed by the capture threads, null when off ---
+    private volatile FramePreview preview = null;
+
+    // --- Idle policy of the monitoring loop ---
+    private final SensorPower power = new SensorPower(System.currentTimeMillis());
+
+    // --- Best frame of each placement, used by the monitoring loop ---
+    private final TouchAggregator touch = new TouchAggregator();
+
+    // --- Java pre-check skipping native finger checks on empty frames ---
+    private final PresenceDetector presence = new PresenceDetector();
+
+    // --- State guarded by lock ---
+    private final Object lock = new Object();
+    private volatile long handle = 0;
+    private boolean closed = true;
+    private boolean suspended = false;
+    private boolean attachSignal = false;
+    private long staleHandle = 0;
+    private long detachedAt = 0;
+    private Thread reconnectThread = null;
+
+    // Readers are native calls using the handle, the writer closes/re-opens it.
+    private final ReentrantReadWriteLock handleLock = new ReentrantReadWriteLock();
+
+    private final BroadcastReceiver usbReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context c, Intent intent) {
+            UsbDevice dev = usbDevice(intent);
+            if (dev == null || dev.getVendorId() != LAPI.VID || dev.getProductId() != LAPI.PID) return;
+            String usbName = lapi.GetDeviceName();
+            if (UsbManager.ACTION_USB_DEVICE_DETACHED.equals(intent.getAction())) {
+                if (usbName == null || usbName.equals(dev.getDeviceName())) onDetached();
+            } else if (UsbManager.ACTION_USB_DEVICE_ATTACHED.equals(intent.getAction())) {
+                // A re-plugged sensor gets a new device name : adopt it if no other session owns it
+                if (usbName != null && !usbName.equals(dev.getDeviceName())) {
+                    if (!isReconnecting() || listener.isDeviceInUse(dev.getDeviceName())) return;
+                    lapi.SetDeviceName(dev.getDeviceName());
+                }
+                onAttached();
+            }
+        }
+    };
+
+    @SuppressWarnings("deprecation")
+    private static UsbDevice usbDevice(Intent intent) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            return intent.getParcelableExtra(UsbManager.EXTRA_DEVICE, UsbDevice.class);
+        }
+        return intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+    }
+
+    DeviceSession(String deviceId, Context context, LAPI lapi, Listener listener) {
+        this.deviceId = deviceId;
+        this.context = context;
+        this.lapi = lapi;
+        this.listener = listener;
+    }
+
+    // --- Lifecycle ---
+
+    /** Opens the device (blocking) and starts watching for detach. Returns the handle, 0 on failure. */
+    long open() {
+        synchronized (lock) {
+            if (handle != 0) return handle;
+        }
+        long h;
+        handleLock.writeLock().lock();
+        try {
+            h = lapi.OpenDeviceEx();
+        } finally {
+            handleLock.writeLock().unlock();
+        }
+        if (h == 0) return 0;
+        synchronized (lock) {
+            handle = h;
+            closed = false;
+            lock.notifyAll();
+        }
+        IntentFilter filter = new IntentFilter(UsbManager.ACTION_USB_DEVICE_DETACHED);
+        filter.addAction(UsbManager.ACTION_USB_DEVICE_ATTACHED);
+        // USB broadcasts come from the system only
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            context.registerReceiver(usbReceiver, filter, Context.RECEIVER_NOT_EXPORTED);
+        } else {
+            context.registerReceiver(usbReceiver, filter);
+        }
+        emit("opened", null);
+        return h;
+    }
+
+    /** Stops reconnecting and closes the device. Capture loops should be stopped first. */
+    void close() {
+        Thread t;
+        synchronized (lock) {
+            if (closed) return;
+            closed = true;
+            t = reconnectThread;
+            reconnectThread = null;
+            lock.notifyAll();
+        }
+        try {
+            context.unregisterReceiver(usbReceiver);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Receiver already unregistered.");
+        }
+        if (t != null) {
+            t.interrupt();
+            try {
+                t.join(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        handleLock.writeLock().lock();
+        try {
+            long h;
+            synchronized (lock) {
+                h = handle != 0 ? handle : staleHandle;
+                handle = 0;
+                staleHandle = 0;
+            }
+            if (h != 0) lapi.CloseDeviceEx(h);
+        } finally {
+            handleLock.writeLock().unlock();
+        }
+        emit("closed", null);
+    }
+
+    // --- Power ---
+
+    SensorPower getPower() {
+        return power;
+    }
+
+    /** Closes the device, which powers the sensor off, keeping the session open. False if not open. */
+    boolean suspend() {
+        handleLock.writeLock().lock();
+        try {
+            long h;
+            synchronized (lock) {
+                if (closed || handle == 0) return false;
+                h = handle;
+                handle = 0;
+                suspended = true;
+            }
+            lapi.CloseDeviceEx(h);
+        } finally {
+            handleLock.writeLock().unlock();
+        }
+        emit("suspended", null);
+        return true;
+    }
+
+    /**
+     * Powers the sensor on and re-opens it (blocking, POWER_ON waits for the sensor to attach).
+     * Returns the handle, 0 on failure, in which case the session reconnects as after a detach.
+     */
+    long resume() {
+        long h;
+        handleLock.writeLock().lock();
+        try {
+            synchronized (lock) {
+                if (closed || !suspended) return handle;
+            }
+            h = lapi.OpenDeviceEx();
+            synchronized (lock) {
+                suspended = false;
+                if (closed) {
+                    if (h != 0) lapi.CloseDeviceEx(h);
+                    return 0;
+                }
+                handle = h;
+                if (h == 0) detachedAt = System.currentTimeMillis();
+                lock.notifyAll();
+            }
+        } finally {
+            handleLock.writeLock().unlock();
+        }
+        if (h == 0) {
+            startReconnect();
+            return 0;
+        }
+        listener.onReopened(h);
+        emit("resumed", null);
+        return h;
+    }
+
+    boolean isSuspended() {
+        synchronized (lock) {
+            return suspended;
+        }
+    }
+
+    // --- Identity ---
+
+    String getDeviceId() {
+        return deviceId;
+    }
+
+    LAPI getLapi() {
+        return lapi;
+    }
+
+    // --- Capture threads ---
+
+    /** Starts loop on the session's monitoring thread, false if it is already running. */
+    synchronized boolean startMonitoring(Runnable loop) {
+        if (monitoringThread != null && monitoringThread.isAlive()) return false;
+        monitoring.set(true);
+        monitoringThread = startBound(loop, "HZFinger-Monitor-" + deviceId);
+        return true;
+    }
+
+    /** Stops the monitoring thread, waiting up to joinMs (0 - interrupt without waiting). */
+    synchronized boolean stopMonitoring(long joinMs) {
+        if (!monitoring.compareAndSet(true, false)) return false;
+        Thread t = monitoringThread;
+        monitoringThread = null;
+        if (t != null) {
+            if (joinMs == 0) {
+                t.interrupt();
+            } else {
+                try {
+                    t.join(joinMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        return true;
+    }
+
+    /** Checked by the monitoring loop on every iteration. */
+    boolean isMonitoring() {
+        return monitoring.get();
+    }
+
+    void setMonitoring(boolean on) {
+        monitoring.set(on);
+    }
+
+    TouchAggregator getTouchAggregator() {
+        return touch;
+    }
+
+    PresenceDetector getPresenceDetector() {
+        return presence;
+    }
+
+    FramePreview getPreview() {
+        return preview;
+    }
+
+    /** Sets the preview frames go to, returns the previous one for the caller to release. */
+    FramePreview setPreview(FramePreview p) {
+        FramePreview old = preview;
+        preview = p;
+        return old;
+    }
+
+    /** Starts a thread whose native callbacks go to this session's device. */
+    Thread startBound(Runnable task, String name) {
+        Thread t = new Thread(() -> {
+            LAPI prev = lapi.BindThread();
+            try {
+                task.run();
+            } finally {
+                LAPI.UnbindThread(prev);
+            }
+        }, name);
+        t.start();
+        return t;
+    }
+
+    // --- Handle access ---
+
+    long getHandle() {
+        return handle;
+    }
+
+    boolean isClosed() {
+        synchronized (lock) {
+            return closed;
+        }
+    }
+
+    /** True while the device is detached and being re-opened. */
+    boolean isReconnecting() {
+        synchronized (lock) {
+            return !closed && !suspended && handle == 0;
+        }
+    }
+
+    /**
+     * Returns the handle with the session pinned until release(), or 0 (nothing to release) if the
+     * device is not ready. Never blocks.
+     */
+    long acquire() {
+        if (!handleLock.readLock().tryLock()) return 0;
+        long h = handle;
+        if (h == 0) handleLock.readLock().unlock();
+        return h;
+    }
+
+    void release() {
+        handleLock.readLock().unlock();
+    }
+
+    /** Waits until a handle is available. Returns false on timeout or when the session is closed. */
+    boolean awaitReady(long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (lock) {
+            while (!closed && handle == 0) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) return false;
+                try {
+                    lock.wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return !closed;
+        }
+    }
+
+    // --- Detach / attach ---
+
+    private void onDetached() {
+        synchronized (lock) {
+            if (closed || handle == 0) return;
+            staleHandle = handle;
+            handle = 0;
+            detachedAt = System.currentTimeMillis();
+            attachSignal = false;
+        }
+        Log.w(TAG, "Device detached, pausing and reconnecting.");
+        emit("detached", null);
+        startReconnect();
+    }
+
+    private void onAttached() {
+        synchronized (lock) {
+            attachSignal = true;
+            lock.notifyAll();
+        }
+        // A reconnect that gave up is restarted by the next attach.
+        if (isReconnecting()) startReconnect();
+    }
+
+    private void startReconnect() {
+        synchronized (lock) {
+            if (closed || (reconnectThread != null && reconnectThread.isAlive())) return;
+            reconnectThread = new Thread(this::reconnectLoop, "HZFinger-Reconnect-" + deviceId);
+            reconnectThread.start();
+        }
+    }
+
+    private void reconnectLoop() {
+        long stale;
+        long since;
+        synchronized (lock) {
+            stale = staleHandle;
+            staleHandle = 0;
+            since = detachedAt;
+        }
+        long started = System.currentTimeMillis();
+        int attempt = 0;
+        // The write lock is taken per native call only : close(), suspend(), resume() and acquire()
+        // callers are not held up by the backoff wait.
+        if (stale != 0) {
+            // Release native state of the lost device; its bulk transfers fail at once.
+            handleLock.writeLock().lock();
+            try {
+                lapi.CloseDeviceEx(stale);
+            } finally {
+                handleLock.writeLock().unlock();
+            }
+        }
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                synchronized (lock) {
+                    if (closed) return;
+                    attachSignal = false;
+                }
+                attempt++;
+                Map<String, Object> info = new HashMap<>();
+                info.put("attempt", attempt);
+                emit("reconnecting", info);
+
+                long h;
+                handleLock.writeLock().lock();
+                try {
+                    synchronized (lock) {
+                        if (closed || handle != 0) return;
+                    }
+                    h = lapi.OpenDeviceEx();
+                    if (h != 0) {
+                        synchronized (lock) {
+                            if (closed) {
+                                lapi.CloseDeviceEx(h);
+                                return;
+                            }
+                            handle = h;
+                            lock.notifyAll();
+                        }
+                    }
+                } finally {
+                    handleLock.writeLock().unlock();
+                }
+                if (h != 0) {
+                    listener.onReopened(h);
+                    Map<String, Object> done = new HashMap<>();
+                    done.put("attempt", attempt);
+                    done.put("downtimeMs", System.currentTimeMillis() - since);
+                    emit("reconnected", done);
+                    return;
+                }
+                if (System.currentTimeMillis() - started > RECONNECT_TIMEOUT_MS) {
+                    Log.e(TAG, "Giving up reconnect after " + attempt + " attempts.");
+                    emit("reconnect_failed", info);
+                    return;
+                }
+                long backoff = BACKOFF_MS[Math.min(attempt - 1, BACKOFF_MS.length - 1)];
+                synchronized (lock) {
+                    long deadline = System.currentTimeMillis() + backoff;
+                    long wait;
+                    while (!closed && !attachSignal && (wait = deadline - System.currentTimeMillis()) > 0) {
+                        lock.wait(wait);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void emit(String state, Map<String, Object> info) {
+        listener.onDeviceEvent(state, info != null ? info : new HashMap<>());
+    }
+}
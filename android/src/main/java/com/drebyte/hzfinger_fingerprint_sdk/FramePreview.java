@@ -0,0 +1,128 @@
+package com.drebyte.hzfinger_fingerprint_sdk;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.SurfaceTexture;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Surface;
+
+import com.HZFINGER.LAPI;
+
+import io.flutter.view.TextureRegistry;
+
+/**
+ * Live preview of raw sensor frames on a Flutter texture.
+ *
+ * Capture threads hand frames over with offer(), which only copies them. A render thread draws the
+ * latest frame into the texture's surface; frames arriving faster than it draws are skipped, so the
+ * capture loop never waits for the preview. Dart shows the frames with Texture(textureId).
+ * The render thread owns the surface and bitmap and frees them itself after its last draw.
+ */
+class FramePreview {
+
+    private static final String TAG = "HZFingerPreview";
+
+    // Gray level to opaque ARGB
+    private static final int[] GRAY = new int[256];
+
+    static {
+        for (int v = 0; v < 256; v++) GRAY[v] = 0xFF000000 | (v << 16) | (v << 8) | v;
+    }
+
+    private final TextureRegistry.SurfaceTextureEntry entry;
+    private final Surface surface;
+    private final Bitmap bitmap = Bitmap.createBitmap(LAPI.WIDTH, LAPI.HEIGHT, Bitmap.Config.ARGB_8888);
+    private final int[] pixels = new int[LAPI.IMAGE_SIZE];
+
+    // Latest frame, guarded by lock
+    private final Object lock = new Object();
+    private byte[] pending = new byte[LAPI.IMAGE_SIZE];
+    private byte[] drawing = new byte[LAPI.IMAGE_SIZE];
+    private boolean hasFrame = false;
+    private boolean released = false;
+
+    FramePreview(TextureRegistry.SurfaceTextureEntry entry) {
+        this.entry = entry;
+        SurfaceTexture texture = entry.surfaceTexture();
+        texture.setDefaultBufferSize(LAPI.WIDTH, LAPI.HEIGHT);
+        surface = new Surface(texture);
+        new Thread(this::renderLoop, "HZFinger-Preview-" + entry.id()).start();
+    }
+
+    long textureId() {
+        return entry.id();
+    }
+
+    /** Queues a raw frame for display, replacing one not drawn yet. Never blocks on drawing. */
+    void offer(byte[] frame) {
+        synchronized (lock) {
+            if (released) return;
+            System.arraycopy(frame, 0, pending, 0, LAPI.IMAGE_SIZE);
+            hasFrame = true;
+            lock.notify();
+        }
+    }
+
+    /**
+     * Stops taking frames and the render thread. It releases the surface and bitmap once a draw in
+     * progress is done, then the texture on the main thread, so nothing is freed while still in use.
+     */
+    void release() {
+        synchronized (lock) {
+            if (released) return;
+            released = true;
+            lock.notify();
+        }
+    }
+
+    private void renderLoop() {
+        try {
+            renderFrames();
+        } finally {
+            surface.release();
+            bitmap.recycle();
+            // Texture entries are unregistered on the platform thread
+            new Handler(Looper.getMainLooper()).post(entry::release);
+        }
+    }
+
+    private void renderFrames() {
+        while (true) {
+            synchronized (lock) {
+                while (!hasFrame && !released) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (released) return;
+                // Swap buffers : capture writes the next frame while this one is drawn
+                byte[] t = drawing;
+                drawing = pending;
+                pending = t;
+                hasFrame = false;
+            }
+            draw(drawing);
+        }
+    }
+
+    private void draw(byte[] frame) {
+        for (int i = 0; i < LAPI.IMAGE_SIZE; i++) pixels[i] = GRAY[frame[i] & 0xff];
+        bitmap.setPixels(pixels, 0, LAPI.WIDTH, 0, 0, LAPI.WIDTH, LAPI.HEIGHT);
+        Canvas canvas;
+        try {
+            canvas = surface.lockCanvas(null);
+        } catch (IllegalArgumentException | Surface.OutOfResourcesException e) {
+            Log.w(TAG, "Preview surface unavailable", e);
+            return;
+        }
+        try {
+            canvas.drawBitmap(bitmap, 0, 0, null);
+        } finally {
+            surface.unlockCanvasAndPost(canvas);
+        }
+    }
+}
@@ -1,8 +1,6 @@
 package com.drebyte.hzfinger_fingerprint_sdk;
 
-import android.app.Activity;
 import android.content.Context;
-import android.content.res.AssetManager;
 import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.os.Handler;
@@ -12,30 +10,35 @@ import android.util.Log;
 import androidx.annotation.NonNull;
 
 import java.io.ByteArrayOutputStream;
-import java.lang.reflect.Field;
-import java.lang.reflect.Modifier;
 
 // Import the vendor's Java classes
+import com.HZFINGER.BatchMatcher;
+import com.HZFINGER.DetectResult;
+import com.HZFINGER.DuplicateDetector;
+import com.HZFINGER.FrameArchive;
 import com.HZFINGER.HAPI;
+import com.HZFINGER.HostUsb;
 import com.HZFINGER.LAPI;
+import com.HZFINGER.PresenceDetector;
+import com.HZFINGER.RetemplateJob;
+import com.HZFINGER.SensorPower;
+import com.HZFINGER.TouchAggregator;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicBoolean; // Added for thread control
 
 import io.flutter.embedding.engine.plugins.FlutterPlugin;
-import io.flutter.embedding.engine.plugins.activity.ActivityAware;
-import io.flutter.embedding.engine.plugins.activity.ActivityPluginBinding;
 import io.flutter.plugin.common.EventChannel;
 import io.flutter.plugin.common.MethodCall;
 import io.flutter.plugin.common.MethodChannel;
 import io.flutter.plugin.common.MethodChannel.MethodCallHandler;
 import io.flutter.plugin.common.MethodChannel.Result;
+import io.flutter.view.TextureRegistry;
 
 // --- Message Constants (from HZFinger_FpStdSample.java) ---
 interface PluginMessages {
@@ -53,7 +56,12 @@ interface PluginMessages {
     int MSG_USBREQ_FAIL = 12;
 }
 
-public class HzfingerFingerprintSdkPlugin implements FlutterPlugin, MethodCallHandler, EventChannel.StreamHandler, ActivityAware {
+/**
+ * Device sessions, HAPI and its gallery belong to the engine binding, not to the activity : they are
+ * created with the application context and kept while the activity is recreated (e.g. on rotation),
+ * so a configuration change neither powers the sensor off nor reloads the database.
+ */
+public class HzfingerFingerprintSdkPlugin implements FlutterPlugin, MethodCallHandler, EventChannel.StreamHandler {
 
     // --- Channel Names ---
     private static final String METHOD_CHANNEL_NAME = "hzfinger_fingerprint_sdk/method";
@@ -65,27 +73,85 @@ public class HzfingerFingerprintSdkPlugin implements FlutterPlugin, MethodCallHa
     private EventChannel.EventSink eventSink;
 
     private Context context;
-    private Activity activity;
-    private LAPI lapi;
+    private TextureRegistry textureRegistry;
     private HAPI hapi;
     private Handler pluginHandler;
 
-    private long m_hDev = 0;
+    // --- Open sensors, each with its own LAPI context and monitoring thread ---
+    private final DeviceRegistry devices = new DeviceRegistry();
 
-    // --- Added for Monitoring Thread ---
-    private Thread monitoringThread = null;
-    private final AtomicBoolean isMonitoring = new AtomicBoolean(false);
-    // --- End Monitoring ---
+    // --- Pool scoring batches of template pairs, created on first use ---
+    private BatchMatcher batchMatcher = null;
 
-    // --- HELPER FUNCTION FOR REFLECTION (SIMPLIFIED) ---
-    static void setFinalStatic(Field field, Object newValue) throws Exception {
-       field.setAccessible(true);
-       field.set(null, newValue);
+    private synchronized BatchMatcher batchMatcher() {
+        if (batchMatcher == null) {
+            batchMatcher = new BatchMatcher(Math.min(4, Runtime.getRuntime().availableProcessors()));
+        }
+        return batchMatcher;
+    }
+
+    // --- Gallery cross-match for duplicate enrollments, pool created on first use ---
+    private static final String DUPLICATES_REPORT = "duplicates.csv";
+    private static final String DUPLICATES_CHECKED = "duplicates_checked.txt";
+    private DuplicateDetector duplicateDetector = null;
+    private boolean duplicatesRunning = false;
+
+    private synchronized DuplicateDetector duplicateDetector() {
+        if (duplicateDetector == null) {
+            duplicateDetector = new DuplicateDetector(Math.min(4, Runtime.getRuntime().availableProcessors()));
+        }
+        return duplicateDetector;
+    }
+
+    // --- Audit archive of captured frames, off until configureArchive ---
+    private static final String ARCHIVE_DIR = "fingerprint_archive";
+    private volatile FrameArchive archive = null;
+
+    // WSQ codec of the native library, it needs the handle of an open device
+    private final FrameArchive.Codec wsqCodec = new FrameArchive.Codec() {
+        @Override
+        public int Compress(byte[] raw, byte[] wsq) {
+            DeviceSession s = devices.get(null);
+            long h = s != null ? s.acquire() : 0;
+            if (h == 0) return 0;
+            try {
+                return (int) s.getLapi().CompressToWSQImage(h, raw, wsq);
+            } finally {
+                s.release();
+            }
+        }
+
+        @Override
+        public int Decompress(byte[] wsq, int wsqSize, byte[] raw) {
+            DeviceSession s = devices.get(null);
+            long h = s != null ? s.acquire() : 0;
+            if (h == 0) return 0;
+            try {
+                return (int) s.getLapi().UnCompressFromWSQImage(h, wsq, wsqSize, raw);
+            } finally {
+                s.release();
+            }
+        }
+    };
+
+    // --- Re-templating of stored images, one job at a time ---
+    private static final String RETEMPLATE_CHECKPOINT = "retemplate_%s_%s.ckpt";
+    private volatile RetemplateJob retemplateJob = null;
+
+    // --- LAPI settings : DNN model installed into the app's external files directory ---
+    private LAPI.Config lapiConfig() {
+        LAPI.Config config = new LAPI.Config();
+        File modelDir = context.getExternalFilesDir(null);
+        if (modelDir != null) config.modelFolder = modelDir.getAbsolutePath();
+        config.commMode = LAPI.SCSI_MODE;
+        config.liveAsync = true; // capture loops keep reading frames while the DNN checks a new touch
+        return config;
     }
 
     @Override
     public void onAttachedToEngine(@NonNull FlutterPluginBinding flutterPluginBinding) {
         this.context = flutterPluginBinding.getApplicationContext();
+        this.textureRegistry = flutterPluginBinding.getTextureRegistry();
 
         methodChannel = new MethodChannel(flutterPluginBinding.getBinaryMessenger(), METHOD_CHANNEL_NAME);
         methodChannel.setMethodCallHandler(this);
@@ -125,13 +191,32 @@ public class HzfingerFingerprintSdkPlugin implements FlutterPlugin, MethodCallHa
                 }
             }
         };
+
+        hapi = new HAPI(context, pluginHandler, lapiConfig());
+        hapi.DBRefreshAsync(); // Load enrolled templates for identifyTemplate in the background
     }
 
     // This helper function sends events back to Flutter from any thread.
     private void sendEvent(String type, String message, byte[] data) {
-        if (eventSink == null || activity == null) return;
+        sendEvent(type, message, data, null, null);
+    }
+
+    // Event about one device, tagged with its "deviceId".
+    private void sendEvent(String type, String message, byte[] data, DeviceSession session) {
+        sendEvent(type, message, data, null, session);
+    }
+
+    // Same as above, extra entries (e.g. reconnect attempt) are added to the event map.
+    private void sendEvent(String type, String message, byte[] data, Map<String, Object> extra, DeviceSession session) {
+        if (eventSink == null) return;
 
         Map<String, Object> event = new HashMap<>();
+        if (extra != null) {
+            event.putAll(extra);
+        }
+        if (session != null) {
+            event.put("deviceId", session.getDeviceId());
+        }
         event.put("type", type);
         if (message != null) {
             event.put("message", message);
@@ -141,7 +226,7 @@ public class HzfingerFingerprintSdkPlugin implements FlutterPlugin, MethodCallHa
         }
 
         // Post to the main thread to send the event safely
-        activity.runOnUiThread(() -> {
+        runOnMain(() -> {
             if (eventSink != null) {
                 eventSink.success(event);
             }
@@ -149,99 +234,155 @@ public class HzfingerFingerprintSdkPlugin implements FlutterPlugin, MethodCallHa
     }
 
 
+    // Replies and events go through the main looper, which outlives any activity.
+    private void runOnMain(Runnable r) {
+        pluginHandler.post(r);
+    }
+
     @Override
     public void onMethodCall(@NonNull MethodCall call, @NonNull Result result) {
-        if (activity == null || lapi == null || hapi == null) {
-            result.error("NOT_ATTACHED", "Plugin is not attached to an activity or SDKs are not initialized.", null);
+        if (hapi == null) {
+            result.error("NOT_ATTACHED", "Plugin is not attached to an engine or SDKs are not initialized.", null);
             return;
         }
-        // Ensure device is initialized for methods other than init/close
-        if (!call.method.equals("init") && !call.method.equals("close") && m_hDev == 0) {
-             result.error("NOT_INITIALIZED", "Device not initialized. Call init() first.", null);
+        // Every method takes an optional "deviceId"; without it the first opened device is used
+        final String deviceId = call.argument("deviceId");
+        final DeviceSession session = devices.get(deviceId);
+        // Ensure device is initialized for methods other than init/close/listDevices
+        if (!call.method.equals("init") && !call.method.equals("close") && !call.method.equals("listDevices")
+                && !call.method.equals("configureArchive") && !call.method.equals("queryArchive")
+                && !call.method.equals("cancelRetemplate")
+                && (session == null || session.isClosed())) {
+             result.error("NOT_INITIALIZED", "Device " + (deviceId != null ? deviceId + " " : "") + "not initialized. Call init() first.", null);
              return;
         }
 
 
         switch (call.method) {
+            case "listDevices":
+                // USB device names of attached sensors, usable as deviceId
+                result.success(HostUsb.ListDevices(context, LAPI.VID, LAPI.PID));
+                break;
             case "init":
                 // Run init on a background thread
                 new Thread(new Runnable() {
                     @Override
                     public void run() {
-                        // 1. Copy assets
-                        copyAssetsToStorage();
-
-                        // 2. REFLECTION FIX
+                        // 1. Install model assets (only checks sizes when already installed)
                         File modelDir = context.getExternalFilesDir(null);
                         if (modelDir == null) {
-                            activity.runOnUiThread(() -> result.error("STORAGE_ERROR", "Cannot access external files directory", null));
+                            runOnMain(() -> result.error("STORAGE_ERROR", "Cannot access external files directory", null));
                             return;
                         }
-
+                        ModelInstaller installer = new ModelInstaller(context, modelDir);
+                        boolean modelInstalled = true;
                         try {
-                            String correctModelPath = modelDir.getAbsolutePath();
-                            Field pathField = LAPI.class.getDeclaredField("Model_FolderPath");
-                            setFinalStatic(pathField, correctModelPath);
-                            Log.d(TAG, "Successfully overrode Model_FolderPath to: " + correctModelPath);
-
-                        } catch (Exception e) {
-                            Log.e(TAG, "Reflection failed to override Model_FolderPath", e);
-                            activity.runOnUiThread(() -> result.error("REFLECTION_FAILED", "Could not override LAPI.Model_FolderPath", e.getMessage()));
-                            return;
+                            installer.install();
+                        } catch (IOException e) {
+                            Log.e(TAG, "Model installation failed", e);
+                            sendEvent("status", "Could not copy model files", null);
+                            modelInstalled = false;
                         }
 
-                        // 3. Init LAPI
-                        long hDev = lapi.OpenDeviceEx(LAPI.SCSI_MODE);
-                        m_hDev = hDev; // Store the handle
+                        // 2. Init LAPI context of this device, verifying and loading the DNN model
+                        //    in the background meanwhile
+                        DeviceSession s = (session != null && !session.isClosed()) ? session : createSession(deviceId);
+                        if (modelInstalled) s.getLapi().PreloadModel(installer::verify);
+                        long hDev = s.open();
 
                         if (hDev != 0) {
-                            activity.runOnUiThread(() -> result.success(true));
+                            devices.put(s);
+                            attachHapi();
+                            runOnMain(() -> result.success(true));
                         } else {
-                            activity.runOnUiThread(() -> result.error("INIT_FAILED", "Failed to open LAPI device. Check USB permission.", null));
+                            runOnMain(() -> result.error("INIT_FAILED", "Failed to open LAPI device. Check USB permission.", null));
                         }
                     }
                 }).start();
                 // Return immediately; the thread will send the result
                 break;
             case "capture": // Keep manual capture for testing/specific needs
-                startCaptureInternal(); // Use the internal method
+                wakeSession(session);
+                startCaptureInternal(session); // Use the internal method
                 result.success(null); // Acknowledge the call
                 break;
 
             // --- ADDED: Start Monitoring ---
             case "startMonitoring":
-                if (monitoringThread != null && monitoringThread.isAlive()) {
+                if (!session.startMonitoring(() -> monitoringLoop(session))) {
                     Log.w(TAG, "Monitoring already running.");
                     result.success(null); // Already running, report success
                     return;
                 }
-                isMonitoring.set(true);
-                monitoringThread = new Thread(this::monitoringLoop);
-                monitoringThread.start();
-                sendEvent("status", "Monitoring started", null);
+                sendEvent("status", "Monitoring started", null, session);
                 result.success(null);
                 break;
 
             // --- ADDED: Stop Monitoring ---
             case "stopMonitoring":
-                if (isMonitoring.compareAndSet(true, false)) {
-                     // Wait briefly for the thread to finish cleanly
-                     if (monitoringThread != null) {
-                        try {
-                            monitoringThread.join(500); // Wait max 500ms
-                        } catch (InterruptedException e) {
-                            Thread.currentThread().interrupt();
-                            Log.e(TAG, "Interrupted while stopping monitoring thread", e);
-                        }
-                        monitoringThread = null;
-                     }
-                    sendEvent("status", "Monitoring stopped", null);
+                // Wait briefly (max 500ms) for the thread to finish cleanly
+                if (session.stopMonitoring(500)) {
+                    sendEvent("status", "Monitoring stopped", null, session);
                 } else {
                      Log.w(TAG, "Monitoring was not running.");
                 }
                 result.success(null);
                 break;
 
+            // --- Idle power policy of the monitoring loop ---
+            case "setPowerPolicy": {
+                SensorPower power = session.getPower();
+                Number dozeAfter = call.argument("dozeAfterMs");
+                Number probeInterval = call.argument("probeIntervalMs");
+                Number suspendAfter = call.argument("suspendAfterMs");
+                power.SetPolicy(dozeAfter != null ? dozeAfter.longValue() : power.GetDozeAfter(),
+                        probeInterval != null ? probeInterval.longValue() : power.GetProbeInterval(),
+                        suspendAfter != null ? suspendAfter.longValue() : power.GetSuspendAfter());
+                result.success(null);
+                break;
+            }
+
+            case "wakeSensor":
+                wakeSession(session);
+                result.success(null);
+                break;
+
+            case "getPowerStats": {
+                SensorPower power = session.getPower();
+                long now = System.currentTimeMillis();
+                Map<String, Object> m = new HashMap<>();
+                m.put("state", POWER_STATES[power.GetState()]);
+                m.put("activeMs", power.GetStateTime(SensorPower.ACTIVE, now));
+                m.put("dozeMs", power.GetStateTime(SensorPower.DOZE, now));
+                m.put("suspendedMs", power.GetStateTime(SensorPower.SUSPEND, now));
+                m.put("wakeCount", power.GetWakeCount());
+                m.put("lastWakeLatencyMs", power.GetLastWakeLatency());
+                m.put("meanWakeLatencyMs", power.GetMeanWakeLatency());
+                result.success(m);
+                break;
+            }
+
+            // --- Live preview : raw frames of the monitoring loop drawn into a Flutter texture ---
+            case "startPreview": {
+                FramePreview preview = session.getPreview();
+                if (preview == null) {
+                    preview = new FramePreview(textureRegistry.createSurfaceTexture());
+                    session.setPreview(preview);
+                }
+                if (session.startMonitoring(() -> monitoringLoop(session))) {
+                    sendEvent("status", "Monitoring started", null, session);
+                }
+                result.success(preview.textureId());
+                break;
+            }
+
+            case "stopPreview": {
+                FramePreview preview = session.setPreview(null);
+                if (preview != null) preview.release();
+                result.success(null);
+                break;
+            }
+
             case "compareTemplates":
                 try {
                     byte[] template1 = call.argument("template1");
@@ -260,7 +401,17 @@ public class HzfingerFingerprintSdkPlugin implements FlutterPlugin, MethodCallHa
                     System.arraycopy(template2, 0, t2_padded, 0, Math.min(template2.length, t2_padded.length));
 
 
-                    int score = lapi.CompareTemplates(m_hDev, t1_padded, t2_padded);
+                    long hDev = session.acquire();
+                    if (hDev == 0) {
+                        result.error("DEVICE_RECONNECTING", "Device is reconnecting, try again shortly.", null);
+                        return;
+                    }
+                    int score;
+                    try {
+                        score = session.getLapi().CompareTemplates(hDev, t1_padded, t2_padded);
+                    } finally {
+                        session.release();
+                    }
 
                     result.success(score);
 
@@ -269,6 +420,79 @@ public class HzfingerFingerprintSdkPlugin implements FlutterPlugin, MethodCallHa
                 }
                 break;
 
+            // --- Batch compare : packed templates in, packed Int32List of scores out ---
+            case "compareMany":
+            case "compareMatrix": {
+                final boolean many = call.method.equals("compareMany");
+                final byte[] packedA = call.argument(many ? "probe" : "templatesA");
+                final byte[] packedB = call.argument(many ? "templates" : "templatesB");
+                Number countA = many ? Integer.valueOf(1) : call.argument("countA");
+                Number countB = call.argument(many ? "count" : "countB");
+                if (packedA == null || packedB == null || countA == null || countB == null) {
+                    result.error("BAD_ARGS", "Missing packed templates or counts", null);
+                    return;
+                }
+                final int nA = countA.intValue();
+                final int nB = countB.intValue();
+                new Thread(() -> {
+                    long hDev = session.acquire();
+                    if (hDev == 0) {
+                        runOnMain(() -> result.error("DEVICE_RECONNECTING", "Device is reconnecting, try again shortly.", null));
+                        return;
+                    }
+                    try {
+                        LAPI lapi = session.getLapi();
+                        BatchMatcher.Matcher m = (t1, t2) -> lapi.CompareTemplates(hDev, t1, t2);
+                        int[] scores = many ? batchMatcher().CompareMany(m, packedA, packedB, nB)
+                                : batchMatcher().CompareMatrix(m, packedA, nA, packedB, nB);
+                        runOnMain(() -> result.success(scores));
+                    } catch (IllegalArgumentException | IllegalStateException e) {
+                        runOnMain(() -> result.error("COMPARE_FAILED", e.getMessage(), null));
+                    } finally {
+                        session.release();
+                    }
+                }, "HZFinger-Batch").start();
+                break;
+            }
+
+            // --- 1:N search of a template the caller already has, on a compute thread ---
+            case "identifyTemplate": {
+                final byte[] template = call.argument("template");
+                if (template == null) {
+                    result.error("BAD_ARGS", "Missing 'template'", null);
+                    return;
+                }
+                final List<String> parts = call.argument("partitions");
+                final Boolean iso = call.argument("iso");
+                final HAPI h = hapi;
+                new Thread(() -> {
+                    long hDev = session.acquire();
+                    if (hDev == 0) {
+                        runOnMain(() -> result.error("DEVICE_RECONNECTING", "Device is reconnecting, try again shortly.", null));
+                        return;
+                    }
+                    try {
+                        HAPI.Result r = h.IdentifyTemplate(session.getLapi(), hDev, template, iso == null || iso,
+                                parts != null ? new HashSet<>(parts) : null);
+                        int err = r.errCode;
+                        if (err != HAPI.ERROR_NONE && err != HAPI.ERROR_EMPTY_DADABASE) {
+                            runOnMain(() -> result.error("IDENTIFY_FAILED", "Identify failed (Error code: " + err + ")", null));
+                            return;
+                        }
+                        Map<String, Object> m = new HashMap<>();
+                        m.put("id", r.id);
+                        m.put("score", r.score);
+                        runOnMain(() -> result.success(m));
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Identify failed", e);
+                        runOnMain(() -> result.error("IDENTIFY_FAILED", String.valueOf(e.getMessage()), null));
+                    } finally {
+                        session.release();
+                    }
+                }, "HZFinger-Identify").start();
+                break;
+            }
+
             case "enroll":
                 final String userId = call.argument("userId");
                 if (userId == null) {
@@ -281,23 +505,86 @@ public class HzfingerFingerprintSdkPlugin implements FlutterPlugin, MethodCallHa
 
                 result.success(null);
                 break;
-            case "close":
-                 // --- Stop monitoring if running ---
-                if (isMonitoring.compareAndSet(true, false)) {
-                    if (monitoringThread != null) {
-                        try {
-                            monitoringThread.join(500); // Wait max 500ms
-                        } catch (InterruptedException e) {
-                            Thread.currentThread().interrupt();
-                        }
-                        monitoringThread = null;
+            case "configureArchive":
+                configureArchive(call);
+                result.success(null);
+                break;
+            case "queryArchive": {
+                FrameArchive a = archive;
+                Number from = call.argument("from");
+                Number to = call.argument("to");
+                List<Map<String, Object>> frames = new ArrayList<>();
+                if (a != null) {
+                    for (FrameArchive.Record rec : a.Query(from != null ? from.longValue() : 0,
+                            to != null ? to.longValue() : Long.MAX_VALUE, call.argument("userId"))) {
+                        Map<String, Object> m = new HashMap<>();
+                        m.put("time", rec.time);
+                        m.put("quality", rec.quality);
+                        m.put("userId", rec.userId);
+                        m.put("segment", rec.segment);
+                        m.put("offset", rec.offset);
+                        m.put("length", rec.length);
+                        frames.add(m);
                     }
                 }
-                // --- End Stop Monitoring ---
-
-                if (lapi != null && m_hDev != 0) {
-                    lapi.CloseDeviceEx(m_hDev);
-                    m_hDev = 0; // Set handle to 0 so loops stop
+                result.success(frames);
+                break;
+            }
+            case "readArchiveFrame": {
+                FrameArchive a = archive;
+                if (a == null) {
+                    result.error("ARCHIVE_DISABLED", "Frame archive is not enabled.", null);
+                    return;
+                }
+                FrameArchive.Record rec = new FrameArchive.Record();
+                rec.segment = call.argument("segment");
+                Number offset = call.argument("offset");
+                Number length = call.argument("length");
+                if (rec.segment == null || offset == null || length == null) {
+                    result.error("BAD_ARGS", "Missing 'segment', 'offset' or 'length'", null);
+                    return;
+                }
+                rec.offset = offset.longValue();
+                rec.length = length.intValue();
+                // Values come from Dart : segment must name a segment of the archive, length a WSQ frame
+                if (!FrameArchive.IsValid(rec)) {
+                    result.error("BAD_ARGS", "Invalid 'segment', 'offset' or 'length'", null);
+                    return;
+                }
+                new Thread(() -> {
+                    try {
+                        byte[] raw = new byte[LAPI.IMAGE_SIZE];
+                        if (a.Read(rec, raw)) {
+                            byte[] png = toPng(raw);
+                            runOnMain(() -> result.success(png));
+                        } else {
+                            runOnMain(() -> result.error("READ_FAILED", "Archived frame is gone or cannot be decompressed.", null));
+                        }
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Reading archived frame failed", e);
+                        runOnMain(() -> result.error("READ_FAILED", String.valueOf(e.getMessage()), null));
+                    }
+                }, "HZFinger-ArchiveRead").start();
+                break;
+            }
+            case "findDuplicates":
+                findDuplicates(call, session, result);
+                break;
+            case "retemplate":
+                retemplate(call, session, result);
+                break;
+            case "cancelRetemplate": {
+                RetemplateJob job = retemplateJob;
+                if (job != null) job.Cancel();
+                result.success(job != null);
+                break;
+            }
+            case "close":
+                // Close the named device, or all devices without deviceId
+                if (deviceId != null) {
+                    if (session != null) closeSession(session, 500);
+                } else {
+                    for (DeviceSession s : devices.all()) closeSession(s, 500);
                 }
                 result.success(true);
                 break;
@@ -306,62 +593,193 @@ public class HzfingerFingerprintSdkPlugin implements FlutterPlugin, MethodCallHa
         }
     }
 
+    // --- Sensor power ---
+    private static final String[] POWER_STATES = {"active", "doze", "suspended"};
+
+    // Application-level wake trigger. The monitoring loop re-opens a suspended sensor itself,
+    // without it the sensor is powered on here.
+    private void wakeSession(DeviceSession session) {
+        session.getPower().Wake(System.currentTimeMillis());
+        if (session.isSuspended() && !session.isMonitoring()) {
+            session.startBound(session::resume, "HZFinger-Wake-" + session.getDeviceId());
+        }
+    }
+
+    // --- Device sessions ---
+    private DeviceSession createSession(String deviceId) {
+        LAPI lapi = new LAPI(context, lapiConfig());
+        lapi.SetDeviceName(deviceId); // null - first attached sensor
+        final String id = deviceId != null ? deviceId : DeviceSession.DEFAULT_DEVICE_ID;
+        final DeviceSession[] self = new DeviceSession[1];
+        self[0] = new DeviceSession(id, context, lapi, new DeviceSession.Listener() {
+            @Override
+            public void onDeviceEvent(String state, Map<String, Object> info) {
+                if (state.equals("suspended")) attachHapi();
+                sendEvent("device", state, null, info, self[0]);
+            }
+
+            @Override
+            public void onReopened(long handle) {
+                // Monitoring threads resume by themselves; only handle-bound state needs restoring
+                attachHapi();
+            }
+
+            @Override
+            public boolean isDeviceInUse(String usbName) {
+                return devices.isDeviceInUse(usbName, self[0]);
+            }
+        });
+        return self[0];
+    }
+
+    // Stops the session's threads (joinMs as in DeviceSession.stopMonitoring) and closes its device.
+    private void closeSession(DeviceSession session, long joinMs) {
+        session.stopMonitoring(joinMs);
+        FramePreview preview = session.setPreview(null);
+        if (preview != null) preview.release();
+        session.close(); // Closes the handle so loops stop
+        devices.remove(session.getDeviceId());
+        attachHapi();
+    }
+
+    // HAPI captures through the LAPI context of the session that native callbacks of unbound threads go to,
+    // never through a handle of one context on another.
+    private void attachHapi() {
+        HAPI h = hapi;
+        if (h == null) return;
+        DeviceSession s = devices.defaultSession();
+        if (s != null) h.AttachDevice(s.getLapi(), s.getHandle());
+        else h.AttachDevice(null, 0);
+    }
+
     // --- ADDED: Monitoring Loop ---
-    private void monitoringLoop() {
-        Log.d(TAG, "Monitoring thread started.");
+    // Runs on the session's monitoring thread, native callbacks are bound to its device.
+    private void monitoringLoop(DeviceSession session) {
+        Log.d(TAG, "Monitoring thread started for " + session.getDeviceId());
+        final LAPI lapi = session.getLapi();
+        final SensorPower power = session.getPower();
+        final TouchAggregator touch = session.getTouchAggregator();
+        final PresenceDetector presence = session.getPresenceDetector();
+        long lastHandle = 0;
         byte[] img = new byte[LAPI.IMAGE_SIZE];
-        while (isMonitoring.get()) {
-            if (m_hDev == 0) {
-                Log.w(TAG, "Device handle is 0, stopping monitoring loop.");
-                isMonitoring.set(false);
+        byte[] best = new byte[LAPI.IMAGE_SIZE];
+        touch.Reset();
+        boolean fakeReported = false; // the verdict holds for the whole touch, report it once
+        int powerState = SensorPower.ACTIVE;
+        power.OnActivity(System.currentTimeMillis()); // idle time counts from the start of monitoring
+        while (session.isMonitoring()) {
+            if (session.isClosed()) {
+                Log.w(TAG, "Device closed, stopping monitoring loop.");
+                session.setMonitoring(false);
                 break; // Exit if device closed
             }
 
-            // GetImage might block briefly, which is fine for a background thread
-            int getImageResult = lapi.GetImage(m_hDev, img);
-
-            if (!isMonitoring.get()) break; // Check again after potentially blocking call
+            // Idle policy : slow presence probes in DOZE, sensor powered off in SUSPEND until wakeSensor
+            int state = power.Step(System.currentTimeMillis());
+            if (state != powerState) {
+                powerState = state;
+                sendEvent("power", POWER_STATES[state], null, session);
+            }
+            if (state == SensorPower.SUSPEND) {
+                if (!session.isSuspended()) session.suspend();
+                try {
+                    power.Sleep(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                continue;
+            }
+            if (session.isSuspended()) {
+                session.resume(); // Woken : power on and re-open, the wake timer runs meanwhile
+                continue;
+            }
 
-            if (getImageResult == LAPI.TRUE) {
-                // Potential finger image captured, check if it's actually a finger
-                 // According to LAPI.java IsPressFingerEx checks liveness
-                int pressScore = lapi.IsPressFingerEx(m_hDev, img, true, LAPI.LIVECHECK_THESHOLD[2]); // Using threshold index 2 (0.1f) as example
+            // Pause while the device is detached and being re-opened
+            long hDev = session.acquire();
+            if (hDev == 0) {
+                session.awaitReady(500);
+                continue;
+            }
+            if (hDev != lastHandle) {
+                presence.Recalibrate(); // re-opened sensor, its empty frames may look different
+                lastHandle = hDev;
+            }
 
-                if (!isMonitoring.get()) break;
+            // Brief pause to prevent high CPU usage when no finger is present (100ms),
+            // none after an image was read. A placement is processed once, see TouchAggregator.
+            long pause = 100;
+            try {
+                // GetImage might block briefly, which is fine for a background thread
+                int getImageResult = lapi.GetImage(hDev, img);
+
+                if (!session.isMonitoring()) break; // Check again after potentially blocking call
+
+                if (getImageResult == LAPI.TRUE) {
+                    pause = 0;
+                    long latency = power.OnFrame(System.currentTimeMillis());
+                    if (latency >= 0) {
+                        Map<String, Object> info = new HashMap<>();
+                        info.put("latencyMs", latency);
+                        sendEvent("power", "first_frame", null, info, session);
+                    }
+                    // Every frame goes to the live preview, if any; offer() only copies it
+                    FramePreview preview = session.getPreview();
+                    if (preview != null) preview.offer(img);
+                    // Potential finger image captured, check if it's a live finger. The frame is
+                    // left as captured whatever the verdict. Frames the Java pre-check finds empty
+                    // skip the native checks.
+                    DetectResult det;
+                    if (presence.Check(img)) {
+                        det = lapi.DetectFinger(hDev, img, true, LAPI.LIVECHECK_THESHOLD[2], false); // Using threshold index 2 (0.1f) as example
+                        presence.OnNativeScore(det.pressScore);
+                    } else {
+                        det = new DetectResult(); // NO_FINGER
+                        lapi.GetLivenessService().Lift();
+                    }
 
-                if (pressScore >= LAPI.DEF_FINGER_SCORE) {
-                    // Finger detected! Process it.
-                    Log.d(TAG, "Finger detected with score: " + pressScore);
-                    processCapturedImage(img); // Process the image (PNG + ISO)
+                    if (!session.isMonitoring()) break;
 
-                    // Optional: Pause monitoring briefly after successful capture
-                    // to avoid immediate re-captures of the same placement.
-                    try {
-                        Thread.sleep(500); // Pause for 500ms
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                        break; // Exit loop if interrupted
+                    if (det.verdict != DetectResult.NO_FINGER) {
+                        power.OnActivity(System.currentTimeMillis()); // a probe finding a finger wakes from DOZE
+                    }
+                    if (det.IsFinger()) {
+                        // Finger detected! Frames of the placement are collected for a while and
+                        // only the one with the best contact is processed.
+                        if (touch.Offer(img, det.pressScore, System.currentTimeMillis())) {
+                            int press = touch.Best(best);
+                            Log.d(TAG, "Finger detected with score: " + press);
+                            processCapturedImage(session, hDev, best); // Process the image (PNG + ISO)
+                        }
+                    } else if (det.verdict == DetectResult.FAKE) {
+                         touch.Reset();
+                         if (!fakeReported) sendEvent("status", "Fake finger detected", null, session);
+                         fakeReported = true;
+                    } else if (det.verdict == DetectResult.NO_FINGER) {
+                        fakeReported = false; // finger lifted
+                        if (touch.Lift()) { // lifted before the placement settled
+                            touch.Best(best);
+                            processCapturedImage(session, hDev, best);
+                        }
                     }
+                     // If score is low or fake, just loop again without processing
 
-                } else if (pressScore == LAPI.FAKEFINGER) {
-                     sendEvent("status", "Fake finger detected", null);
-                     // Optionally clear the image buffer here if needed
+                } else if (getImageResult == LAPI.NOTCALIBRATED) {
+                     sendEvent("status", "Device not calibrated", null, session);
+                     session.setMonitoring(false); // Stop monitoring if calibration needed
+                     break;
+                } else {
+                     // No finger or error during GetImage (result is FALSE or other error)
+                     // Do nothing, just loop again after a short delay
                 }
-                 // If score is low or fake, just loop again without processing
-
-            } else if (getImageResult == LAPI.NOTCALIBRATED) {
-                 sendEvent("status", "Device not calibrated", null);
-                 isMonitoring.set(false); // Stop monitoring if calibration needed
-                 break;
-            } else {
-                 // No finger or error during GetImage (result is FALSE or other error)
-                 // Do nothing, just loop again after a short delay
+            } finally {
+                session.release();
             }
 
-             // Brief pause to prevent high CPU usage when no finger is present
-            if (getImageResult != LAPI.TRUE) { // Only sleep if we didn't just process an image
+            pause = power.PollInterval(pause); // one probe frame per interval in DOZE
+            if (pause > 0) {
                 try {
-                    Thread.sleep(100); // Check every 100ms
+                    power.Sleep(pause); // wakeSensor ends the pause at once
                 } catch (InterruptedException e) {
                     Thread.currentThread().interrupt();
                     break; // Exit loop if interrupted
@@ -372,17 +790,41 @@ public class HzfingerFingerprintSdkPlugin implements FlutterPlugin, MethodCallHa
     }
 
     // --- ADDED: Internal Manual Capture Trigger ---
-    private void startCaptureInternal() {
-         new Thread(() -> {
+    private void startCaptureInternal(DeviceSession session) {
+         final LAPI lapi = session.getLapi();
+         session.startBound(() -> {
              byte[] img = new byte[LAPI.IMAGE_SIZE];
-             sendEvent("status", "Place finger on scanner...", null);
+             sendEvent("status", "Place finger on scanner...", null, session);
 
-             // Loop until GetImage returns 1 (LAPI.TRUE)
-             while (lapi.GetImage(m_hDev, img) != LAPI.TRUE) {
-                 if (m_hDev == 0) {
+             // Loop until GetImage returns 1 (LAPI.TRUE), waiting out reconnects
+             while (true) {
+                 if (session.isClosed()) {
                      Log.d(TAG, "Device closed, stopping capture loop.");
                      return;
                  }
+                 long hDev = session.acquire();
+                 if (hDev == 0) {
+                     session.awaitReady(500);
+                     continue;
+                 }
+                 try {
+                     if (lapi.GetImage(hDev, img) == LAPI.TRUE) {
+                         // Check liveness after successful GetImage
+                         DetectResult det = lapi.DetectFinger(hDev, img, true, LAPI.LIVECHECK_THESHOLD[2], false);
+                         if (det.verdict == DetectResult.PENDING) {
+                             continue; // liveness of this touch not known yet, read the next frame
+                         } else if (det.IsFinger()) {
+                             processCapturedImage(session, hDev, img);
+                         } else if (det.verdict == DetectResult.FAKE) {
+                             sendEvent("status", "Fake finger detected during capture", null, session);
+                         } else {
+                             sendEvent("status", "Finger lifted too quickly during capture", null, session);
+                         }
+                         return;
+                     }
+                 } finally {
+                     session.release();
+                 }
                  try {
                      Thread.sleep(100);
                  } catch (InterruptedException e) {
@@ -390,24 +832,37 @@ public class HzfingerFingerprintSdkPlugin implements FlutterPlugin, MethodCallHa
                      return;
                  }
              }
-             if (m_hDev == 0) return;
-
-             // Check liveness after successful GetImage
-             int pressScore = lapi.IsPressFingerEx(m_hDev, img, true, LAPI.LIVECHECK_THESHOLD[2]);
-             if (pressScore >= LAPI.DEF_FINGER_SCORE) {
-                 processCapturedImage(img);
-             } else if (pressScore == LAPI.FAKEFINGER) {
-                 sendEvent("status", "Fake finger detected during capture", null);
-             } else {
-                 sendEvent("status", "Finger lifted too quickly during capture", null);
-             }
-         }).start();
+         }, "HZFinger-Capture-" + session.getDeviceId());
     }
 
 
     // --- ADDED: Helper to process image (PNG + ISO) ---
-    private void processCapturedImage(byte[] img) {
-        // --- Create PNG ---
+    private void processCapturedImage(DeviceSession session, long hDev, byte[] img) {
+        // --- Archive (compressed on the archive thread), ranked by image quality rather than finger score ---
+        FrameArchive a = archive;
+        if (a != null) a.Add(img, null, session.getLapi().GetImageQuality(hDev, img));
+
+        // --- Create PNG and send it back via helper ---
+        sendEvent("image", null, toPng(img), session);
+
+        // --- Create ISO Template ---
+        byte[] isoTemplateBuffer = new byte[LAPI.FPINFO_SIZE];
+        // Caller holds the session, so hDev stays valid for this native call
+        int templateSize = session.getLapi().CreateISOTemplate(hDev, img, isoTemplateBuffer);
+
+        if (templateSize > 0) {
+            byte[] finalTemplate = new byte[templateSize];
+            System.arraycopy(isoTemplateBuffer, 0, finalTemplate, 0, templateSize);
+            sendEvent("iso_template", "ISO Template Created", finalTemplate, session);
+        } else {
+            // Log the error code if possible, or just a generic message
+             Log.e(TAG, "CreateISOTemplate failed with result: " + templateSize);
+            sendEvent("status", "Failed to create ISO template (Error code: " + templateSize + ")", null, session);
+        }
+    }
+
+
+    private byte[] toPng(byte[] img) {
         ByteArrayOutputStream stream = new ByteArrayOutputStream();
         Bitmap bitmap = null;
         try {
@@ -422,11 +877,7 @@ public class HzfingerFingerprintSdkPlugin implements FlutterPlugin, MethodCallHa
 
             bitmap = Bitmap.createBitmap(rgbBits, width, height, Bitmap.Config.ARGB_8888);
             bitmap.compress(Bitmap.CompressFormat.PNG, 100, stream);
-            byte[] pngData = stream.toByteArray();
-
-            // Send PNG data back via helper
-            sendEvent("image", null, pngData);
-
+            return stream.toByteArray();
         } finally {
             if (bitmap != null) {
                 bitmap.recycle();
@@ -437,27 +888,159 @@ public class HzfingerFingerprintSdkPlugin implements FlutterPlugin, MethodCallHa
                 e.printStackTrace();
             }
         }
+    }
 
-        // --- Create ISO Template ---
-        byte[] isoTemplateBuffer = new byte[LAPI.FPINFO_SIZE];
-        // Ensure device is still valid before native call
-        if (m_hDev == 0) {
-             Log.w(TAG,"Device closed before creating ISO template.");
-             return;
+    // --- Frame archive ---
+    private void configureArchive(MethodCall call) {
+        Boolean enabled = call.argument("enabled");
+        FrameArchive old = archive;
+        if (enabled == null || !enabled) {
+            archive = null;
+            if (hapi != null) hapi.SetArchive(null);
+            if (old != null) old.Close(2000);
+            return;
         }
-        int templateSize = lapi.CreateISOTemplate(m_hDev, img, isoTemplateBuffer);
+        FrameArchive a = old != null ? old : new FrameArchive(new File(context.getFilesDir(), ARCHIVE_DIR), wsqCodec);
+        Number maxBytes = call.argument("maxBytes");
+        Number maxAgeDays = call.argument("maxAgeDays");
+        a.SetRetention(maxBytes != null ? maxBytes.longValue() : FrameArchive.DEF_MAX_BYTES,
+                maxAgeDays != null ? maxAgeDays.longValue() * 24 * 3600 * 1000 : FrameArchive.DEF_MAX_AGE_MS);
+        archive = a;
+        if (hapi != null) hapi.SetArchive(a);
+    }
 
-        if (templateSize > 0) {
-            byte[] finalTemplate = new byte[templateSize];
-            System.arraycopy(isoTemplateBuffer, 0, finalTemplate, 0, templateSize);
-            sendEvent("iso_template", "ISO Template Created", finalTemplate);
-        } else {
-            // Log the error code if possible, or just a generic message
-             Log.e(TAG, "CreateISOTemplate failed with result: " + templateSize);
-            sendEvent("status", "Failed to create ISO template (Error code: " + templateSize + ")", null);
+    // --- Duplicate enrollments : report in the app's files directory, keys of checked records next to it ---
+    private void findDuplicates(MethodCall call, final DeviceSession session, final Result result) {
+        Boolean incrementalArg = call.argument("incremental");
+        final boolean incremental = incrementalArg == null || incrementalArg;
+        Number topK = call.argument("topK");
+        synchronized (this) {
+            if (duplicatesRunning) {
+                result.error("BUSY", "Duplicate detection is already running.", null);
+                return;
+            }
+            duplicatesRunning = true;
         }
+        final DuplicateDetector d = duplicateDetector();
+        d.SetTopK(topK != null ? topK.intValue() : DuplicateDetector.DEF_TOPK);
+        final HAPI h = hapi;
+        final File reportFile = new File(context.getFilesDir(), DUPLICATES_REPORT);
+        final File checkedFile = new File(context.getFilesDir(), DUPLICATES_CHECKED);
+        new Thread(() -> {
+            // The job holds the session, so the handle stays open while pool threads match on it
+            long hDev = session.acquire();
+            if (hDev == 0) {
+                synchronized (this) {
+                    duplicatesRunning = false;
+                }
+                runOnMain(() -> result.error("DEVICE_RECONNECTING", "Device is reconnecting, try again shortly.", null));
+                return;
+            }
+            try {
+                LAPI lapi = session.getLapi();
+                BatchMatcher.Matcher matcher = (t1, t2) -> lapi.CompareTemplates(hDev, t1, t2);
+                DuplicateDetector.Report rep = h.FindDuplicates(d, matcher, incremental ? DuplicateDetector.LoadKeys(checkedFile) : null);
+                if (rep.errCode != HAPI.ERROR_NONE) {
+                    runOnMain(() -> result.error("DEDUP_FAILED", "Duplicate detection failed (Error code: " + rep.errCode + ")", null));
+                    return;
+                }
+                DuplicateDetector.WriteReport(rep, reportFile);
+                DuplicateDetector.SaveKeys(rep.keys, checkedFile);
+                List<Map<String, Object>> pairs = new ArrayList<>(rep.pairs.size());
+                for (DuplicateDetector.Pair p : rep.pairs) {
+                    Map<String, Object> m = new HashMap<>();
+                    m.put("idA", p.idA);
+                    m.put("idB", p.idB);
+                    m.put("score", p.score);
+                    pairs.add(m);
+                }
+                Map<String, Object> m = new HashMap<>();
+                m.put("pairs", pairs);
+                m.put("report", reportFile.getAbsolutePath());
+                m.put("records", rep.records);
+                m.put("checked", rep.rows);
+                m.put("compared", rep.compared);
+                m.put("pruned", rep.pruned);
+                m.put("timeMs", rep.time);
+                runOnMain(() -> result.success(m));
+            } catch (IOException | IllegalStateException e) {
+                Log.e(TAG, "Duplicate detection failed", e);
+                runOnMain(() -> result.error("DEDUP_FAILED", String.valueOf(e.getMessage()), null));
+            } finally {
+                session.release();
+                synchronized (this) {
+                    duplicatesRunning = false;
+                }
+            }
+        }, "HZFinger-Dedup").start();
     }
 
+    // --- Re-templating : templates of the DATABASE re-created from an image directory or the archive ---
+    private void retemplate(MethodCall call, final DeviceSession session, final Result result) {
+        final String directory = call.argument("directory");
+        final FrameArchive a = archive;
+        if (directory == null && a == null) {
+            result.error("ARCHIVE_DISABLED", "No 'directory' given and the frame archive is not enabled.", null);
+            return;
+        }
+        Boolean isoArg = call.argument("iso");
+        final boolean iso = isoArg == null || isoArg;
+        Number threadsArg = call.argument("threads");
+        int threads = threadsArg != null ? threadsArg.intValue() : Math.min(4, Runtime.getRuntime().availableProcessors());
+        final HAPI h = hapi;
+
+        // Each call holds the session, so the handle stays valid while the device may reconnect
+        RetemplateJob.Extractor extractor = (image, itemplate) -> {
+            long hDev = session.acquire();
+            if (hDev == 0) return 0;
+            try {
+                LAPI lapi = session.getLapi();
+                int size = iso ? lapi.CreateISOTemplate(hDev, image, itemplate) : lapi.CreateANSITemplate(hDev, image, itemplate);
+                return size > 0 ? Math.max(1, lapi.GetImageQuality(hDev, image)) : 0;
+            } finally {
+                session.release();
+            }
+        };
+        // Checkpoint per format and source, so an interrupted job picks up where it stopped
+        String source = directory != null ? Integer.toHexString(directory.hashCode()) : "archive";
+        File checkpoint = new File(context.getFilesDir(), String.format(RETEMPLATE_CHECKPOINT, iso ? "iso" : "ansi", source));
+        final RetemplateJob job = new RetemplateJob(extractor, h::PutRecords, checkpoint, threads);
+        synchronized (this) {
+            if (retemplateJob != null) {
+                result.error("BUSY", "A re-templating job is already running.", null);
+                return;
+            }
+            retemplateJob = job;
+        }
+        new Thread(() -> {
+            try {
+                List<RetemplateJob.Item> items = directory != null
+                        ? RetemplateJob.FromDirectory(new File(directory), wsqCodec) : RetemplateJob.FromArchive(a);
+                RetemplateJob.Progress p = job.Run(items, progress -> {
+                    Map<String, Object> extra = new HashMap<>();
+                    extra.put("total", progress.total);
+                    extra.put("skipped", progress.skipped);
+                    extra.put("done", progress.done);
+                    extra.put("failed", progress.failed);
+                    extra.put("perSecond", progress.perSecond);
+                    extra.put("finished", progress.finished);
+                    sendEvent("retemplate", null, null, extra, session);
+                });
+                Map<String, Object> m = new HashMap<>();
+                m.put("total", p.total);
+                m.put("skipped", p.skipped);
+                m.put("done", p.done);
+                m.put("failed", p.failed);
+                m.put("finished", p.finished);
+                runOnMain(() -> result.success(m));
+            } catch (IOException | InterruptedException e) {
+                Log.e(TAG, "Re-templating failed", e);
+                runOnMain(() -> result.error("RETEMPLATE_FAILED", String.valueOf(e.getMessage()), null));
+            } finally {
+                retemplateJob = null;
+            }
+        }, "HZFinger-Retemplate").start();
+    }
 
     // --- EventChannel.StreamHandler Implementation ---
     @Override
@@ -470,88 +1053,29 @@ public class HzfingerFingerprintSdkPlugin implements FlutterPlugin, MethodCallHa
         this.eventSink = null;
     }
 
-    // --- Utility Functions ---
-    private void copyAssetsToStorage() {
-        AssetManager assetManager = context.getAssets();
-        String modelDir = "HZFinger_DNN_Model";
-        File targetDir = context.getExternalFilesDir(null);
-        if (targetDir == null) {
-            sendEvent("status", "Cannot access external files directory", null);
-            return;
-        }
-
-        try {
-            String[] modelFiles = assetManager.list(modelDir);
-            if (modelFiles != null) {
-                for (String filename : modelFiles) {
-                    File targetFile = new File(targetDir, filename);
-                    if (!targetFile.exists()) {
-                        try (InputStream in = assetManager.open(modelDir + "/" + filename);
-                             OutputStream out = new FileOutputStream(targetFile)) {
-                            byte[] buffer = new byte[1024];
-                            int read;
-                            while ((read = in.read(buffer)) != -1) {
-                                out.write(buffer, 0, read);
-                            }
-                        }
-                    }
-                }
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-            sendEvent("status", "Could not copy model files", null);
-        }
-    }
-
     @Override
     public void onDetachedFromEngine(@NonNull FlutterPluginBinding binding) {
         methodChannel.setMethodCallHandler(null);
         eventChannel.setStreamHandler(null);
-        // Stop monitoring when engine detaches
-        if (isMonitoring.compareAndSet(true, false)) {
-            if (monitoringThread != null) {
-                monitoringThread.interrupt(); // Interrupt sleep/wait
-                monitoringThread = null;
-            }
+        // Stop monitoring and close every device, only when the engine goes away
+        for (DeviceSession s : devices.all()) {
+            closeSession(s, 0); // Interrupt only, cleanup needs to be fast
         }
-    }
-
-    // --- ActivityAware Implementation ---
-    @Override
-    public void onAttachedToActivity(@NonNull ActivityPluginBinding binding) {
-        this.activity = binding.getActivity();
-        lapi = new LAPI(this.activity);
-        hapi = new HAPI(this.activity, pluginHandler);
-    }
-
-    @Override
-    public void onDetachedFromActivity() {
-         // Stop monitoring when activity detaches
-        if (isMonitoring.compareAndSet(true, false)) {
-            if (monitoringThread != null) {
-                monitoringThread.interrupt(); // Interrupt sleep/wait
-                 // Don't wait with join here, cleanup needs to be fast
-                monitoringThread = null;
-            }
-        }
-        // Close device
-        if (lapi != null && m_hDev != 0) {
-            lapi.CloseDeviceEx(m_hDev);
-            m_hDev = 0;
+        RetemplateJob job = retemplateJob;
+        if (job != null) job.Cancel();
+        FrameArchive a = archive;
+        archive = null;
+        if (a != null) a.Close(500); // Write queued frames
+        synchronized (this) {
+            if (batchMatcher != null) batchMatcher.Close();
+            batchMatcher = null;
+            if (duplicateDetector != null) duplicateDetector.Close();
+            duplicateDetector = null;
         }
-        lapi = null;
+        // Stop the gallery refresh and close fprecord.db once nothing matches against it anymore
+        HAPI h = hapi;
         hapi = null;
-        this.activity = null;
-    }
-
-    @Override
-    public void onReattachedToActivityForConfigChanges(@NonNull ActivityPluginBinding binding) {
-        onAttachedToActivity(binding); // Re-attach
-    }
-
-    @Override
-    public void onDetachedFromActivityForConfigChanges() {
-        onDetachedFromActivity(); // Detach
+        if (h != null) h.Close();
     }
 }
 
@@ -0,0 +1,235 @@
+package com.drebyte.hzfinger_fingerprint_sdk;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.res.AssetManager;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Installs the DNN model assets into the model directory.
+ *
+ * Files are written to a temp file and renamed into place, so a crash never leaves a half-written
+ * model behind. A manifest records the size and SHA-256 of every installed file together with the
+ * app's install time: while the app is not updated, install() only checks that the files exist with
+ * the recorded sizes, and verify() re-hashes them (meant for a background thread) and re-copies any
+ * file that does not match.
+ *
+ * Each init creates its own installer, so install() and verify() of all instances run under one
+ * static lock, and temp files get unique names.
+ */
+class ModelInstaller {
+
+    static final String ASSET_DIR = "HZFinger_DNN_Model";
+    private static final String TAG = "HZFingerModel";
+    private static final String MANIFEST = ".hzfinger_model.manifest";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Temp files of the installer only : the directory is shared with the host app
+    private static final String TMP_PREFIX = ".hzfinger_tmp.";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final Object LOCK = new Object();
+
+    private static final class Entry {
+        final long size;
+        final String sha256;
+
+        Entry(long size, String sha256) {
+            this.size = size;
+            this.sha256 = sha256;
+        }
+    }
+
+    private final Context context;
+    private final File targetDir;
+
+    ModelInstaller(Context context, File targetDir) {
+        this.context = context;
+        this.targetDir = targetDir;
+    }
+
+    /** Makes sure every model asset is installed. Fast when nothing changed since the last install. */
+    void install() throws IOException {
+        synchronized (LOCK) {
+            deleteTempFiles();
+            installLocked();
+        }
+    }
+
+    private void installLocked() throws IOException {
+        long stamp = appStamp();
+        Map<String, Entry> manifest = readManifest(stamp);
+        boolean changed = false;
+        if (manifest == null) {
+            // First run or app updated : (re)install everything listed in assets
+            manifest = new LinkedHashMap<>();
+            String[] files = context.getAssets().list(ASSET_DIR);
+            if (files != null) {
+                for (String name : files) manifest.put(name, copy(name));
+            }
+            changed = true;
+        } else {
+            for (Map.Entry<String, Entry> e : manifest.entrySet()) {
+                File f = new File(targetDir, e.getKey());
+                if (f.length() != e.getValue().size) {
+                    Log.w(TAG, "Reinstalling " + e.getKey() + ": size " + f.length() + " != " + e.getValue().size);
+                    e.setValue(copy(e.getKey()));
+                    changed = true;
+                }
+            }
+        }
+        if (changed) writeManifest(stamp, manifest);
+    }
+
+    /** Re-hashes installed files and re-copies those that do not match. Returns the number healed. */
+    int verify() {
+        synchronized (LOCK) {
+            return verifyLocked();
+        }
+    }
+
+    private int verifyLocked() {
+        long stamp = appStamp();
+        Map<String, Entry> manifest = readManifest(stamp);
+        if (manifest == null) return 0;
+        int healed = 0;
+        try {
+            for (Map.Entry<String, Entry> e : manifest.entrySet()) {
+                File f = new File(targetDir, e.getKey());
+                if (e.getValue().sha256.equals(hash(f))) continue;
+                Log.w(TAG, "Model file " + e.getKey() + " is corrupted, reinstalling.");
+                e.setValue(copy(e.getKey()));
+                healed++;
+            }
+            if (healed > 0) writeManifest(stamp, manifest);
+        } catch (IOException e) {
+            Log.e(TAG, "Model verification failed", e);
+        }
+        return healed;
+    }
+
+    // --- Copy / hash ---
+
+    /** Temp files left by a copy that was killed, only called under LOCK so none is being written. */
+    private void deleteTempFiles() {
+        File[] files = targetDir.listFiles();
+        if (files == null) return;
+        for (File f : files) {
+            String n = f.getName();
+            if (n.startsWith(TMP_PREFIX) && n.endsWith(TMP_SUFFIX)) f.delete();
+        }
+    }
+
+    /** Copies one asset through a temp file, hashing it on the way. */
+    private Entry copy(String name) throws IOException {
+        File tmp = File.createTempFile(TMP_PREFIX + name + ".", TMP_SUFFIX, targetDir);
+        File dst = new File(targetDir, name);
+        MessageDigest md = sha256();
+        long size = 0;
+        AssetManager assets = context.getAssets();
+        try (InputStream in = assets.open(ASSET_DIR + "/" + name);
+             FileOutputStream out = new FileOutputStream(tmp)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                md.update(buffer, 0, read);
+                size += read;
+            }
+            out.getFD().sync();
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        if (!tmp.renameTo(dst)) {
+            tmp.delete();
+            throw new IOException("Cannot rename " + tmp + " to " + dst);
+        }
+        return new Entry(size, hex(md.digest()));
+    }
+
+    private static String hash(File f) throws IOException {
+        if (!f.isFile()) return "";
+        MessageDigest md = sha256();
+        try (InputStream in = new FileInputStream(f)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) md.update(buffer, 0, read);
+        }
+        return hex(md.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) sb.append(String.format("%02x", b & 0xff));
+        return sb.toString();
+    }
+
+    // --- Manifest : "stamp <n>" then one "name<TAB>size<TAB>sha256" line per file ---
+
+    /** Assets only change with the app, so its last update time identifies their version. */
+    private long appStamp() {
+        try {
+            return context.getPackageManager().getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            return 0;
+        }
+    }
+
+    /** Manifest entries, or null if there is none or it was written for another app version. */
+    private Map<String, Entry> readManifest(long stamp) {
+        File f = new File(targetDir, MANIFEST);
+        if (!f.isFile()) return null;
+        Map<String, Entry> entries = new LinkedHashMap<>();
+        try (BufferedReader r = new BufferedReader(new FileReader(f))) {
+            String line = r.readLine();
+            if (line == null || !line.equals("stamp " + stamp)) return null;
+            while ((line = r.readLine()) != null) {
+                String[] p = line.split("\t");
+                if (p.length != 3) return null;
+                entries.put(p[0], new Entry(Long.parseLong(p[1]), p[2]));
+            }
+        } catch (IOException | NumberFormatException e) {
+            return null;
+        }
+        return entries;
+    }
+
+    private void writeManifest(long stamp, Map<String, Entry> entries) throws IOException {
+        File tmp = File.createTempFile(TMP_PREFIX + MANIFEST + ".", TMP_SUFFIX, targetDir);
+        try (FileOutputStream out = new FileOutputStream(tmp);
+             Writer w = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+            w.write("stamp " + stamp + "\n");
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                w.write(e.getKey() + "\t" + e.getValue().size + "\t" + e.getValue().sha256 + "\n");
+            }
+            w.flush();
+            out.getFD().sync();
+        }
+        if (!tmp.renameTo(new File(targetDir, MANIFEST))) {
+            tmp.delete();
+            throw new IOException("Cannot write model manifest");
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.HZFINGER;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import org.junit.Ignore;
+import org.junit.Test;
+
+/**
+ * Queued transport tests against a stand-in request queue.
+ *
+ * The fake port models one bus: a request starts no earlier than LATENCY after it is queued and no
+ * earlier than the previous request completed, then takes NANOS_PER_BYTE per byte. testQueueDepthReport
+ * prints the time to receive one image frame with one request and with DEF_DEPTH requests in flight.
+ */
+public class AsyncUsbTransportTest {
+  private static final int FRAME = LAPI.IMAGE_SIZE;
+  private static final long LATENCY = 100_000;
+  private static final long NANOS_PER_BYTE = 5;
+
+  static class FakePort implements AsyncUsbTransport.Port {
+    final byte[] stream;
+    boolean isIn = true;
+    int pos;
+    boolean refuse;
+    int failAfter = Integer.MAX_VALUE;
+    int completed;
+    int maxInFlight;
+    long busyUntil;
+    final ArrayDeque<Object[]> queue = new ArrayDeque<>();
+
+    FakePort(byte[] stream) {
+      this.stream = stream;
+    }
+
+    @Override
+    public boolean Queue(int slot, ByteBuffer buffer) {
+      if (refuse) return false;
+      long start = Math.max(System.nanoTime() + LATENCY, busyUntil);
+      busyUntil = start + buffer.remaining() * NANOS_PER_BYTE;
+      queue.add(new Object[] {slot, buffer, busyUntil, false});
+      maxInFlight = Math.max(maxInFlight, queue.size());
+      return true;
+    }
+
+    @Override
+    public int Wait(long timeout) {
+      Object[] r = queue.peek();
+      // After failAfter completions, only cancelled requests are still reaped
+      if (r == null || (completed >= failAfter && !(Boolean) r[3])) return -1;
+      queue.poll();
+      long until = (Long) r[2];
+      while (System.nanoTime() < until) { }
+      ByteBuffer b = (ByteBuffer) r[1];
+      if (!(Boolean) r[3]) {
+        int n = b.remaining();
+        if (isIn) {
+          b.put(stream, pos, n);
+        } else {
+          b.get(stream, pos, n);
+        }
+        pos += n;
+      }
+      completed++;
+      return (Integer) r[0];
+    }
+
+    @Override
+    public void Cancel(int slot) {
+      for (Object[] r : queue) {
+        if ((Integer) r[0] == slot) r[3] = true;
+      }
+    }
+
+    @Override
+    public void Close() { }
+  }
+
+  static byte[] frame() {
+    byte[] f = new byte[FRAME];
+    for (int i = 0; i < FRAME; i++) f[i] = (byte) (i * 17);
+    return f;
+  }
+
+  static AsyncUsbTransport transport(FakePort in, FakePort out, int depth) {
+    out.isIn = false;
+    return new AsyncUsbTransport(in, out, AsyncUsbTransport.DEF_CHUNK, depth);
+  }
+
+  @Test
+  public void receive_keepsRequestsInFlightAndReassemblesFrame() {
+    byte[] src = frame();
+    FakePort in = new FakePort(src);
+    AsyncUsbTransport t = transport(in, new FakePort(new byte[0]), AsyncUsbTransport.DEF_DEPTH);
+    byte[] dst = new byte[FRAME];
+    assertTrue(t.Receive(dst, FRAME, 1000));
+    assertArrayEquals(src, dst);
+    assertEquals(AsyncUsbTransport.DEF_DEPTH, in.maxInFlight);
+  }
+
+  @Test
+  public void send_writesWholeBufferInOrder() {
+    byte[] src = frame();
+    FakePort out = new FakePort(new byte[FRAME]);
+    AsyncUsbTransport t = transport(new FakePort(new byte[0]), out, AsyncUsbTransport.DEF_DEPTH);
+    assertTrue(t.Send(src, FRAME, 1000));
+    assertArrayEquals(src, out.stream);
+  }
+
+  @Test
+  public void receive_drainsInFlightRequestsOnTimeout() {
+    FakePort in = new FakePort(frame());
+    in.failAfter = 1;
+    AsyncUsbTransport t = transport(in, new FakePort(new byte[0]), AsyncUsbTransport.DEF_DEPTH);
+    assertFalse(t.Receive(new byte[FRAME], FRAME, 1000));
+    assertTrue(t.IsAvailable());
+    assertTrue(in.queue.isEmpty()); // all requests in flight were reaped
+
+    in.failAfter = Integer.MAX_VALUE;
+    in.queue.clear();
+    in.pos = 0;
+    byte[] dst = new byte[FRAME];
+    assertTrue(t.Receive(dst, FRAME, 1000));
+    assertArrayEquals(in.stream, dst);
+  }
+
+  @Test
+  public void receive_reportsUnavailableWhenRequestsCannotBeReaped() {
+    FakePort in = new FakePort(frame()) {
+      @Override
+      public void Cancel(int slot) { } // requests stay outstanding
+    };
+    in.failAfter = 1;
+    AsyncUsbTransport t = transport(in, new FakePort(new byte[0]), AsyncUsbTransport.DEF_DEPTH);
+    assertFalse(t.Receive(new byte[FRAME], FRAME, 1000));
+    assertFalse(t.IsAvailable());
+  }
+
+  @Test
+  public void receive_reportsUnavailableWhenQueueRefused() {
+    FakePort in = new FakePort(frame());
+    in.refuse = true;
+    AsyncUsbTransport t = transport(in, new FakePort(new byte[0]), AsyncUsbTransport.DEF_DEPTH);
+    assertFalse(t.Receive(new byte[FRAME], FRAME, 1000));
+    assertFalse(t.IsAvailable());
+  }
+
+  @Test
+  @Ignore("Benchmark, run by hand")
+  public void testQueueDepthReport() {
+    byte[] src = frame();
+    byte[] dst = new byte[FRAME];
+    int[] depths = {1, AsyncUsbTransport.DEF_DEPTH};
+    long[] usPerFrame = new long[depths.length];
+    for (int d = 0; d < depths.length; d++) {
+      int frames = 20;
+      long start = 0;
+      for (int i = -5; i < frames; i++) {
+        if (i == 0) start = System.nanoTime();
+        AsyncUsbTransport t = transport(new FakePort(src), new FakePort(new byte[0]), depths[d]);
+        assertTrue(t.Receive(dst, FRAME, 1000));
+      }
+      usPerFrame[d] = (System.nanoTime() - start) / 1000 / frames;
+      System.out.println(String.format("async read frame=%dB chunk=%dB depth=%d time=%dus",
+          FRAME, AsyncUsbTransport.DEF_CHUNK, depths[d], usPerFrame[d]));
+    }
+    assertTrue(usPerFrame[1] < usPerFrame[0]);
+  }
+}
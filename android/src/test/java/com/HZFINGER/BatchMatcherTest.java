@@ -0,0 +1,109 @@
+package com.HZFINGER;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.junit.Ignore;
+import org.junit.Test;
+
+/**
+ * Batch compare tests with a byte-similarity matcher standing in for the native one.
+ *
+ * testBatchReport prints the time to score one probe against N templates pair by pair, allocating
+ * padded arrays per call like the single-pair method does, and through a batch on the pool.
+ * It is a benchmark, ignored by default and run by hand.
+ */
+public class BatchMatcherTest {
+  private static final int SLOT = BatchMatcher.SLOT;
+
+  /** Equal bytes over the slot, spun a little so a compare costs about as much as a native one. */
+  static final BatchMatcher.Matcher MATCHER = (t1, t2) -> {
+    int same = 0;
+    for (int r = 0; r < 20; r++) {
+      for (int i = 0; i < SLOT; i++) {
+        if (t1[i] == t2[(i + r) % SLOT]) same++;
+      }
+    }
+    return same * 100 / (20 * SLOT);
+  };
+
+  static byte[][] templates(int n, long seed) {
+    Random rnd = new Random(seed);
+    byte[][] t = new byte[n][];
+    for (int i = 0; i < n; i++) {
+      t[i] = new byte[200 + rnd.nextInt(SLOT - 200)];
+      for (int k = 0; k < t[i].length; k++) t[i][k] = (byte) rnd.nextInt(4);
+    }
+    return t;
+  }
+
+  static byte[] pack(byte[][] t) {
+    byte[] p = new byte[t.length * SLOT];
+    for (int i = 0; i < t.length; i++) System.arraycopy(t[i], 0, p, i * SLOT, t[i].length);
+    return p;
+  }
+
+  static int single(byte[] a, byte[] b) {
+    byte[] pa = new byte[SLOT];
+    byte[] pb = new byte[SLOT];
+    System.arraycopy(a, 0, pa, 0, a.length);
+    System.arraycopy(b, 0, pb, 0, b.length);
+    return MATCHER.Compare(pa, pb);
+  }
+
+  @Test
+  public void compareMany_matchesPairByPair() {
+    byte[][] t = templates(100, 1);
+    byte[] probe = templates(1, 2)[0];
+    BatchMatcher bm = new BatchMatcher(4);
+    int[] scores = bm.CompareMany(MATCHER, probe, pack(t), t.length);
+    assertEquals(t.length, scores.length);
+    for (int i = 0; i < t.length; i++) assertEquals(single(probe, t[i]), scores[i]);
+    bm.Close();
+  }
+
+  @Test
+  public void compareMatrix_isRowMajor() {
+    byte[][] a = templates(7, 3);
+    byte[][] b = templates(9, 4);
+    BatchMatcher bm = new BatchMatcher(3);
+    int[] scores = bm.CompareMatrix(MATCHER, pack(a), a.length, pack(b), b.length);
+    int[] expected = new int[a.length * b.length];
+    for (int i = 0; i < a.length; i++) {
+      for (int k = 0; k < b.length; k++) expected[i * b.length + k] = single(a[i], b[k]);
+    }
+    assertArrayEquals(expected, scores);
+    bm.Close();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void compareMany_rejectsShortBuffer() {
+    new BatchMatcher(1).CompareMany(MATCHER, new byte[10], new byte[SLOT], 2);
+  }
+
+  @Test
+  @Ignore("Benchmark, run by hand")
+  public void testBatchReport() {
+    int n = 400;
+    byte[][] t = templates(n, 5);
+    byte[] probe = templates(1, 6)[0];
+    byte[] packed = pack(t);
+    BatchMatcher bm = new BatchMatcher(4);
+    bm.CompareMany(MATCHER, probe, packed, n); // warm up
+
+    long start = System.nanoTime();
+    for (int i = 0; i < n; i++) single(probe, t[i]);
+    long pairUs = (System.nanoTime() - start) / 1000;
+
+    start = System.nanoTime();
+    bm.CompareMany(MATCHER, probe, packed, n);
+    long batchUs = (System.nanoTime() - start) / 1000;
+    bm.Close();
+
+    System.out.println(String.format("batch compare N=%d pair-by-pair=%dus batch(4 threads)=%dus cores=%d",
+        n, pairUs, batchUs, Runtime.getRuntime().availableProcessors()));
+    assertTrue(batchUs > 0);
+  }
+}
@@ -0,0 +1,108 @@
+package com.HZFINGER;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+/**
+ * Bulk transfer path tests against a fake connection.
+ *
+ * The fake pipe charges a fixed per-call cost (standing in for the usbfs ioctl and URB round trip)
+ * plus the copy of the payload. testFrameReadReport prints the time to read one image frame with
+ * packet-sized transfers and with large transfers.
+ * It is a benchmark, ignored by default and run by hand.
+ */
+public class BulkIoTest {
+  private static final int PACKET = 512;
+  private static final int FRAME = LAPI.IMAGE_SIZE;
+  private static final long CALL_NANOS = 20_000;
+
+  /** Serves a fixed byte stream, at most {@code limit} bytes per call. */
+  static class FakePipe implements BulkIo.Pipe {
+    final byte[] source;
+    final int limit;
+    int pos;
+    int calls;
+
+    FakePipe(byte[] source, int limit) {
+      this.source = source;
+      this.limit = limit;
+    }
+
+    @Override
+    public int Transfer(byte[] buffer, int offset, int length, int timeout) {
+      calls++;
+      long until = System.nanoTime() + CALL_NANOS;
+      while (System.nanoTime() < until) { }
+      if (length > limit) return -1;
+      int n = Math.min(length, source.length - pos);
+      if (n <= 0) return -1;
+      System.arraycopy(source, pos, buffer, offset, n);
+      pos += n;
+      return n;
+    }
+  }
+
+  static byte[] frame() {
+    byte[] f = new byte[FRAME];
+    for (int i = 0; i < FRAME; i++) f[i] = (byte) (i * 31);
+    return f;
+  }
+
+  @Test
+  public void transfer_readsWholeFrameInLargeChunks() {
+    byte[] src = frame();
+    FakePipe pipe = new FakePipe(src, Integer.MAX_VALUE);
+    BulkIo bulk = new BulkIo(pipe, PACKET, BulkIo.MAX_TRANSFER_LEGACY);
+    byte[] dst = new byte[FRAME];
+    assertTrue(bulk.Transfer(dst, FRAME, 1000));
+    assertArrayEquals(src, dst);
+    assertEquals((FRAME + BulkIo.MAX_TRANSFER_LEGACY - 1) / BulkIo.MAX_TRANSFER_LEGACY, pipe.calls);
+    assertTrue(bulk.IsLargeTransfer());
+  }
+
+  @Test
+  public void transfer_fallsBackToPacketsWhenLargeRefused() {
+    byte[] src = frame();
+    FakePipe pipe = new FakePipe(src, PACKET);
+    BulkIo bulk = new BulkIo(pipe, PACKET, BulkIo.MAX_TRANSFER);
+    byte[] dst = new byte[FRAME];
+    assertTrue(bulk.Transfer(dst, FRAME, 1000));
+    assertArrayEquals(src, dst);
+    assertFalse(bulk.IsLargeTransfer());
+  }
+
+  @Test
+  public void transfer_failsOnShortStream() {
+    FakePipe pipe = new FakePipe(new byte[FRAME / 2], Integer.MAX_VALUE);
+    BulkIo bulk = new BulkIo(pipe, PACKET, BulkIo.MAX_TRANSFER);
+    assertFalse(bulk.Transfer(new byte[FRAME], FRAME, 1000));
+    assertTrue(bulk.IsLargeTransfer());
+  }
+
+  @Test
+  @Ignore("Benchmark, run by hand")
+  public void testFrameReadReport() {
+    byte[] src = frame();
+    byte[] dst = new byte[FRAME];
+    int[] chunks = {PACKET, BulkIo.MAX_TRANSFER_LEGACY, BulkIo.MAX_TRANSFER};
+    long[] usPerFrame = new long[chunks.length];
+    for (int c = 0; c < chunks.length; c++) {
+      int frames = 20;
+      long start = 0;
+      for (int i = -5; i < frames; i++) {
+        if (i == 0) start = System.nanoTime();
+        BulkIo bulk = new BulkIo(new FakePipe(src, Integer.MAX_VALUE), PACKET, chunks[c]);
+        assertTrue(bulk.Transfer(dst, FRAME, 1000));
+      }
+      usPerFrame[c] = (System.nanoTime() - start) / 1000 / frames;
+      System.out.println(String.format("bulk read frame=%dB chunk=%dB time=%dus",
+          FRAME, chunks[c], usPerFrame[c]));
+    }
+    assertTrue(usPerFrame[2] < usPerFrame[0]);
+  }
+}
@@ -0,0 +1,205 @@
+package com.HZFINGER;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Ignore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Duplicate detection tests on a synthetic gallery of ISO minutiae records where some fingers are
+ * enrolled twice, with a matcher that knows the finger of each template.
+ *
+ * testDuplicatesReport prints the pairs matched and the duplicates found by a full cross-match with
+ * and without pre-filter, and by an incremental run over a few new records.
+ * It is a benchmark, ignored by default and run by hand.
+ */
+public class DuplicateDetectorTest {
+  private static final int THRESHOLD = 50;
+
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  /** Gallery of n records, every dupEvery-th one a re-capture of an earlier finger. */
+  static class Gallery {
+    final String[] ids;
+    final byte[][] templates;
+    final TemplateIndex index;
+    final Map<byte[], Integer> finger = new IdentityHashMap<>();
+    final int[][][] minutiae;
+    int count = 0;
+    int duplicates = 0;
+
+    Gallery(int capacity) {
+      ids = new String[capacity];
+      templates = new byte[capacity][];
+      index = new TemplateIndex(capacity);
+      minutiae = new int[capacity][][];
+    }
+
+    void add(String id, byte[] t, int fingerId) {
+      ids[count] = id;
+      templates[count] = t;
+      finger.put(t, fingerId);
+      index.Put(count, t, 0);
+      count++;
+    }
+
+    void fill(int n, int dupEvery, Random r) {
+      for (int i = count; i < n; i++) {
+        if (dupEvery > 0 && i > 0 && i % dupEvery == 0) {
+          int f = r.nextInt(i);
+          while (minutiae[f] == null) f = r.nextInt(i);
+          add("u" + i, TemplateIndexTest.isoTemplate(TemplateIndexTest.recapture(minutiae[f], r)), finger.get(templates[f]));
+          duplicates++;
+        } else {
+          minutiae[i] = TemplateIndexTest.randomFinger(r);
+          add("u" + i, TemplateIndexTest.isoTemplate(minutiae[i]), i);
+        }
+      }
+    }
+
+    BatchMatcher.Matcher matcher() {
+      return (t1, t2) -> finger.get(t1).equals(finger.get(t2)) ? 80 : 10;
+    }
+  }
+
+  @Test
+  public void fullRun_matchesEveryPairOnceAndFindsDuplicates() {
+    Gallery g = new Gallery(100);
+    g.fill(100, 10, new Random(1));
+    DuplicateDetector d = new DuplicateDetector(3);
+    DuplicateDetector.Report rep = d.Find(g.matcher(), g.ids, g.templates, null, g.count, null, THRESHOLD);
+    d.Close();
+    assertEquals(100 * 99 / 2, rep.compared);
+    assertEquals(0, rep.pruned);
+    assertEquals(g.duplicates, rep.pairs.size());
+    for (DuplicateDetector.Pair p : rep.pairs) {
+      assertTrue(Integer.parseInt(p.idA.substring(1)) < Integer.parseInt(p.idB.substring(1)));
+      assertEquals(80, p.score);
+    }
+  }
+
+  @Test
+  public void incrementalRun_matchesOnlyNewRecords() {
+    Random r = new Random(2);
+    Gallery g = new Gallery(60);
+    g.fill(50, 0, r);
+    DuplicateDetector d = new DuplicateDetector(2);
+    DuplicateDetector.Report first = d.Find(g.matcher(), g.ids, g.templates, g.index, g.count, null, THRESHOLD);
+    assertEquals(0, first.pairs.size());
+
+    g.fill(60, 4, r); // 3 of the 10 new records are duplicates
+    Set<String> checked = new HashSet<>(Arrays.asList(first.keys));
+    DuplicateDetector.Report next = d.Find(g.matcher(), g.ids, g.templates, null, g.count, checked, THRESHOLD);
+    d.Close();
+    assertEquals(10, next.rows);
+    assertEquals(10 * 50 + 10 * 9 / 2, next.compared);
+    assertEquals(g.duplicates, next.pairs.size());
+  }
+
+  @Test
+  public void incrementalRun_rechecksReplacedTemplate() {
+    Random r = new Random(3);
+    Gallery g = new Gallery(20);
+    g.fill(20, 0, r);
+    DuplicateDetector d = new DuplicateDetector(1);
+    DuplicateDetector.Report first = d.Find(g.matcher(), g.ids, g.templates, null, g.count, null, THRESHOLD);
+
+    // u7 re-enrolled with a finger of u3
+    g.templates[7] = TemplateIndexTest.isoTemplate(TemplateIndexTest.recapture(g.minutiae[3], r));
+    g.finger.put(g.templates[7], 3);
+    DuplicateDetector.Report next = d.Find(g.matcher(), g.ids, g.templates, null, g.count,
+        new HashSet<>(Arrays.asList(first.keys)), THRESHOLD);
+    d.Close();
+    assertEquals(1, next.rows);
+    assertEquals(1, next.pairs.size());
+    assertEquals("u3", next.pairs.get(0).idA);
+    assertEquals("u7", next.pairs.get(0).idB);
+  }
+
+  @Test
+  public void reportAndKeys_roundTrip() throws Exception {
+    DuplicateDetector.Report rep = new DuplicateDetector.Report();
+    DuplicateDetector.Pair p = new DuplicateDetector.Pair();
+    p.idA = "doe, john";
+    p.idB = "u2";
+    p.score = 77;
+    rep.pairs.add(p);
+    rep.keys = new String[] {"a#1", "b#2"};
+    File csv = tmp.newFile("dup.csv");
+    DuplicateDetector.WriteReport(rep, csv);
+    List<String> lines = Files.readAllLines(csv.toPath());
+    assertEquals(Arrays.asList("idA,idB,score", "\"doe, john\",u2,77"), lines);
+
+    File keys = new File(tmp.getRoot(), "keys.txt");
+    DuplicateDetector.SaveKeys(rep.keys, keys);
+    assertEquals(new HashSet<>(Arrays.asList(rep.keys)), DuplicateDetector.LoadKeys(keys));
+    assertTrue(DuplicateDetector.LoadKeys(new File(tmp.getRoot(), "none")).isEmpty());
+  }
+
+  @Test
+  public void prefilter_prunesPairsAndKeepsMostDuplicates() {
+    int n = 1000;
+    Gallery g = new Gallery(n + 20);
+    g.fill(n, 50, new Random(42));
+    DuplicateDetector d = new DuplicateDetector(2);
+
+    d.SetTopK(0);
+    DuplicateDetector.Report full = d.Find(g.matcher(), g.ids, g.templates, g.index, g.count, null, THRESHOLD);
+    d.SetTopK(DuplicateDetector.DEF_TOPK);
+    DuplicateDetector.Report pre = d.Find(g.matcher(), g.ids, g.templates, g.index, g.count, null, THRESHOLD);
+    int before = g.duplicates;
+    g.fill(n + 20, 5, new Random(43));
+    DuplicateDetector.Report inc = d.Find(g.matcher(), g.ids, g.templates, g.index, g.count,
+        new HashSet<>(Arrays.asList(pre.keys)), THRESHOLD);
+    d.Close();
+
+    assertEquals(before, full.pairs.size());
+    assertEquals(full.compared, pre.compared + pre.pruned);
+    assertTrue(pre.compared < full.compared / 4);
+    assertTrue(pre.pairs.size() >= before * 8 / 10);
+    assertEquals(20, inc.rows);
+  }
+
+  @Test
+  @Ignore("Benchmark, run by hand")
+  public void testDuplicatesReport() {
+    int n = 1000;
+    Gallery g = new Gallery(n + 20);
+    g.fill(n, 50, new Random(42));
+    int threads = Runtime.getRuntime().availableProcessors();
+    DuplicateDetector d = new DuplicateDetector(threads);
+
+    d.SetTopK(0);
+    DuplicateDetector.Report full = d.Find(g.matcher(), g.ids, g.templates, g.index, g.count, null, THRESHOLD);
+    d.SetTopK(DuplicateDetector.DEF_TOPK);
+    DuplicateDetector.Report pre = d.Find(g.matcher(), g.ids, g.templates, g.index, g.count, null, THRESHOLD);
+    int before = g.duplicates;
+    g.fill(n + 20, 5, new Random(43));
+    DuplicateDetector.Report inc = d.Find(g.matcher(), g.ids, g.templates, g.index, g.count,
+        new HashSet<>(Arrays.asList(pre.keys)), THRESHOLD);
+    d.Close();
+
+    System.out.println(String.format("dedup N=%d threads=%d all-pairs=%d found=%d/%d %dms | prefilter K=%d pairs=%d found=%d %dms"
+        + " | incremental rows=%d pairs=%d found=%d/%d %dms",
+        n, threads, full.compared, full.pairs.size(), before, full.time,
+        DuplicateDetector.DEF_TOPK, pre.compared, pre.pairs.size(), pre.time,
+        inc.rows, inc.compared, inc.pairs.size(), g.duplicates - before, inc.time));
+    assertEquals(before, full.pairs.size());
+    assertEquals(full.compared, pre.compared + pre.pruned);
+    assertTrue(pre.compared < full.compared / 4);
+    assertTrue(pre.pairs.size() >= before * 8 / 10);
+    assertEquals(20, inc.rows);
+  }
+}
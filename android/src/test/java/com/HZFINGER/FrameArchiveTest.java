@@ -0,0 +1,186 @@
+package com.HZFINGER;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.junit.Ignore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Frame archive tests with Deflate standing in for the native WSQ codec.
+ *
+ * testArchiveReport prints the time a capture thread spends handing a frame to the archive against
+ * compressing and writing it inline, and the archived size per frame.
+ * It is a benchmark, ignored by default and run by hand.
+ */
+public class FrameArchiveTest {
+  private static final int FRAME = LAPI.IMAGE_SIZE;
+
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  static class DeflateCodec implements FrameArchive.Codec {
+    volatile CountDownLatch gate;
+
+    @Override
+    public int Compress(byte[] raw, byte[] wsq) {
+      try {
+        if (gate != null) gate.await(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      Deflater d = new Deflater(Deflater.BEST_COMPRESSION);
+      d.setInput(raw);
+      d.finish();
+      int n = d.deflate(wsq);
+      d.end();
+      return n;
+    }
+
+    @Override
+    public int Decompress(byte[] wsq, int wsqSize, byte[] raw) {
+      Inflater i = new Inflater();
+      i.setInput(wsq, 0, wsqSize);
+      try {
+        return i.inflate(raw);
+      } catch (DataFormatException e) {
+        return 0;
+      } finally {
+        i.end();
+      }
+    }
+  }
+
+  /** Ridges as a smooth pattern, so frames compress roughly like fingerprints. */
+  static byte[] frame(int seed) {
+    byte[] f = new byte[FRAME];
+    for (int y = 0; y < LAPI.HEIGHT; y++) {
+      for (int x = 0; x < LAPI.WIDTH; x++) {
+        f[y * LAPI.WIDTH + x] = (byte) (128 + 100 * Math.sin((x + y * 0.5 + seed) / 3.0));
+      }
+    }
+    return f;
+  }
+
+  @Test
+  public void add_thenQueryAndReadBack() throws Exception {
+    FrameArchive a = new FrameArchive(tmp.newFolder(), new DeflateCodec());
+    for (int i = 0; i < 5; i++) assertTrue(a.Add(frame(i), i % 2 == 0 ? "alice" : null, 40 + i));
+    assertTrue(a.Flush(5000));
+
+    List<FrameArchive.Record> all = a.Query(0, Long.MAX_VALUE, null);
+    assertEquals(5, all.size());
+    assertEquals(3, a.Query(0, Long.MAX_VALUE, "alice").size());
+    assertEquals(42, all.get(2).quality);
+    assertEquals("", all.get(1).userId);
+
+    final List<byte[]> frames = new ArrayList<>();
+    assertEquals(5, a.Read(0, Long.MAX_VALUE, null, (rec, raw) -> frames.add(raw.clone())));
+    for (int i = 0; i < 5; i++) assertArrayEquals(frame(i), frames.get(i));
+
+    byte[] raw = new byte[FRAME];
+    assertTrue(a.Read(all.get(3), raw));
+    assertArrayEquals(frame(3), raw);
+    a.Close(1000);
+  }
+
+  @Test
+  public void read_rejectsRecordsOutsideArchive() throws Exception {
+    FrameArchive a = new FrameArchive(tmp.newFolder(), new DeflateCodec());
+    assertTrue(a.Add(frame(0), null, 50));
+    assertTrue(a.Flush(5000));
+    FrameArchive.Record good = a.Query(0, Long.MAX_VALUE, null).get(0);
+    assertTrue(FrameArchive.IsValid(good));
+
+    byte[] raw = new byte[FRAME];
+    FrameArchive.Record bad = new FrameArchive.Record();
+    bad.segment = good.segment;
+    bad.offset = good.offset;
+    bad.length = -1;
+    assertFalse(a.Read(bad, raw));
+    bad.length = Integer.MAX_VALUE;
+    assertFalse(a.Read(bad, raw));
+    bad.length = good.length;
+    bad.segment = "../" + good.segment;
+    assertFalse(a.Read(bad, raw));
+    bad.segment = good.segment;
+    bad.offset = -5;
+    assertFalse(a.Read(bad, raw));
+    a.Close(1000);
+  }
+
+  @Test
+  public void rollsSegmentsAndDeletesOldestOverSizeLimit() throws Exception {
+    File dir = tmp.newFolder();
+    FrameArchive a = new FrameArchive(dir, new DeflateCodec());
+    byte[] wsq = new byte[FrameArchive.WSQ_BUFFER_SIZE];
+    int size = new DeflateCodec().Compress(frame(0), wsq);
+    a.SetSegmentSize(size * 2);
+    a.SetRetention(size * 5, FrameArchive.DEF_MAX_AGE_MS);
+    for (int i = 0; i < 12; i++) {
+      assertTrue(a.Add(frame(0), "u" + i, 50));
+      assertTrue(a.Flush(5000));
+    }
+    a.Close(1000);
+
+    List<FrameArchive.Record> left = a.Query(0, Long.MAX_VALUE, null);
+    assertTrue(left.size() < 12);
+    assertEquals("u11", left.get(left.size() - 1).userId);
+    assertFalse(left.get(0).userId.equals("u0"));
+    long total = 0;
+    for (File f : dir.listFiles()) total += f.length();
+    assertTrue(total <= size * 5 + size * 2 + 1024);
+  }
+
+  @Test
+  public void add_dropsFramesWhenQueueIsFull() throws Exception {
+    DeflateCodec codec = new DeflateCodec();
+    codec.gate = new CountDownLatch(1);
+    FrameArchive a = new FrameArchive(tmp.newFolder(), codec);
+    int accepted = 0;
+    for (int i = 0; i < FrameArchive.QUEUE_DEPTH + 4; i++) {
+      if (a.Add(frame(i), null, 50)) accepted++;
+    }
+    assertTrue(a.GetDroppedCount() > 0);
+    codec.gate.countDown();
+    assertTrue(a.Flush(5000));
+    assertEquals(accepted, a.Query(0, Long.MAX_VALUE, null).size());
+    a.Close(1000);
+  }
+
+  @Test
+  @Ignore("Benchmark, run by hand")
+  public void testArchiveReport() throws Exception {
+    int frames = 10;
+    byte[] raw = frame(7);
+    DeflateCodec codec = new DeflateCodec();
+
+    FrameArchive a = new FrameArchive(tmp.newFolder(), codec);
+    long start = System.nanoTime();
+    for (int i = 0; i < frames; i++) a.Add(raw, null, 50);
+    long addUs = (System.nanoTime() - start) / 1000 / frames;
+    assertTrue(a.Flush(10000));
+    a.Close(1000);
+
+    byte[] wsq = new byte[FrameArchive.WSQ_BUFFER_SIZE];
+    start = System.nanoTime();
+    int size = 0;
+    for (int i = 0; i < frames; i++) size = codec.Compress(raw, wsq);
+    long inlineUs = (System.nanoTime() - start) / 1000 / frames;
+
+    System.out.println(String.format("archive frame=%dB stored=%dB capture-thread add=%dus inline compress=%dus",
+        FRAME, size, addUs, inlineUs));
+    assertTrue(addUs < inlineUs);
+  }
+}
@@ -0,0 +1,88 @@
+package com.HZFINGER;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import org.junit.Test;
+
+public class HotSetCacheTest {
+  private static byte[] template(int tag) {
+    byte[] t = new byte[LAPI.FPINFO_SIZE];
+    t[0] = (byte) tag;
+    return t;
+  }
+
+  @Test
+  public void put_evictsLeastRecentlyIdentified() {
+    HotSetCache cache = new HotSetCache(2);
+    cache.Put("a", template(1), 0);
+    cache.Put("b", template(2), 0);
+    cache.Touch(0); // "a" identified again
+    cache.Put("c", template(3), 0);
+
+    assertEquals(2, cache.GetCount());
+    assertEquals("a", cache.m_bfID[0]);
+    assertEquals("c", cache.m_bfID[1]);
+    assertEquals(3, cache.m_bfPtr[LAPI.FPINFO_SIZE]);
+  }
+
+  @Test
+  public void remove_keepsArrayPacked() {
+    HotSetCache cache = new HotSetCache(3);
+    cache.Put("a", template(1), 0);
+    cache.Put("b", template(2), 0);
+    cache.Put("c", template(3), 0);
+    cache.Remove("a");
+
+    assertEquals(2, cache.GetCount());
+    assertEquals("c", cache.Touch(0));
+    assertEquals(3, cache.m_bfPtr[0]);
+    assertNull(cache.Touch(2));
+
+    cache.Clear();
+    assertEquals(0, cache.GetCount());
+  }
+
+  @Test
+  public void remove_keepsRecencyOfMovedRecord() {
+    HotSetCache cache = new HotSetCache(3);
+    cache.Put("a", template(1), 0);
+    cache.Put("b", template(2), 0);
+    cache.Put("c", template(3), 0);
+    cache.Touch(0); // "a" identified again : c is now least recent after b
+    cache.Remove("b"); // "c" moves into the slot of "b"
+    cache.Put("d", template(4), 0);
+    cache.Put("e", template(5), 0); // evicts "c"
+
+    assertEquals(3, cache.GetCount());
+    assertEquals(new HashSet<>(Arrays.asList("a", "d", "e")),
+        new HashSet<>(Arrays.asList(cache.m_bfID).subList(0, 3)));
+  }
+
+  @Test
+  public void setCapacity_resizesInPlaceAndDropsRecords() {
+    HotSetCache cache = new HotSetCache(1);
+    cache.Put("a", template(1), 0);
+    cache.SetCapacity(2);
+
+    assertEquals(2, cache.GetCapacity());
+    assertEquals(0, cache.GetCount());
+    cache.Put("b", template(2), 0);
+    cache.Put("c", template(3), 0);
+    assertEquals(2, cache.GetCount());
+    assertEquals(3, cache.m_bfPtr[LAPI.FPINFO_SIZE]);
+  }
+
+  @Test
+  public void recordLookup_countsHitsAndSavedTime() {
+    HotSetCache cache = new HotSetCache(1);
+    cache.RecordLookup(false, 0, 10000000);
+    cache.RecordLookup(true, 1000000, 0);
+
+    assertEquals(2, cache.GetLookupCount());
+    assertEquals(0.5f, cache.GetHitRate(), 1e-6);
+    assertEquals(9, cache.GetSavedTime());
+  }
+}
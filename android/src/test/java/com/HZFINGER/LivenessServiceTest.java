@@ -0,0 +1,144 @@
+package com.HZFINGER;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Ignore;
+import org.junit.Test;
+
+/**
+ * Per-touch liveness tests against a stand-in model.
+ *
+ * testTouchCacheReport prints the time to check FRAMES frames of one touch with a model costing
+ * MODEL_MS per inference, once evaluating every frame and once through the per-touch cache.
+ * It is a benchmark, ignored by default and run by hand.
+ */
+public class LivenessServiceTest {
+  private static final float THRESHOLD = 0.1f;
+  private static final int FRAMES = 20;
+  private static final long MODEL_MS = 5;
+
+  static class FakeModel implements LivenessService.Model {
+    final AtomicInteger calls = new AtomicInteger();
+    volatile int verdict = 1;
+    volatile CountDownLatch gate;
+    long costMs;
+
+    @Override
+    public int Check(byte[] image, float threshold) {
+      calls.incrementAndGet();
+      try {
+        if (gate != null) gate.await(5, TimeUnit.SECONDS);
+        if (costMs > 0) Thread.sleep(costMs);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return verdict;
+    }
+  }
+
+  static byte[] frame() {
+    return new byte[LAPI.IMAGE_SIZE];
+  }
+
+  @Test
+  public void evaluate_runsModelOncePerTouch() {
+    FakeModel model = new FakeModel();
+    LivenessService s = new LivenessService(model, false);
+    for (int i = 0; i < FRAMES; i++) assertEquals(LivenessService.LIVE, s.Evaluate(frame(), THRESHOLD));
+    assertEquals(1, model.calls.get());
+
+    s.Lift();
+    model.verdict = 0;
+    assertEquals(LivenessService.FAKE, s.Evaluate(frame(), THRESHOLD));
+    assertEquals(LivenessService.FAKE, s.Evaluate(frame(), THRESHOLD));
+    assertEquals(2, model.calls.get());
+  }
+
+  @Test
+  public void evaluate_rechecksWhenThresholdChanges() {
+    FakeModel model = new FakeModel();
+    LivenessService s = new LivenessService(model, false);
+    s.Evaluate(frame(), 0.5f);
+    s.Evaluate(frame(), 0.02f);
+    s.Evaluate(frame(), 0.02f);
+    assertEquals(2, model.calls.get());
+  }
+
+  @Test
+  public void score_bisectsThresholdOncePerTouch() {
+    final float fakeProbability = 0.3f;
+    AtomicInteger calls = new AtomicInteger();
+    LivenessService s = new LivenessService((image, threshold) -> {
+      calls.incrementAndGet();
+      return fakeProbability < threshold ? 1 : 0;
+    }, false);
+    assertEquals(LivenessService.LIVE, s.Evaluate(frame(), THRESHOLD * 4));
+    float score = s.Score(frame());
+    assertEquals(fakeProbability, score, 1f / (1 << LivenessService.PROBE_STEPS));
+    assertEquals(score, s.Score(frame()), 0f);
+    assertEquals(1 + LivenessService.PROBE_STEPS, calls.get());
+  }
+
+  @Test
+  public void evaluate_async_pendingUntilVerdictThenCached() throws Exception {
+    FakeModel model = new FakeModel();
+    model.gate = new CountDownLatch(1);
+    LivenessService s = new LivenessService(model, true);
+    assertEquals(LivenessService.PENDING, s.Evaluate(frame(), THRESHOLD));
+    assertEquals(LivenessService.PENDING, s.Evaluate(frame(), THRESHOLD));
+
+    model.gate.countDown();
+    long deadline = System.currentTimeMillis() + 5000;
+    int v;
+    while ((v = s.Evaluate(frame(), THRESHOLD)) == LivenessService.PENDING) {
+      assertTrue(System.currentTimeMillis() < deadline);
+      Thread.sleep(1);
+    }
+    assertEquals(LivenessService.LIVE, v);
+    assertEquals(1, model.calls.get());
+  }
+
+  @Test
+  public void evaluate_async_dropsVerdictOfLiftedTouch() throws Exception {
+    FakeModel model = new FakeModel();
+    model.gate = new CountDownLatch(1);
+    model.verdict = 0;
+    LivenessService s = new LivenessService(model, true);
+    assertEquals(LivenessService.PENDING, s.Evaluate(frame(), THRESHOLD));
+    s.Lift();
+    model.gate.countDown();
+    long deadline = System.currentTimeMillis() + 5000;
+    while (s.GetInferenceCount() == 0) {
+      assertTrue(System.currentTimeMillis() < deadline);
+      Thread.sleep(1);
+    }
+    model.gate = null;
+    model.verdict = 1;
+    assertEquals(LivenessService.PENDING, s.Evaluate(frame(), THRESHOLD));
+  }
+
+  @Test
+  @Ignore("Benchmark, run by hand")
+  public void testTouchCacheReport() {
+    FakeModel model = new FakeModel();
+    model.costMs = MODEL_MS;
+    long start = System.nanoTime();
+    for (int i = 0; i < FRAMES; i++) {
+      new LivenessService(model, false).Evaluate(frame(), THRESHOLD);
+    }
+    long everyFrameUs = (System.nanoTime() - start) / 1000;
+
+    LivenessService s = new LivenessService(model, false);
+    start = System.nanoTime();
+    for (int i = 0; i < FRAMES; i++) s.Evaluate(frame(), THRESHOLD);
+    long cachedUs = (System.nanoTime() - start) / 1000;
+
+    System.out.println(String.format("liveness touch frames=%d model=%dms every-frame=%dus per-touch=%dus",
+        FRAMES, MODEL_MS, everyFrameUs, cachedUs));
+    assertTrue(cachedUs < everyFrameUs);
+  }
+}
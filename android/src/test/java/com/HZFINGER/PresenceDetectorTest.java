@@ -0,0 +1,128 @@
+package com.HZFINGER;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.junit.Ignore;
+import org.junit.Test;
+
+/**
+ * Presence pre-check tests on noisy empty frames and synthetic ridges.
+ *
+ * testPresenceReport prints the time of one Check, the share of idle frames that skip the native
+ * check, and the smallest contact (rows of ridges) still sent to it.
+ * It is a benchmark, ignored by default and run by hand.
+ */
+public class PresenceDetectorTest {
+  private static final int FRAME = LAPI.IMAGE_SIZE;
+
+  /** Empty sensor : flat background with sensor noise. */
+  static byte[] empty(Random rnd, int level) {
+    byte[] f = new byte[FRAME];
+    for (int i = 0; i < FRAME; i++) f[i] = (byte) (level + rnd.nextInt(7) - 3);
+    return f;
+  }
+
+  /** Noisy background with ridges over the top rows rows. */
+  static byte[] finger(Random rnd, int rows) {
+    byte[] f = empty(rnd, 200);
+    for (int y = 0; y < rows; y++) {
+      for (int x = 0; x < LAPI.WIDTH; x++) {
+        f[y * LAPI.WIDTH + x] = (byte) (128 + 90 * Math.sin((x + y * 0.5) / 2.0));
+      }
+    }
+    return f;
+  }
+
+  static PresenceDetector calibrated(Random rnd) {
+    PresenceDetector p = new PresenceDetector();
+    for (int i = 0; i < PresenceDetector.CALIB_FRAMES; i++) {
+      assertTrue(p.Check(empty(rnd, 200)));
+      p.OnNativeScore(0);
+    }
+    return p;
+  }
+
+  @Test
+  public void uncalibrated_sendsEveryFrameToNativeCheck() {
+    PresenceDetector p = new PresenceDetector();
+    assertFalse(p.IsCalibrated());
+    assertTrue(p.Check(empty(new Random(1), 200)));
+    assertEquals(0, p.GetSkippedCount());
+  }
+
+  @Test
+  public void calibrated_skipsEmptyFramesAndKeepsFingers() {
+    Random rnd = new Random(2);
+    PresenceDetector p = calibrated(rnd);
+    assertTrue(p.IsCalibrated());
+    for (int i = 0; i < 50; i++) assertFalse(p.Check(empty(rnd, 200)));
+    assertFalse(p.Check(empty(rnd, 120))); // darker background, still no contrast
+    assertTrue(p.Check(finger(rnd, LAPI.HEIGHT)));
+    assertTrue(p.Check(finger(rnd, 20)));
+  }
+
+  @Test
+  public void calibration_ignoresFramesWithFinger() {
+    Random rnd = new Random(3);
+    PresenceDetector p = new PresenceDetector();
+    // Finger left on the sensor at startup : native score is high, frames are not used
+    for (int i = 0; i < 40; i++) {
+      p.Check(finger(rnd, LAPI.HEIGHT));
+      p.OnNativeScore(80);
+    }
+    assertFalse(p.IsCalibrated());
+    for (int i = 0; i < PresenceDetector.CALIB_FRAMES; i++) {
+      p.Check(empty(rnd, 200));
+      p.OnNativeScore(0);
+    }
+    assertTrue(p.Check(finger(rnd, 40)));
+  }
+
+  @Test
+  public void recalibrate_startsOver() {
+    PresenceDetector p = calibrated(new Random(4));
+    p.Recalibrate();
+    assertFalse(p.IsCalibrated());
+    assertTrue(p.Check(empty(new Random(5), 200)));
+  }
+
+  @Test
+  public void calibrated_skipsAllIdleFramesAndKeepsSmallContact() {
+    Random rnd = new Random(6);
+    PresenceDetector p = calibrated(rnd);
+    int frames = 200;
+    for (int i = 0; i < frames; i++) p.Check(empty(rnd, 200));
+    assertEquals(frames, p.GetSkippedCount());
+
+    int minRows = 0;
+    while (minRows < LAPI.HEIGHT && !p.Check(finger(rnd, minRows))) minRows++;
+    assertTrue(minRows < LAPI.HEIGHT / 10);
+  }
+
+  @Test
+  @Ignore("Benchmark, run by hand")
+  public void testPresenceReport() {
+    Random rnd = new Random(6);
+    PresenceDetector p = calibrated(rnd);
+    byte[][] idle = new byte[8][];
+    for (int i = 0; i < idle.length; i++) idle[i] = empty(rnd, 200);
+    int frames = 2000;
+    for (int i = 0; i < 200; i++) p.Check(idle[i % idle.length]); // warm up
+    long skipped = p.GetSkippedCount();
+    long start = System.nanoTime();
+    for (int i = 0; i < frames; i++) p.Check(idle[i % idle.length]);
+    long checkNs = (System.nanoTime() - start) / frames;
+    float skipRate = (float) (p.GetSkippedCount() - skipped) / frames;
+
+    int minRows = 0;
+    while (minRows < LAPI.HEIGHT && !p.Check(finger(rnd, minRows))) minRows++;
+
+    System.out.println(String.format("presence check=%.1fus idle-skipped=%.3f threshold=%.2f min-contact-rows=%d/%d",
+        checkNs / 1000f, skipRate, p.GetThreshold(), minRows, LAPI.HEIGHT));
+    assertEquals(1.0f, skipRate, 0.001f);
+    assertTrue(minRows < LAPI.HEIGHT / 10);
+  }
+}
@@ -0,0 +1,198 @@
+package com.HZFINGER;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Ignore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Re-templating tests with a Java stand-in for the native extractor and an in-memory sink.
+ *
+ * testRetemplateReport prints the items per second of a job over a directory of raw images and the
+ * number of sink batches (DATABASE transactions) it took.
+ * It is a benchmark, ignored by default and run by hand.
+ */
+public class RetemplateJobTest {
+  private static final int FRAME = LAPI.IMAGE_SIZE;
+
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  /** Frame whose first pixel is the quality the fake extractor reports. */
+  static byte[] image(int quality, int seed) {
+    byte[] f = FrameArchiveTest.frame(seed);
+    f[0] = (byte) quality;
+    return f;
+  }
+
+  /** Quality from the first pixel, template from the frame checksum; 0 - no finger. */
+  static class FakeExtractor implements RetemplateJob.Extractor {
+    final AtomicInteger calls = new AtomicInteger();
+
+    @Override
+    public int Create(byte[] image, byte[] itemplate) {
+      calls.incrementAndGet();
+      int sum = 0;
+      for (byte b : image) sum = sum * 31 + b;
+      for (int i = 0; i < 4; i++) itemplate[i] = (byte) (sum >> (8 * i));
+      itemplate[4] = image[0];
+      return image[0] & 0xff;
+    }
+  }
+
+  /** Stores templates by id, failing after failAfter batches. */
+  static class MapSink implements RetemplateJob.Sink {
+    final Map<String, byte[]> records = new HashMap<>();
+    int batches = 0;
+    int failAfter = Integer.MAX_VALUE;
+
+    @Override
+    public synchronized int Put(String[] ids, byte[][] itemplates, int n) {
+      if (batches >= failAfter) return HAPI.ERROR_NEG_ACCESS;
+      batches++;
+      for (int i = 0; i < n; i++) records.put(ids[i], itemplates[i].clone());
+      return HAPI.ERROR_NONE;
+    }
+  }
+
+  static void write(File f, byte[] data) throws IOException {
+    try (FileOutputStream out = new FileOutputStream(f)) {
+      out.write(data);
+    }
+  }
+
+  @Test
+  public void fromDirectory_groupsImagesOfAnIdAndKeepsBestTemplate() throws Exception {
+    File dir = tmp.newFolder();
+    write(new File(dir, "alice_1.raw"), image(40, 1));
+    write(new File(dir, "alice_2.raw"), image(70, 2));
+    FrameArchiveTest.DeflateCodec codec = new FrameArchiveTest.DeflateCodec();
+    byte[] wsq = new byte[FrameArchive.WSQ_BUFFER_SIZE];
+    int size = codec.Compress(image(60, 3), wsq);
+    write(new File(dir, "bob.wsq"), Arrays.copyOf(wsq, size));
+    write(new File(dir, "carol.raw"), new byte[100]); // truncated
+    write(new File(dir, "notes.txt"), new byte[10]);
+
+    List<RetemplateJob.Item> items = RetemplateJob.FromDirectory(dir, codec);
+    assertEquals(3, items.size());
+    assertEquals("alice", items.get(0).id);
+    assertEquals(2, items.get(0).frames.size());
+
+    MapSink sink = new MapSink();
+    RetemplateJob job = new RetemplateJob(new FakeExtractor(), sink, new File(tmp.getRoot(), "ckpt"), 2);
+    RetemplateJob.Progress p = job.Run(items, null);
+    assertTrue(p.finished);
+    assertEquals(2, p.done);
+    assertEquals(1, p.failed);
+    assertEquals(70, sink.records.get("alice")[4]);
+    assertEquals(60, sink.records.get("bob")[4]);
+    assertFalse(sink.records.containsKey("carol"));
+  }
+
+  @Test
+  public void fromArchive_usesBestFramesOfEachUser() throws Exception {
+    FrameArchive a = new FrameArchive(tmp.newFolder(), new FrameArchiveTest.DeflateCodec());
+    int[] quality = {30, 90, 50, 20, 80};
+    for (int i = 0; i < quality.length; i++) assertTrue(a.Add(image(quality[i], i), "alice", quality[i]));
+    assertTrue(a.Add(image(99, 9), null, 99));
+    assertTrue(a.Flush(5000));
+
+    List<RetemplateJob.Item> items = RetemplateJob.FromArchive(a);
+    assertEquals(1, items.size());
+    assertEquals(RetemplateJob.MAX_CANDIDATES, items.get(0).frames.size());
+    byte[] raw = new byte[FRAME];
+    assertTrue(items.get(0).frames.get(0).Read(raw));
+    assertArrayEquals(image(90, 1), raw);
+
+    MapSink sink = new MapSink();
+    FakeExtractor ex = new FakeExtractor();
+    new RetemplateJob(ex, sink, new File(tmp.getRoot(), "ckpt"), 1).Run(items, null);
+    assertEquals(RetemplateJob.MAX_CANDIDATES, ex.calls.get());
+    assertEquals(90, sink.records.get("alice")[4] & 0xff);
+    a.Close(1000);
+  }
+
+  @Test
+  public void run_resumesAfterFailedBatch() throws Exception {
+    File dir = tmp.newFolder();
+    int users = RetemplateJob.BATCH_SIZE * 2 + 7;
+    for (int i = 0; i < users; i++) write(new File(dir, String.format("u%03d.raw", i)), image(50, i));
+    List<RetemplateJob.Item> items = RetemplateJob.FromDirectory(dir, null);
+    File ckpt = new File(tmp.getRoot(), "ckpt");
+
+    MapSink sink = new MapSink();
+    sink.failAfter = 1;
+    try {
+      new RetemplateJob(new FakeExtractor(), sink, ckpt, 3).Run(items, null);
+      fail();
+    } catch (IOException expected) {
+    }
+    assertEquals(RetemplateJob.BATCH_SIZE, sink.records.size());
+
+    sink.failAfter = Integer.MAX_VALUE;
+    FakeExtractor ex = new FakeExtractor();
+    RetemplateJob.Progress p = new RetemplateJob(ex, sink, ckpt, 3).Run(items, null);
+    assertEquals(RetemplateJob.BATCH_SIZE, p.skipped);
+    assertEquals(users - RetemplateJob.BATCH_SIZE, p.done);
+    assertEquals(users - RetemplateJob.BATCH_SIZE, ex.calls.get());
+    assertEquals(users, sink.records.size());
+  }
+
+  @Test
+  public void cancel_commitsItemsInProgressAndStops() throws Exception {
+    File dir = tmp.newFolder();
+    for (int i = 0; i < RetemplateJob.BATCH_SIZE * 4; i++) write(new File(dir, "u" + i + ".raw"), image(50, i));
+    List<RetemplateJob.Item> items = RetemplateJob.FromDirectory(dir, null);
+    MapSink sink = new MapSink();
+    final RetemplateJob job = new RetemplateJob(new FakeExtractor(), sink, new File(tmp.getRoot(), "ckpt"), 2);
+    RetemplateJob.Progress p = job.Run(items, progress -> job.Cancel());
+    assertFalse(p.finished);
+    assertTrue(p.done < items.size());
+    assertEquals(p.done, sink.records.size());
+  }
+
+  @Test
+  public void run_commitsOneTransactionPerBatch() throws Exception {
+    File dir = tmp.newFolder();
+    int users = RetemplateJob.BATCH_SIZE * 3 + 1;
+    for (int i = 0; i < users; i++) write(new File(dir, "u" + i + ".raw"), image(50 + i % 50, i));
+    List<RetemplateJob.Item> items = RetemplateJob.FromDirectory(dir, null);
+    MapSink sink = new MapSink();
+    RetemplateJob.Progress p = new RetemplateJob(new FakeExtractor(), sink, new File(tmp.getRoot(), "ckpt"), 2)
+        .Run(items, null);
+    assertEquals(users, p.done);
+    assertEquals(4, sink.batches);
+  }
+
+  @Test
+  @Ignore("Benchmark, run by hand")
+  public void testRetemplateReport() throws Exception {
+    File dir = tmp.newFolder();
+    int users = 400;
+    for (int i = 0; i < users; i++) write(new File(dir, "u" + i + ".raw"), image(50 + i % 50, i));
+    List<RetemplateJob.Item> items = RetemplateJob.FromDirectory(dir, null);
+    int threads = Runtime.getRuntime().availableProcessors();
+    MapSink sink = new MapSink();
+    final float[] last = new float[1];
+    RetemplateJob job = new RetemplateJob(new FakeExtractor(), sink, new File(tmp.getRoot(), "ckpt"), threads);
+    RetemplateJob.Progress p = job.Run(items, progress -> last[0] = progress.perSecond);
+
+    System.out.println(String.format("retemplate items=%d threads=%d items/s=%.0f transactions=%d",
+        p.done, threads, last[0], sink.batches));
+    assertEquals(users, p.done);
+    assertEquals((users + RetemplateJob.BATCH_SIZE - 1) / RetemplateJob.BATCH_SIZE, sink.batches);
+  }
+}
@@ -0,0 +1,138 @@
+package com.HZFINGER;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+/**
+ * Idle policy tests on a simulated clock.
+ *
+ * testPowerReport prints the frames an idle monitoring loop reads in an hour with and without the
+ * policy, assuming FRAME_MS per frame, and how fast a Wake() ends a probe pause on a real thread.
+ * It is a benchmark, ignored by default and run by hand.
+ */
+public class SensorPowerTest {
+  private static final long FRAME_MS = 25;
+
+  @Test
+  public void step_dozesThenSuspendsWhenIdle() {
+    SensorPower p = new SensorPower(0);
+    p.SetPolicy(1000, 200, 5000);
+    assertEquals(SensorPower.ACTIVE, p.Step(999));
+    assertEquals(SensorPower.DOZE, p.Step(1000));
+    assertEquals(200, p.PollInterval(0));
+    assertEquals(SensorPower.SUSPEND, p.Step(5000));
+    assertEquals(1000, p.GetStateTime(SensorPower.ACTIVE, 6000));
+    assertEquals(4000, p.GetStateTime(SensorPower.DOZE, 6000));
+    assertEquals(1000, p.GetStateTime(SensorPower.SUSPEND, 6000));
+  }
+
+  @Test
+  public void activity_restartsIdleTimeWithoutWakeLatency() {
+    SensorPower p = new SensorPower(0);
+    p.SetPolicy(1000, 200, 0);
+    p.Step(1500);
+    p.OnActivity(1600);
+    assertEquals(SensorPower.ACTIVE, p.Step(2500));
+    assertEquals(0, p.PollInterval(0));
+    assertEquals(-1, p.OnFrame(2500));
+    assertEquals(0, p.GetWakeCount());
+    assertEquals(SensorPower.ACTIVE, p.Step(2599));
+  }
+
+  @Test
+  public void wake_measuresLatencyToFirstFrame() {
+    SensorPower p = new SensorPower(0);
+    p.SetPolicy(1000, 200, 2000);
+    p.Step(3000);
+    assertTrue(p.Wake(3000));
+    assertFalse(p.Wake(3100)); // already awake
+    assertEquals(SensorPower.ACTIVE, p.Step(3200));
+    assertEquals(1400, p.OnFrame(4400)); // e.g. POWER_ON and re-open
+    assertEquals(-1, p.OnFrame(4420));
+    p.Step(7000);
+    p.Wake(7000);
+    p.OnFrame(7200);
+    assertEquals(2, p.GetWakeCount());
+    assertEquals(200, p.GetLastWakeLatency());
+    assertEquals(800, p.GetMeanWakeLatency());
+  }
+
+  @Test
+  public void policyZero_neverIdles() {
+    SensorPower p = new SensorPower(0);
+    p.SetPolicy(0, 200, 0);
+    assertEquals(SensorPower.ACTIVE, p.Step(Long.MAX_VALUE / 2));
+  }
+
+  /** Frames read by an idle loop over span ms : back to back when active, one per probe in doze. */
+  static long idleFrames(SensorPower p, long span) {
+    long frames = 0;
+    for (long t = 0; t < span; ) {
+      if (p.Step(t) == SensorPower.SUSPEND) {
+        t += 1000;
+        continue;
+      }
+      frames++;
+      t += FRAME_MS + p.PollInterval(0);
+    }
+    return frames;
+  }
+
+  @Test
+  public void idleHour_readsFewerFramesWithPolicy() {
+    long hour = 3600 * 1000L;
+    SensorPower always = new SensorPower(0);
+    always.SetPolicy(0, SensorPower.DEF_PROBE_INTERVAL_MS, 0);
+    long alwaysFrames = idleFrames(always, hour);
+    long dozeFrames = idleFrames(new SensorPower(0), hour);
+    SensorPower suspend = new SensorPower(0);
+    suspend.SetPolicy(SensorPower.DEF_DOZE_AFTER_MS, SensorPower.DEF_PROBE_INTERVAL_MS, 5 * 60 * 1000L);
+    long suspendFrames = idleFrames(suspend, hour);
+
+    assertTrue(dozeFrames < alwaysFrames / 10);
+    assertTrue(suspendFrames < dozeFrames);
+  }
+
+  @Test
+  @Ignore("Benchmark, run by hand")
+  public void testPowerReport() throws Exception {
+    long hour = 3600 * 1000L;
+    SensorPower always = new SensorPower(0);
+    always.SetPolicy(0, SensorPower.DEF_PROBE_INTERVAL_MS, 0);
+    long alwaysFrames = idleFrames(always, hour);
+    long dozeFrames = idleFrames(new SensorPower(0), hour);
+    SensorPower suspend = new SensorPower(0);
+    suspend.SetPolicy(SensorPower.DEF_DOZE_AFTER_MS, SensorPower.DEF_PROBE_INTERVAL_MS, 5 * 60 * 1000L);
+    long suspendFrames = idleFrames(suspend, hour);
+
+    final SensorPower p = new SensorPower(System.currentTimeMillis());
+    p.SetPolicy(1, SensorPower.DEF_PROBE_INTERVAL_MS, 0);
+    Thread.sleep(5);
+    p.Step(System.currentTimeMillis());
+    final long[] woke = new long[1];
+    Thread sleeper = new Thread(() -> {
+      try {
+        p.Sleep(p.PollInterval(0));
+      } catch (InterruptedException e) {
+        return;
+      }
+      woke[0] = System.nanoTime();
+    });
+    sleeper.start();
+    Thread.sleep(50);
+    long wakeAt = System.nanoTime();
+    p.Wake(System.currentTimeMillis());
+    sleeper.join(2000);
+    long wakeUs = (woke[0] - wakeAt) / 1000;
+
+    System.out.println(String.format("power idle hour frames always-on=%d doze=%d doze+suspend(5min)=%d "
+        + "wake-from-probe-pause=%dus", alwaysFrames, dozeFrames, suspendFrames, wakeUs));
+    assertTrue(dozeFrames < alwaysFrames / 10);
+    assertTrue(suspendFrames < dozeFrames);
+    assertTrue(wakeUs < 300 * 1000);
+  }
+}
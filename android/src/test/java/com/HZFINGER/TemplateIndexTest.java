@@ -0,0 +1,171 @@
+package com.HZFINGER;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.junit.Ignore;
+import org.junit.Test;
+
+/**
+ * Pre-filter index tests on a synthetic gallery of ISO minutiae records.
+ *
+ * Probes are re-captures of gallery fingers (rotated, translated, jittered, with missing and
+ * spurious minutiae). testRecallReport prints recall@K and query latency for a few K values.
+ * It is a benchmark, ignored by default and run by hand.
+ */
+public class TemplateIndexTest {
+  private static final int GALLERY = 1000;
+  private static final int PROBES = 200;
+
+  /** Builds an ISO 19794-2 record from minutiae rows of {type, x, y, angleDegrees}. */
+  static byte[] isoTemplate(int[][] minutiae) {
+    byte[] t = new byte[LAPI.FPINFO_SIZE];
+    int len = TemplateIndex.ISO_HEADER_SIZE + TemplateIndex.VIEW_HEADER_SIZE
+        + minutiae.length * TemplateIndex.MINUTIA_SIZE + 2;
+    t[0] = 'F'; t[1] = 'M'; t[2] = 'R';
+    t[4] = ' '; t[5] = '2'; t[6] = '0';
+    t[10] = (byte) (len >> 8); t[11] = (byte) len;
+    t[14] = 0x01; t[15] = 0x00;          // width 256
+    t[16] = 0x01; t[17] = 0x68;          // height 360
+    t[19] = (byte) 197; t[21] = (byte) 197;
+    t[22] = 1;
+    int pos = TemplateIndex.ISO_HEADER_SIZE;
+    t[pos + 3] = (byte) minutiae.length;
+    pos += TemplateIndex.VIEW_HEADER_SIZE;
+    for (int[] m : minutiae) {
+      t[pos] = (byte) ((m[0] << 6) | (m[1] >> 8));
+      t[pos + 1] = (byte) m[1];
+      t[pos + 2] = (byte) (m[2] >> 8);
+      t[pos + 3] = (byte) m[2];
+      t[pos + 4] = (byte) (((m[3] % 360) + 360) % 360 * 256 / 360);
+      t[pos + 5] = 60;
+      pos += TemplateIndex.MINUTIA_SIZE;
+    }
+    return t;
+  }
+
+  static int[][] randomFinger(Random r) {
+    int n = 25 + r.nextInt(36);
+    int[][] m = new int[n][];
+    for (int i = 0; i < n; i++) {
+      m[i] = new int[] {1 + r.nextInt(2), 20 + r.nextInt(216), 20 + r.nextInt(320), r.nextInt(360)};
+    }
+    return m;
+  }
+
+  static int[][] recapture(int[][] finger, Random r) {
+    double rot = Math.toRadians(r.nextInt(31) - 15);
+    int tx = r.nextInt(21) - 10, ty = r.nextInt(21) - 10;
+    java.util.List<int[]> out = new java.util.ArrayList<>();
+    for (int[] m : finger) {
+      if (r.nextInt(100) < 15) continue;
+      double cx = m[1] - 128, cy = m[2] - 180;
+      int x = (int) (cx * Math.cos(rot) - cy * Math.sin(rot)) + 128 + tx + r.nextInt(5) - 2;
+      int y = (int) (cx * Math.sin(rot) + cy * Math.cos(rot)) + 180 + ty + r.nextInt(5) - 2;
+      int a = m[3] + (int) Math.toDegrees(rot) + r.nextInt(11) - 5;
+      out.add(new int[] {m[0], Math.max(0, x), Math.max(0, y), a});
+    }
+    for (int i = r.nextInt(4); i > 0; i--) {
+      out.add(new int[] {1 + r.nextInt(2), 20 + r.nextInt(216), 20 + r.nextInt(320), r.nextInt(360)});
+    }
+    return out.toArray(new int[0][]);
+  }
+
+  @Test
+  public void parse_readsIsoHeaderAndMinutiae() {
+    int[][] m = {{1, 10, 10, 0}, {2, 30, 10, 90}, {2, 10, 40, 180}};
+    TemplateIndex.Features f = new TemplateIndex.Features();
+    TemplateIndex.Parse(isoTemplate(m), 0, f);
+    assertTrue(f.valid);
+    assertEquals(3, f.minutiae);
+    assertEquals(2f / 3f, f.bifRatio, 1e-6);
+  }
+
+  @Test
+  public void parse_rejectsUnknownRecord() {
+    TemplateIndex.Features f = new TemplateIndex.Features();
+    TemplateIndex.Parse(new byte[LAPI.FPINFO_SIZE], 0, f);
+    assertFalse(f.valid);
+  }
+
+  @Test
+  public void remove_movesLastSlot() {
+    Random r = new Random(1);
+    TemplateIndex index = new TemplateIndex(4);
+    byte[][] t = new byte[3][];
+    for (int i = 0; i < 3; i++) {
+      t[i] = isoTemplate(randomFinger(r));
+      index.Put(i, t[i], 0);
+    }
+    index.Remove(0);
+    assertEquals(2, index.GetCount());
+    int[] cand = new int[1];
+    assertEquals(1, index.Query(t[2], 1, cand));
+    assertEquals(0, cand[0]);
+  }
+
+  @Test
+  public void query_recallsMatesOfRecaptures() {
+    Random r = new Random(42);
+    int[][][] fingers = new int[GALLERY][][];
+    byte[] gallery = new byte[GALLERY * LAPI.FPINFO_SIZE];
+    TemplateIndex index = new TemplateIndex(GALLERY);
+    for (int i = 0; i < GALLERY; i++) {
+      fingers[i] = randomFinger(r);
+      System.arraycopy(isoTemplate(fingers[i]), 0, gallery, i * LAPI.FPINFO_SIZE, LAPI.FPINFO_SIZE);
+      index.Put(i, gallery, i * LAPI.FPINFO_SIZE);
+    }
+    int[] cand = new int[100];
+    int hits = 0;
+    for (int i = 0; i < PROBES; i++) {
+      int mate = r.nextInt(GALLERY);
+      int n = index.Query(isoTemplate(recapture(fingers[mate], r)), 100, cand);
+      for (int j = 0; j < n; j++) {
+        if (cand[j] == mate) { hits++; break; }
+      }
+    }
+    float recall = (float) hits / PROBES;
+    assertTrue("recall@100 too low: " + recall, recall >= 0.85f);
+  }
+
+  @Test
+  @Ignore("Benchmark, run by hand")
+  public void testRecallReport() {
+    Random r = new Random(42);
+    int[][][] fingers = new int[GALLERY][][];
+    byte[] gallery = new byte[GALLERY * LAPI.FPINFO_SIZE];
+    TemplateIndex index = new TemplateIndex(GALLERY);
+    for (int i = 0; i < GALLERY; i++) {
+      fingers[i] = randomFinger(r);
+      System.arraycopy(isoTemplate(fingers[i]), 0, gallery, i * LAPI.FPINFO_SIZE, LAPI.FPINFO_SIZE);
+      index.Put(i, gallery, i * LAPI.FPINFO_SIZE);
+    }
+    int[] mates = new int[PROBES];
+    byte[][] probes = new byte[PROBES][];
+    for (int i = 0; i < PROBES; i++) {
+      mates[i] = r.nextInt(GALLERY);
+      probes[i] = isoTemplate(recapture(fingers[mates[i]], r));
+    }
+
+    int[] cand = new int[GALLERY];
+    float recall100 = 0;
+    for (int k : new int[] {10, 25, 50, 100, 200}) {
+      int hits = 0;
+      long start = System.nanoTime();
+      for (int i = 0; i < PROBES; i++) {
+        int n = index.Query(probes[i], k, cand);
+        for (int j = 0; j < n; j++) {
+          if (cand[j] == mates[i]) { hits++; break; }
+        }
+      }
+      long usPerQuery = (System.nanoTime() - start) / 1000 / PROBES;
+      float recall = (float) hits / PROBES;
+      if (k == 100) recall100 = recall;
+      System.out.println(String.format("prefilter N=%d K=%d recall=%.3f query=%dus",
+          GALLERY, k, recall, usPerQuery));
+    }
+    assertTrue("recall@100 too low: " + recall100, recall100 >= 0.85f);
+  }
+}
@@ -0,0 +1,148 @@
+package com.HZFINGER;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+/**
+ * Best-frame tests on synthetic placements whose contact grows over the first frames.
+ *
+ * testTouchReport prints the SHARPNESS score of the first finger frame of a placement against the
+ * frame chosen by the aggregator, and the time to score one frame.
+ * It is a benchmark, ignored by default and run by hand.
+ */
+public class TouchAggregatorTest {
+  private static final int FRAME = LAPI.IMAGE_SIZE;
+
+  /** Ridges over the top rows rows of the frame at the given contrast, background elsewhere. */
+  static byte[] frame(int rows, int contrast) {
+    byte[] f = new byte[FRAME];
+    for (int y = 0; y < LAPI.HEIGHT; y++) {
+      for (int x = 0; x < LAPI.WIDTH; x++) {
+        int v = y < rows ? (int) (128 + contrast * Math.sin((x + y * 0.5) / 2.0)) : 200;
+        f[y * LAPI.WIDTH + x] = (byte) v;
+      }
+    }
+    return f;
+  }
+
+  @Test
+  public void sharpness_growsWithContactAndContrast() {
+    int none = TouchAggregator.SHARPNESS.Score(frame(0, 100));
+    int half = TouchAggregator.SHARPNESS.Score(frame(LAPI.HEIGHT / 2, 100));
+    int full = TouchAggregator.SHARPNESS.Score(frame(LAPI.HEIGHT, 100));
+    int faint = TouchAggregator.SHARPNESS.Score(frame(LAPI.HEIGHT, 40));
+    assertEquals(0, none);
+    assertTrue(half < full);
+    assertTrue(faint < full);
+  }
+
+  @Test
+  public void offer_handsOutBestFrameOncePerTouch() {
+    TouchAggregator t = new TouchAggregator();
+    t.SetSettleTime(100);
+    assertFalse(t.Offer(frame(100, 100), 60, 0));
+    assertFalse(t.Offer(frame(300, 100), 70, 40));
+    assertTrue(t.Offer(frame(200, 100), 80, 100));
+    byte[] best = new byte[FRAME];
+    assertEquals(70, t.Best(best));
+    assertArrayEquals(frame(300, 100), best);
+
+    // Rest of the placement is ignored until the finger is lifted
+    assertFalse(t.Offer(frame(LAPI.HEIGHT, 100), 90, 200));
+    assertEquals(-1, t.Best(best));
+    assertFalse(t.Lift());
+    assertFalse(t.Offer(frame(50, 100), 50, 1000));
+    assertEquals(1, t.GetTouchCount());
+  }
+
+  @Test
+  public void lift_beforeSettle_handsOutBestAndStartsNextTouch() {
+    TouchAggregator t = new TouchAggregator();
+    t.Offer(frame(80, 100), 55, 0);
+    t.Offer(frame(160, 100), 65, 30);
+    assertTrue(t.Lift());
+    byte[] best = new byte[FRAME];
+    assertEquals(65, t.Best(best));
+    assertFalse(t.Offer(frame(120, 100), 60, 1000));
+    assertTrue(t.Offer(frame(120, 100), 60, 1000 + TouchAggregator.DEF_SETTLE_MS));
+  }
+
+  @Test
+  public void reset_dropsFramesOfFakeTouch() {
+    TouchAggregator t = new TouchAggregator();
+    t.Offer(frame(200, 100), 70, 0);
+    t.Reset();
+    assertFalse(t.Lift());
+    assertEquals(-1, t.Best(new byte[FRAME]));
+  }
+
+  @Test
+  public void ring_keepsOnlyLastFrames() {
+    TouchAggregator t = new TouchAggregator(TouchAggregator.SHARPNESS, 2);
+    t.SetSettleTime(1000);
+    t.Offer(frame(LAPI.HEIGHT, 100), 90, 0);
+    t.Offer(frame(100, 100), 60, 10);
+    t.Offer(frame(150, 100), 65, 20);
+    assertTrue(t.Lift());
+    assertEquals(65, t.Best(new byte[FRAME]));
+  }
+
+  @Test
+  public void placements_chooseFramesBetterThanFirstContact() {
+    int touches = 20;
+    int framesPerTouch = 12; // 30ms apart : 360ms placements
+    TouchAggregator t = new TouchAggregator();
+    byte[][] frames = new byte[framesPerTouch][];
+    for (int i = 0; i < framesPerTouch; i++) {
+      // contact spreads over the first frames, then the finger settles
+      int rows = Math.min(LAPI.HEIGHT, 60 + i * 40);
+      frames[i] = frame(rows, 60 + Math.min(i, 6) * 10);
+    }
+    byte[] best = new byte[FRAME];
+    long now = 0;
+    for (int k = 0; k < touches; k++) {
+      for (int i = 0; i < framesPerTouch; i++, now += 30) {
+        if (t.Offer(frames[i], 50, now)) t.Best(best);
+      }
+      if (t.Lift()) t.Best(best);
+      now += 1000;
+    }
+    assertEquals(touches, t.GetTouchCount());
+    assertTrue(t.GetQualityGain() > 1.5f);
+  }
+
+  @Test
+  @Ignore("Benchmark, run by hand")
+  public void testTouchReport() {
+    int touches = 20;
+    int framesPerTouch = 12; // 30ms apart : 360ms placements
+    TouchAggregator t = new TouchAggregator();
+    byte[][] frames = new byte[framesPerTouch][];
+    for (int i = 0; i < framesPerTouch; i++) {
+      // contact spreads over the first frames, then the finger settles
+      int rows = Math.min(LAPI.HEIGHT, 60 + i * 40);
+      frames[i] = frame(rows, 60 + Math.min(i, 6) * 10);
+    }
+    byte[] best = new byte[FRAME];
+    long start = System.nanoTime();
+    long now = 0;
+    for (int k = 0; k < touches; k++) {
+      for (int i = 0; i < framesPerTouch; i++, now += 30) {
+        if (t.Offer(frames[i], 50, now)) t.Best(best);
+      }
+      if (t.Lift()) t.Best(best);
+      now += 1000;
+    }
+    long scoreUs = (System.nanoTime() - start) / 1000 / t.GetFrameCount();
+
+    System.out.println(String.format("touch frames=%d templates=%d first-frame-score=%d chosen/first=%.2f score=%dus/frame",
+        t.GetFrameCount(), t.GetTouchCount(), TouchAggregator.SHARPNESS.Score(frames[0]), t.GetQualityGain(), scoreUs));
+    assertEquals(touches, t.GetTouchCount());
+    assertTrue(t.GetQualityGain() > 1.5f);
+  }
+}
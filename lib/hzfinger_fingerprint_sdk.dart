@@ -10,16 +10,60 @@ const EventChannel _eventChannel =
     EventChannel('hzfinger_fingerprint_sdk/event');
 
 /// Represents a single event from the fingerprint scanner.
-/// [type] can be "status", "image", or "iso_template".
+/// [type] can be "status", "image", "iso_template", "device", "power" or
+/// "retemplate".
 /// If "status", [message] will be populated.
 /// If "image" or "iso_template", [data] will be populated.
 /// "iso_template" events might also have a [message].
+/// If "device", [message] is the connection state ("opened", "detached",
+/// "reconnecting", "reconnected", "reconnect_failed", "suspended", "resumed"
+/// or "closed") and [extra] may hold `attempt` and `downtimeMs`.
+/// If "power", [message] is the idle state of the monitoring loop ("active",
+/// "doze" or "suspended"), or "first_frame" with `latencyMs` in [extra] for
+/// the first frame after [HzfingerFingerprintSdk.wakeSensor].
+/// If "retemplate", [extra] holds the progress of
+/// [HzfingerFingerprintSdk.retemplate] after every committed batch : `total`,
+/// `skipped`, `done`, `failed`, `perSecond` and `finished`.
 class FingerprintEvent {
   final String type;
   final String? message;
   final Uint8List? data;
 
-  FingerprintEvent(this.type, this.message, this.data);
+  /// Any other entries of the native event map.
+  final Map<String, dynamic> extra;
+
+  FingerprintEvent(this.type, this.message, this.data,
+      [this.extra = const {}]);
+
+  /// Id of the scanner this event comes from, null for plugin-wide events.
+  String? get deviceId => extra['deviceId'] as String?;
+}
+
+/// A captured frame kept in the audit archive, see
+/// [HzfingerFingerprintSdk.queryArchive].
+class ArchivedFrame {
+  /// Capture time, milliseconds since epoch.
+  final int time;
+  final int quality;
+
+  /// User the frame was captured for, empty if none.
+  final String userId;
+
+  // Location of the WSQ image inside the archive.
+  final String segment;
+  final int offset;
+  final int length;
+
+  ArchivedFrame(this.time, this.quality, this.userId, this.segment,
+      this.offset, this.length);
+
+  factory ArchivedFrame._fromMap(Map<dynamic, dynamic> m) => ArchivedFrame(
+      m['time'] as int,
+      m['quality'] as int,
+      m['userId'] as String? ?? '',
+      m['segment'] as String,
+      m['offset'] as int,
+      m['length'] as int);
 }
 
 class HzfingerFingerprintSdk {
@@ -31,6 +75,8 @@ class HzfingerFingerprintSdk {
   /// * `event.type == "status"`: A status message. Check `event.message`.
   /// * `event.type == "image"`: A captured image (PNG format). Check `event.data`.
   /// * `event.type == "iso_template"`: A captured ISO template. Check `event.data` and potentially `event.message`.
+  /// * `event.type == "device"`: A connection state change. Check `event.message` and `event.extra`.
+  ///   Monitoring pauses while the scanner is detached and resumes after "reconnected".
   static Stream<FingerprintEvent> get fingerprintEvents {
     _fingerprintStream ??=
         _eventChannel.receiveBroadcastStream().map((dynamic event) {
@@ -59,7 +105,13 @@ class HzfingerFingerprintSdk {
            print("Received unexpected data type for event '$type': ${rawData.runtimeType}");
         }
       }
-      return FingerprintEvent(type, message, data);
+      final Map<String, dynamic> extra = {};
+      map.forEach((key, value) {
+        if (key is String && key != 'type' && key != 'message' && key != 'data') {
+          extra[key] = value;
+        }
+      });
+      return FingerprintEvent(type, message, data, extra);
     });
     return _fingerprintStream!;
   }
@@ -69,9 +121,14 @@ class HzfingerFingerprintSdk {
   /// This must be called after granting storage permissions.
   /// Copies model files, sets up USB, and opens the device.
   /// Returns `true` on success, throws an Exception on failure.
-  static Future<bool> init() async {
+  ///
+  /// With several scanners attached, pass a [deviceId] from [listDevices]
+  /// to open that scanner; every other method takes the same [deviceId]
+  /// and defaults to the first opened scanner.
+  static Future<bool> init({String? deviceId}) async {
     try {
-      final bool? success = await _methodChannel.invokeMethod('init');
+      final bool? success =
+          await _methodChannel.invokeMethod('init', _device(deviceId));
       return success ?? false;
     } on PlatformException catch (e) {
       // Pass the native error message to the caller
@@ -86,9 +143,9 @@ class HzfingerFingerprintSdk {
   ///
   /// Results (image and template) will be sent as [FingerprintEvent]s
   /// on the [fingerprintEvents] stream.
-  static Future<void> startCapture() async {
+  static Future<void> startCapture({String? deviceId}) async {
     try {
-      await _methodChannel.invokeMethod('capture');
+      await _methodChannel.invokeMethod('capture', _device(deviceId));
     } on PlatformException catch (e) {
        throw Exception("Failed startCapture: ${e.message}");
     } catch (e) {
@@ -101,9 +158,9 @@ class HzfingerFingerprintSdk {
   /// The plugin will continuously check for a finger. When detected,
   /// it captures the image and template, sending results on the
   /// [fingerprintEvents] stream.
-  static Future<void> startMonitoring() async {
+  static Future<void> startMonitoring({String? deviceId}) async {
      try {
-      await _methodChannel.invokeMethod('startMonitoring');
+      await _methodChannel.invokeMethod('startMonitoring', _device(deviceId));
     } on PlatformException catch (e) {
        throw Exception("Failed startMonitoring: ${e.message}");
     } catch (e) {
@@ -112,9 +169,9 @@ class HzfingerFingerprintSdk {
   }
 
   /// Stops automatic fingerprint monitoring.
-  static Future<void> stopMonitoring() async {
+  static Future<void> stopMonitoring({String? deviceId}) async {
     try {
-      await _methodChannel.invokeMethod('stopMonitoring');
+      await _methodChannel.invokeMethod('stopMonitoring', _device(deviceId));
     } on PlatformException catch (e) {
        throw Exception("Failed stopMonitoring: ${e.message}");
     } catch (e) {
@@ -123,6 +180,82 @@ class HzfingerFingerprintSdk {
   }
 
 
+  /// Sets when a monitored scanner idles.
+  ///
+  /// After [dozeAfterMs] without a finger (default 30 s) frames are only
+  /// read every [probeIntervalMs] (default 500 ms) until a finger is seen;
+  /// after [suspendAfterMs] the scanner is powered off until [wakeSensor].
+  /// 0 disables a stage; suspending is off by default. Omitted values are
+  /// left unchanged.
+  static Future<void> setPowerPolicy(
+      {int? dozeAfterMs,
+      int? probeIntervalMs,
+      int? suspendAfterMs,
+      String? deviceId}) async {
+    try {
+      await _methodChannel.invokeMethod('setPowerPolicy', {
+        if (dozeAfterMs != null) 'dozeAfterMs': dozeAfterMs,
+        if (probeIntervalMs != null) 'probeIntervalMs': probeIntervalMs,
+        if (suspendAfterMs != null) 'suspendAfterMs': suspendAfterMs,
+        ..._device(deviceId),
+      });
+    } on PlatformException catch (e) {
+      throw Exception("Failed setPowerPolicy: ${e.message}");
+    }
+  }
+
+  /// Wakes an idle scanner at once, e.g. when a person approaches the
+  /// kiosk, powering it on again if it was suspended. The time to the first
+  /// frame is reported as a "power" event and in [getPowerStats].
+  static Future<void> wakeSensor({String? deviceId}) async {
+    try {
+      await _methodChannel.invokeMethod('wakeSensor', _device(deviceId));
+    } on PlatformException catch (e) {
+      throw Exception("Failed wakeSensor: ${e.message}");
+    }
+  }
+
+  /// Returns the idle `state`, the time spent in each state (`activeMs`,
+  /// `dozeMs`, `suspendedMs`), `wakeCount` and the last and mean
+  /// wake-to-first-frame latency (`lastWakeLatencyMs`, `meanWakeLatencyMs`,
+  /// -1 until measured).
+  static Future<Map<String, dynamic>> getPowerStats({String? deviceId}) async {
+    try {
+      final Map<dynamic, dynamic>? m =
+          await _methodChannel.invokeMethod('getPowerStats', _device(deviceId));
+      return Map<String, dynamic>.from(m ?? const {});
+    } on PlatformException catch (e) {
+      throw Exception("Failed getPowerStats: ${e.message}");
+    }
+  }
+
+  /// Starts a live preview of the scanner and returns its texture id.
+  ///
+  /// Every frame read by the monitoring loop is drawn into the texture, so
+  /// show it with `Texture(textureId: id)` inside an `AspectRatio` of
+  /// 256 / 360. Monitoring is started if it is not running; captures are
+  /// still reported as "image" events.
+  static Future<int> startPreview({String? deviceId}) async {
+    try {
+      final int? id =
+          await _methodChannel.invokeMethod('startPreview', _device(deviceId));
+      return id!;
+    } on PlatformException catch (e) {
+      throw Exception("Failed startPreview: ${e.message}");
+    }
+  }
+
+  /// Stops the live preview and releases its texture. Monitoring goes on
+  /// until [stopMonitoring].
+  static Future<void> stopPreview({String? deviceId}) async {
+    try {
+      await _methodChannel.invokeMethod('stopPreview', _device(deviceId));
+    } on PlatformException catch (e) {
+      throw Exception("Failed stopPreview: ${e.message}");
+    }
+  }
+
+
   /// Compares two ISO fingerprint templates.
   ///
   /// Returns a similarity score (0-100).
@@ -130,11 +263,13 @@ class HzfingerFingerprintSdk {
   static Future<int> compareTemplates({
     required Uint8List template1,
     required Uint8List template2,
+    String? deviceId,
   }) async {
     try {
       final int? score = await _methodChannel.invokeMethod('compareTemplates', {
         'template1': template1,
         'template2': template2,
+        ..._device(deviceId),
       });
       return score ?? -1; // Return -1 if score is null (indicating potential native error)
     } on PlatformException catch (e) {
@@ -147,6 +282,95 @@ class HzfingerFingerprintSdk {
   }
 
 
+  /// Scores [probe] against every template of [templates] in one call.
+  ///
+  /// Returns one score (0-100) per template, in order.
+  static Future<Int32List> compareMany({
+    required Uint8List probe,
+    required List<Uint8List> templates,
+    String? deviceId,
+  }) async {
+    try {
+      final Int32List? scores =
+          await _methodChannel.invokeMethod('compareMany', {
+        'probe': probe,
+        'templates': _pack(templates),
+        'count': templates.length,
+        ..._device(deviceId),
+      });
+      return scores ?? Int32List(0);
+    } on PlatformException catch (e) {
+      throw Exception("Failed compareMany: ${e.message}");
+    }
+  }
+
+  /// Scores every template of [listA] against every template of [listB].
+  ///
+  /// Returns `listA.length * listB.length` scores, row major: the score of
+  /// `listA[a]` against `listB[b]` is at `a * listB.length + b`.
+  static Future<Int32List> compareMatrix({
+    required List<Uint8List> listA,
+    required List<Uint8List> listB,
+    String? deviceId,
+  }) async {
+    try {
+      final Int32List? scores =
+          await _methodChannel.invokeMethod('compareMatrix', {
+        'templatesA': _pack(listA),
+        'countA': listA.length,
+        'templatesB': _pack(listB),
+        'countB': listB.length,
+        ..._device(deviceId),
+      });
+      return scores ?? Int32List(0);
+    } on PlatformException catch (e) {
+      throw Exception("Failed compareMatrix: ${e.message}");
+    }
+  }
+
+  // Native templates are 1024 bytes; templates are packed in 1024 byte
+  // slots, zero padded, so a whole list crosses the channel as one buffer.
+  static const int _templateSlot = 1024;
+
+  static Uint8List _pack(List<Uint8List> templates) {
+    final packed = Uint8List(templates.length * _templateSlot);
+    for (var i = 0; i < templates.length; i++) {
+      final t = templates[i];
+      final n = t.length < _templateSlot ? t.length : _templateSlot;
+      packed.setRange(i * _templateSlot, i * _templateSlot + n, t);
+    }
+    return packed;
+  }
+
+  /// Identifies a template already at hand, e.g. from an "iso_template"
+  /// event or another terminal, against the enrolled templates.
+  ///
+  /// Searches only [partitions] when given, so one capture can be searched
+  /// several times. Pass `iso: false` for ANSI templates. Returns the
+  /// matched `id` (empty if none) and its `score`.
+  static Future<({String id, int score})> identifyTemplate(
+    Uint8List template, {
+    List<String>? partitions,
+    bool iso = true,
+    String? deviceId,
+  }) async {
+    try {
+      final Map<dynamic, dynamic>? r =
+          await _methodChannel.invokeMethod('identifyTemplate', {
+        'template': template,
+        if (partitions != null) 'partitions': partitions,
+        'iso': iso,
+        ..._device(deviceId),
+      });
+      return (
+        id: r?['id'] as String? ?? '',
+        score: r?['score'] as int? ?? 0,
+      );
+    } on PlatformException catch (e) {
+      throw Exception("Failed identifyTemplate: ${e.message}");
+    }
+  }
+
   /// Starts an enrollment process for a given [userId].
   ///
   /// Status updates will be sent on the [fingerprintEvents] stream.
@@ -162,9 +386,11 @@ class HzfingerFingerprintSdk {
 
   /// Closes the connection to the fingerprint scanner
   /// and stops monitoring if active.
-  static Future<void> close() async {
+  ///
+  /// Without [deviceId] every open scanner is closed.
+  static Future<void> close({String? deviceId}) async {
      try {
-       await _methodChannel.invokeMethod('close');
+       await _methodChannel.invokeMethod('close', _device(deviceId));
      } on PlatformException catch (e) {
        // Log error but might not need to throw, closing is best-effort
        print("Error during close: ${e.message}");
@@ -172,5 +398,137 @@ class HzfingerFingerprintSdk {
        print("Error during close: ${e.toString()}");
     }
   }
-}
 
+  /// Lists attached scanners by USB device name, usable as `deviceId`.
+  static Future<List<String>> listDevices() async {
+    try {
+      final List<dynamic>? ids =
+          await _methodChannel.invokeMethod('listDevices');
+      return ids?.cast<String>() ?? <String>[];
+    } on PlatformException catch (e) {
+      throw Exception("Failed listDevices: ${e.message}");
+    }
+  }
+
+  /// Enables or disables the audit archive of captured frames.
+  ///
+  /// Frames are compressed to WSQ in the background and kept within
+  /// [maxBytes] and [maxAgeDays]; the oldest frames are deleted first.
+  static Future<void> configureArchive({
+    required bool enabled,
+    int? maxBytes,
+    int? maxAgeDays,
+  }) async {
+    try {
+      await _methodChannel.invokeMethod('configureArchive', {
+        'enabled': enabled,
+        if (maxBytes != null) 'maxBytes': maxBytes,
+        if (maxAgeDays != null) 'maxAgeDays': maxAgeDays,
+      });
+    } on PlatformException catch (e) {
+      throw Exception("Failed configureArchive: ${e.message}");
+    }
+  }
+
+  /// Lists archived frames captured between [from] and [to], oldest first,
+  /// optionally only those captured for [userId].
+  static Future<List<ArchivedFrame>> queryArchive(
+      {DateTime? from, DateTime? to, String? userId}) async {
+    try {
+      final List<dynamic>? frames =
+          await _methodChannel.invokeMethod('queryArchive', {
+        if (from != null) 'from': from.millisecondsSinceEpoch,
+        if (to != null) 'to': to.millisecondsSinceEpoch,
+        if (userId != null) 'userId': userId,
+      });
+      return (frames ?? const [])
+          .map((f) => ArchivedFrame._fromMap(f as Map))
+          .toList();
+    } on PlatformException catch (e) {
+      throw Exception("Failed queryArchive: ${e.message}");
+    }
+  }
+
+  /// Reads an archived frame back as a PNG image. Needs an open scanner to
+  /// decompress the WSQ image.
+  static Future<Uint8List> readArchiveFrame(ArchivedFrame frame,
+      {String? deviceId}) async {
+    try {
+      final Uint8List? png =
+          await _methodChannel.invokeMethod('readArchiveFrame', {
+        'segment': frame.segment,
+        'offset': frame.offset,
+        'length': frame.length,
+        ..._device(deviceId),
+      });
+      return png ?? Uint8List(0);
+    } on PlatformException catch (e) {
+      throw Exception("Failed readArchiveFrame: ${e.message}");
+    }
+  }
+
+  /// Cross-matches the records of the database to find fingers enrolled
+  /// under two ids.
+  ///
+  /// With [incremental] only records added or changed since the last run
+  /// are matched, against each other and against all other records. Each
+  /// record is matched against the [topK] most similar records by a cheap
+  /// pre-filter, 0 matches every pair. Returns `pairs` (maps of `idA`,
+  /// `idB` and `score`, best first) and the path of the CSV `report`, with
+  /// `records`, `checked`, `compared`, `pruned` and `timeMs`.
+  static Future<Map<String, dynamic>> findDuplicates(
+      {bool incremental = true, int? topK, String? deviceId}) async {
+    try {
+      final Map<dynamic, dynamic>? m =
+          await _methodChannel.invokeMethod('findDuplicates', {
+        'incremental': incremental,
+        if (topK != null) 'topK': topK,
+        ..._device(deviceId),
+      });
+      return Map<String, dynamic>.from(m ?? const {});
+    } on PlatformException catch (e) {
+      throw Exception("Failed findDuplicates: ${e.message}");
+    }
+  }
+
+  /// Re-creates the templates of the database from stored images, e.g. after
+  /// switching between ISO and ANSI templates.
+  ///
+  /// Images come from [directory] (`<id>.raw` / `<id>.wsq` files, several
+  /// images of one id as `<id>_<n>.raw`) or, without it, from the frames of
+  /// each user in the audit archive. The best template of each id replaces
+  /// its record, in batches of one database transaction each, using
+  /// [threads] workers. Progress is reported as "retemplate" events. Ids
+  /// committed by an earlier job that failed or was cancelled are skipped.
+  /// Returns the final `total`, `skipped`, `done`, `failed` and `finished`.
+  static Future<Map<String, dynamic>> retemplate(
+      {String? directory, bool iso = true, int? threads, String? deviceId}) async {
+    try {
+      final Map<dynamic, dynamic>? m =
+          await _methodChannel.invokeMethod('retemplate', {
+        if (directory != null) 'directory': directory,
+        'iso': iso,
+        if (threads != null) 'threads': threads,
+        ..._device(deviceId),
+      });
+      return Map<String, dynamic>.from(m ?? const {});
+    } on PlatformException catch (e) {
+      throw Exception("Failed retemplate: ${e.message}");
+    }
+  }
+
+  /// Stops a running [retemplate] job after the ids in progress are stored.
+  /// Returns false if no job was running.
+  static Future<bool> cancelRetemplate() async {
+    try {
+      final bool? running =
+          await _methodChannel.invokeMethod('cancelRetemplate');
+      return running ?? false;
+    } on PlatformException catch (e) {
+      throw Exception("Failed cancelRetemplate: ${e.message}");
+    }
+  }
+
+  static Map<String, dynamic> _device(String? deviceId) =>
+      deviceId == null ? {} : {'deviceId': deviceId};
+}